@@ -0,0 +1,227 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+
+// turns requests away with a 503 when we're too busy, rather than letting every one of them wait
+//
+// a request gets in if there's room for it in its endpoint (a fixed most-at-once, like one import
+// at a time) and in its budget: uploads and reads are counted separately, so a few big photo uploads
+// can't crowd out searches. a budget's limit isn't fixed either. it moves with the latency we see:
+// while requests take about as long as they usually do it creeps up, when they start taking longer
+// (things are queueing somewhere, the disk, the CPU) it comes down. a request that finds no room
+// waits a little for some, and one that has already waited too long in the executor's queue
+// before it even started is turned away straight off, since the browser has likely given up on it.
+// turning a request away costs next to nothing, so what does get in stays fast.
+public final class Admission {
+    private static final int RETRY_AFTER_SECONDS = 1;
+    private static final int DRAIN_BYTES = 64 * 1024; // read this much of a rejected body to keep its connection
+    private static final ThreadLocal<Long> queuedAt = new ThreadLocal<>(); // when the running request was handed to the executor
+
+    private Admission() {
+    }
+
+    // an executor that notes when each request was queued, so wrap() knows how long it waited for a
+    // thread. null (the server's own thread, nothing queues) stays null
+    public static Executor timed(Executor executor) {
+        if (executor == null) {
+            return null;
+        }
+        return task -> {
+            long queued = System.nanoTime();
+            executor.execute(() -> {
+                queuedAt.set(queued);
+                try {
+                    task.run();
+                } finally {
+                    queuedAt.remove();
+                }
+            });
+        };
+    }
+
+    // a number of requests allowed at once, and how long one may wait for a place
+    public static final class Limit {
+        private static final long WINDOW_NANOS = 100_000_000; // limits are adjusted at most this often
+        private static final int WINDOW_SAMPLES = 10; // and only once we've seen this many requests
+        private static final double TOLERANCE = 1.5; // requests may take this much longer than usual before we back off
+        private static final double SMOOTHING = 0.2; // how far each adjustment moves the limit
+
+        final String name;
+        private final boolean adaptive;
+        private final int min;
+        private final int max;
+        final long maxWaitNanos;
+        private double limit;
+        private int inFlight;
+        // latency: this window's, and a long-term average of what's usual
+        private long windowStart = System.nanoTime();
+        private long windowSum;
+        private int windowCount;
+        private int windowPeak; // most in flight this window
+        private double usualNanos;
+        private final Metrics.Histogram queueTime;
+        private final Metrics.Counter rejected;
+
+        private Limit(String name, boolean adaptive, int min, int max, long maxWaitMillis) {
+            if (max < 1) {
+                throw new IllegalArgumentException("Concurrency limit for " + name + " must be at least 1");
+            }
+            this.name = name;
+            this.adaptive = adaptive;
+            this.min = Math.min(min, max);
+            this.max = max;
+            this.limit = max;
+            this.maxWaitNanos = maxWaitMillis * 1_000_000;
+            this.queueTime = Metrics.histogram("phonebook_admission_wait_seconds",
+                    "Time requests waited to be let in, including the executor's queue", "limit", name);
+            this.rejected = Metrics.counter("phonebook_admission_rejected_total", "Requests turned away with a 503", "limit", name);
+            Metrics.gauge("phonebook_admission_limit", "Requests allowed at once", () -> (long) currentLimit(), "limit", name);
+            Metrics.gauge("phonebook_admission_in_flight", "Requests running now", this::inFlight, "limit", name);
+        }
+
+        // reads or uploads: starts at max and moves between min and max with the latency
+        public static Limit adaptive(String name, int min, int max, long maxWaitMillis) {
+            return new Limit(name, true, min, max, maxWaitMillis);
+        }
+
+        // an endpoint's own: always max
+        public static Limit fixed(String name, int max, long maxWaitMillis) {
+            return new Limit(name, false, max, max, maxWaitMillis);
+        }
+
+        synchronized int currentLimit() {
+            return (int) limit;
+        }
+
+        synchronized long inFlight() {
+            return inFlight;
+        }
+
+        // take a place, waiting until deadline (System.nanoTime) at most. false if there wasn't one
+        synchronized boolean acquire(long deadline) throws InterruptedException {
+            while (inFlight >= (int) limit) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left / 1_000_000, (int) (left % 1_000_000));
+            }
+            inFlight++;
+            windowPeak = Math.max(windowPeak, inFlight);
+            return true;
+        }
+
+        // give the place back, with how long the request took
+        synchronized void release(long nanos) {
+            inFlight--;
+            notify();
+            if (!adaptive) {
+                return;
+            }
+            windowSum += nanos;
+            windowCount++;
+            long now = System.nanoTime();
+            if (windowCount < WINDOW_SAMPLES || now - windowStart < WINDOW_NANOS) {
+                return;
+            }
+            double recent = (double) windowSum / windowCount;
+            if (usualNanos == 0) {
+                usualNanos = recent;
+            }
+            // usual follows recent slowly, and quickly when things got faster again
+            usualNanos = recent < usualNanos ? recent : usualNanos * 0.95 + recent * 0.05;
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * usualNanos / recent));
+            double target = limit * gradient + Math.sqrt(limit); // room to grow while latency holds
+            if (target > limit && windowPeak < limit / 2) {
+                target = limit; // we weren't using what we had, that says nothing about more
+            }
+            limit = Math.max(min, Math.min(max, limit * (1 - SMOOTHING) + target * SMOOTHING));
+            notifyAll(); // if it went up, let waiters in
+            windowStart = now;
+            windowSum = 0;
+            windowCount = 0;
+            windowPeak = inFlight;
+        }
+    }
+
+    // let requests through handler only while endpoint (may be null) and budget have room for them
+    public static HttpHandler wrap(Limit endpoint, Limit budget, HttpHandler handler) {
+        return exchange -> {
+            long now = System.nanoTime();
+            Long queued = queuedAt.get();
+            long arrived = queued != null ? queued : now;
+            // the endpoint's wait is the shorter one where there are two
+            long deadline = arrived + (endpoint != null ? Math.min(endpoint.maxWaitNanos, budget.maxWaitNanos) : budget.maxWaitNanos);
+            Limit full = null;
+            boolean inEndpoint = false;
+            try {
+                if (now - deadline >= 0) {
+                    full = budget; // waited too long for a thread already, the browser has likely moved on
+                } else if (endpoint != null && !(inEndpoint = endpoint.acquire(deadline))) {
+                    full = endpoint;
+                } else if (!budget.acquire(deadline)) {
+                    full = budget;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                full = budget;
+            }
+            if (full != null) {
+                if (inEndpoint) {
+                    endpoint.release(0);
+                }
+                full.queueTime.recordSince(arrived);
+                full.rejected.increment();
+                reject(exchange);
+                return;
+            }
+            long start = System.nanoTime();
+            budget.queueTime.record(start - arrived);
+            try {
+                handler.handle(exchange);
+            } finally {
+                long took = System.nanoTime() - start;
+                budget.release(took);
+                if (endpoint != null) {
+                    endpoint.release(took);
+                }
+            }
+        };
+    }
+
+    private static void reject(HttpExchange exchange) throws IOException {
+        // a small body is read so the connection can take the browser's next request, a big upload
+        // isn't worth it, the server closes that connection instead
+        String declared = exchange.getRequestHeaders().getFirst("Content-Length");
+        long length;
+        try {
+            length = declared != null ? Long.parseLong(declared.trim()) : 0;
+        } catch (NumberFormatException e) {
+            length = Long.MAX_VALUE;
+        }
+        if (length <= DRAIN_BYTES && exchange.getRequestHeaders().getFirst("Transfer-Encoding") == null) {
+            InputStream body = exchange.getRequestBody();
+            byte[] skip = new byte[8192];
+            for (int read = 0; read < DRAIN_BYTES; ) {
+                int n = body.read(skip);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        }
+        byte[] body = "Too busy right now, try again in a moment".getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(503, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// gzip or deflate for any handler, if the browser says it can take it (Accept-Encoding)
+//
+// wrap() puts this in front of a handler. when the handler sends its headers we look at what it's
+// sending: text-like responses (pages, the stylesheet, JSON) get compressed on the way out,
+// anything else (photos are already compressed) and anything tiny goes out untouched.
+// a response with a strong ETag and a known length never changes for that ETag, so its compressed
+// bytes are kept in a small LRU cache and a repeat request doesn't compress it all over again.
+public class Compression {
+    private static final int BUFFER_SIZE = 8192;
+    private static final Set<String> COMPRESSIBLE = Set.of(
+            "text/html", "text/css", "text/plain", "text/csv", "text/vcard",
+            "application/json", "application/javascript", "image/svg+xml");
+
+    private final int level;
+    private final int minBytes;
+    private final long cacheLimitBytes;
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true); // access order
+    private long cachedBytes;
+
+    // level is 1 (fastest) to 9 (smallest) or 0 for no compression at all,
+    // responses shorter than minBytes aren't worth it
+    public Compression(int level, int minBytes, long cacheLimitBytes) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be 0 to 9, not " + level);
+        }
+        this.level = level;
+        this.minBytes = minBytes;
+        this.cacheLimitBytes = cacheLimitBytes;
+    }
+
+    public HttpHandler wrap(HttpHandler handler) {
+        if (level == 0) {
+            return handler;
+        }
+        return exchange -> {
+            CompressingExchange compressing = new CompressingExchange(exchange,
+                    chooseEncoding(exchange.getRequestHeaders().getFirst("Accept-Encoding")));
+            try {
+                handler.handle(compressing);
+            } finally {
+                compressing.finish();
+            }
+        };
+    }
+
+    // gzip if the browser takes it, else deflate, else null. "gzip;q=0" means no thanks
+    static String chooseEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean gzip = false;
+        boolean deflate = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] fields = part.split(";");
+            String name = fields[0].trim().toLowerCase(Locale.ROOT);
+            boolean wanted = true;
+            for (int i = 1; i < fields.length; i++) {
+                String param = fields[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        wanted = Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        wanted = false;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip") || name.equals("*")) {
+                gzip |= wanted;
+            }
+            if (name.equals("deflate") || name.equals("*")) {
+                deflate |= wanted;
+            }
+        }
+        return gzip ? "gzip" : deflate ? "deflate" : null;
+    }
+
+    private static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+        return COMPRESSIBLE.contains(type);
+    }
+
+    private OutputStream newCompressor(String encoding, OutputStream out) throws IOException {
+        // sync flush, so a page that flushes its top half early really sends it
+        if (encoding.equals("gzip")) {
+            return new GZIPOutputStream(out, BUFFER_SIZE, true) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+        Deflater deflater = new Deflater(level); // zlib format, which is what HTTP calls deflate
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE, true) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end(); // we made it, so we have to free it
+                }
+            }
+        };
+    }
+
+    private byte[] cached(String key) {
+        synchronized (cache) {
+            return cache.get(key);
+        }
+    }
+
+    private void remember(String key, byte[] compressed) {
+        if (compressed.length > cacheLimitBytes) {
+            return;
+        }
+        synchronized (cache) {
+            byte[] old = cache.put(key, compressed);
+            cachedBytes += compressed.length - (old != null ? old.length : 0);
+            // drop the least recently used until we fit again
+            var it = cache.entrySet().iterator();
+            while (cachedBytes > cacheLimitBytes && it.hasNext()) {
+                cachedBytes -= it.next().getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    // decides what to do once the handler's headers are known, then hands it the right stream
+    private class CompressingExchange extends ForwardingExchange {
+        private final String encoding; // null if the browser doesn't want compression
+        private OutputStream body; // null until we've changed what the body goes through
+
+        CompressingExchange(HttpExchange exchange, String encoding) {
+            super(exchange);
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+            Headers headers = getResponseHeaders();
+            boolean compressible = isCompressible(headers.getFirst("Content-Type"))
+                    && !headers.containsKey("Content-Encoding")
+                    && !headers.containsKey("Content-Range"); // a range is of the uncompressed bytes
+            if (compressible) {
+                headers.add("Vary", "Accept-Encoding"); // so caches keep both versions apart
+            }
+            if (!compressible || encoding == null || "HEAD".equals(getRequestMethod())
+                    || responseLength < 0 || (responseLength > 0 && responseLength < minBytes)
+                    || rCode == 204 || rCode == 304) {
+                super.sendResponseHeaders(rCode, responseLength);
+                return;
+            }
+
+            headers.set("Content-Encoding", encoding);
+            String etag = headers.getFirst("ETag");
+            if (etag != null) {
+                // the compressed bytes aren't the same bytes, but they are the same content
+                headers.set("ETag", etag.startsWith("W/") ? etag : "W/" + etag);
+            }
+            if (responseLength > 0 && etag != null && !etag.startsWith("W/")) {
+                String key = encoding + " " + getRequestURI() + " " + etag;
+                byte[] compressed = cached(key);
+                if (compressed != null) {
+                    // done before, send that and let whatever the handler writes go nowhere
+                    super.sendResponseHeaders(rCode, compressed.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(compressed);
+                    body = new FilterOutputStream(out) {
+                        @Override
+                        public void write(int b) {
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) {
+                        }
+                    };
+                } else {
+                    body = new CompressOnce(key, rCode);
+                }
+                return;
+            }
+
+            // length unknown or the content may change, just compress as it streams out (chunked)
+            headers.remove("Content-Length");
+            super.sendResponseHeaders(rCode, 0);
+            body = newCompressor(encoding, exchange.getResponseBody());
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return body != null ? body : super.getResponseBody();
+        }
+
+        @Override
+        public void close() {
+            finish();
+            super.close();
+        }
+
+        // make sure the compressor is flushed out even if the handler forgot to close the body
+        void finish() {
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException e) {
+                    // the client went away, nothing left to send it
+                }
+            }
+        }
+
+        // compresses into memory, remembers the result and only then sends it, with its length
+        private class CompressOnce extends OutputStream {
+            private final String key;
+            private final int rCode;
+            private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            private final OutputStream compressor;
+            private boolean closed;
+
+            CompressOnce(String key, int rCode) throws IOException {
+                this.key = key;
+                this.rCode = rCode;
+                this.compressor = newCompressor(encoding, buffer);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                compressor.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                compressor.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                compressor.close();
+                byte[] compressed = buffer.toByteArray();
+                remember(key, compressed);
+                CompressingExchange.super.sendResponseHeaders(rCode, compressed.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(compressed);
+                }
+            }
+        }
+    }
+}
@@ -1,72 +1,107 @@
 import java.io.Serializable;
 
+// a contact never changes once it's in the store, so it's safe to share between threads.
+// the id is handed out by ContactStore and stays the same for the life of the contact
 public class Contact implements Serializable {
     private static final long serialVersionUID = 1L; // needed for serialization stuff
-    
+
     // contact info
-    private String name;
-    private String phone;
-    private String cellPhone;
-    private byte[] photo; // store photo as bytes
-    
+    private final long id; // 0 until the store assigns one
+    private final String name;
+    private final String phone;
+    private final String cellPhone;
+    private final String photoHash; // which photo in the PhotoStore, null if there isn't one
+    private final String photoType; // MIME type of the photo, worked out once when it was stored
+    private final byte[] photo; // only set on contacts from old data files that kept the photo inline
+    private final transient String normalizedPhone; // digits only, see PhoneNumbers
+    private final transient String normalizedCellPhone;
+
     // constructor
     public Contact(String name, String phone, String cellPhone) {
+        this(0, name, phone, cellPhone, null, null, null);
+    }
+
+    public Contact(String name, String phone, String cellPhone, String photoHash, String photoType) {
+        this(0, name, phone, cellPhone, photoHash, photoType, null);
+    }
+
+    private Contact(long id, String name, String phone, String cellPhone, String photoHash, String photoType, byte[] photo) {
+        this.id = id;
         this.name = name;
         this.phone = phone;
         this.cellPhone = cellPhone;
+        this.photoHash = photoHash;
+        this.photoType = photoType;
+        this.photo = photo;
+        this.normalizedPhone = PhoneNumbers.normalize(phone);
+        this.normalizedCellPhone = PhoneNumbers.normalize(cellPhone);
+    }
+
+    // deserializing skips the constructor, so go through it to fill in the normalized numbers
+    private Object readResolve() {
+        return new Contact(id, name, phone, cellPhone, photoHash, photoType, photo);
+    }
+
+    // a contact read from an old file, with its photo bytes still attached
+    static Contact withInlinePhoto(String name, String phone, String cellPhone, byte[] photo) {
+        return new Contact(0, name, phone, cellPhone, null, null, photo);
+    }
+
+    // same contact with an id attached
+    public Contact withId(long id) {
+        return new Contact(id, name, phone, cellPhone, photoHash, photoType, photo);
+    }
+
+    // same contact pointing at a stored photo instead of carrying the bytes
+    public Contact withPhoto(String photoHash, String photoType) {
+        return new Contact(id, name, phone, cellPhone, photoHash, photoType, null);
     }
-    
-    // getters and setters
+
+    // getters
+    public long getId() {
+        return id;
+    }
+
     public String getName() {
         return name;
     }
-    
-    public void setName(String name) {
-        this.name = name;
-    }
-    
+
     public String getPhone() {
         return phone;
     }
-    
-    public void setPhone(String phone) {
-        this.phone = phone;
-    }
-    
+
     public String getCellPhone() {
         return cellPhone;
     }
-    
-    public void setCellPhone(String cellPhone) {
-        this.cellPhone = cellPhone;
+
+    public String getNormalizedPhone() {
+        return normalizedPhone;
+    }
+
+    public String getNormalizedCellPhone() {
+        return normalizedCellPhone;
     }
-    
-    // make a copy of the photo to avoid someone changing it directly
-    public void setPhoto(byte[] photo) {
-        if (photo != null && photo.length > 0) {
-            this.photo = new byte[photo.length];
-            System.arraycopy(photo, 0, this.photo, 0, photo.length); // copy the array
-        } else {
-            this.photo = null;
-        }
-    }
-    
-    public byte[] getPhoto() {
-        if (photo != null) {
-            byte[] copy = new byte[photo.length];
-            System.arraycopy(photo, 0, copy, 0, photo.length); // return a copy
-            return copy;
-        }
-        return null;
-    }
-    
+
+    public String getPhotoHash() {
+        return photoHash;
+    }
+
+    public String getPhotoType() {
+        return photoType;
+    }
+
+    // photo bytes that still need moving to the PhotoStore, null once that's done
+    byte[] getInlinePhoto() {
+        return photo != null && photo.length > 0 ? photo : null;
+    }
+
     // check if we have a photo
     public boolean hasPhoto() {
-        return photo != null && photo.length > 0;
+        return photoHash != null;
     }
-    
+
     @Override
     public String toString() {
         return name + " (Phone: " + phone + ", Cell: " + cellPhone + ")";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,396 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+
+// reading and writing the phone book as CSV or vCard, one contact at a time
+//
+// the readers pull a contact at a time off the stream and the writers push one at a time into it,
+// so a file with millions of contacts goes through with the same small buffers as one with ten.
+// vCards carry their photos inline as base64 (PHOTO;ENCODING=b), CSV has no photos.
+public final class ContactFormats {
+    private static final int MAX_FIELD_CHARS = 64 * 1024; // names and numbers, anything longer is junk
+    private static final int MAX_PHOTO_CHARS = 14 * 1024 * 1024; // about 10 MB once decoded
+    private static final int PHOTO_LINE_BYTES = 54; // 72 base64 chars per folded line, under the 75 limit
+
+    private ContactFormats() {
+    }
+
+    // one contact as read from a file. fields that weren't there are empty, photo is null if none
+    public static class Entry {
+        public final String name;
+        public final String phone;
+        public final String cellPhone;
+        public final byte[] photo;
+
+        Entry(String name, String phone, String cellPhone, byte[] photo) {
+            this.name = name;
+            this.phone = phone;
+            this.cellPhone = cellPhone;
+            this.photo = photo;
+        }
+    }
+
+    public interface EntryReader extends Closeable {
+        // the next contact, or null at the end. a file that isn't valid is an IllegalArgumentException
+        Entry next() throws IOException;
+    }
+
+    // csv or vcard, from ?format= or the Content-Type. null if it's neither
+    public static String formatOf(String format, String contentType) {
+        String f = format != null ? format : contentType != null ? contentType : "";
+        f = f.toLowerCase(Locale.ROOT);
+        if (f.equals("csv") || f.startsWith("text/csv")) {
+            return "csv";
+        }
+        if (f.equals("vcard") || f.equals("vcf") || f.startsWith("text/vcard") || f.startsWith("text/x-vcard")) {
+            return "vcard";
+        }
+        return null;
+    }
+
+    public static EntryReader reader(String format, InputStream in) throws IOException {
+        BufferedReader text = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        text.mark(1);
+        if (text.read() != '\uFEFF') {
+            text.reset(); // no byte order mark (Excel likes to add one)
+        }
+        return format.equals("csv") ? new CsvReader(text) : new VCardReader(text);
+    }
+
+    // CSV as in RFC 4180: commas, "quoted, fields" with "" for a quote, newlines allowed inside quotes.
+    // a first row naming the columns (name, phone, cellPhone in any order) is used to find them,
+    // otherwise the columns are taken to be name, phone, cell phone
+    private static class CsvReader implements EntryReader {
+        private final BufferedReader in;
+        private int nameColumn = 0;
+        private int phoneColumn = 1;
+        private int cellColumn = 2;
+        private boolean first = true;
+        private long line = 1;
+
+        CsvReader(BufferedReader in) {
+            this.in = in;
+        }
+
+        @Override
+        public Entry next() throws IOException {
+            List<String> row;
+            while ((row = row()) != null) {
+                if (first) {
+                    first = false;
+                    if (isHeader(row)) {
+                        continue;
+                    }
+                }
+                if (row.size() == 1 && row.get(0).isEmpty()) {
+                    continue; // blank line
+                }
+                return new Entry(column(row, nameColumn), column(row, phoneColumn), column(row, cellColumn), null);
+            }
+            return null;
+        }
+
+        private boolean isHeader(List<String> row) {
+            int name = -1;
+            int phone = -1;
+            int cell = -1;
+            for (int i = 0; i < row.size(); i++) {
+                String column = row.get(i).trim().toLowerCase(Locale.ROOT).replaceAll("[ _-]", "");
+                if (column.equals("name")) name = i;
+                else if (column.equals("phone")) phone = i;
+                else if (column.equals("cellphone") || column.equals("cell") || column.equals("mobile")) cell = i;
+            }
+            if (name < 0) {
+                return false;
+            }
+            nameColumn = name;
+            phoneColumn = phone;
+            cellColumn = cell;
+            return true;
+        }
+
+        private static String column(List<String> row, int i) {
+            return i >= 0 && i < row.size() ? row.get(i).trim() : "";
+        }
+
+        // the fields of the next row, or null at the end of the file
+        private List<String> row() throws IOException {
+            int c = in.read();
+            if (c < 0) {
+                return null;
+            }
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            while (true) {
+                if (c < 0) {
+                    if (quoted) {
+                        throw new IllegalArgumentException("Unclosed quote at the end of the file");
+                    }
+                    fields.add(field.toString());
+                    return fields;
+                }
+                if (quoted) {
+                    if (c == '"') {
+                        in.mark(1);
+                        if (in.read() == '"') {
+                            field.append('"'); // "" inside quotes is one quote
+                        } else {
+                            in.reset();
+                            quoted = false;
+                        }
+                    } else {
+                        if (c == '\n') line++;
+                        field.append((char) c);
+                    }
+                } else if (c == '"' && field.length() == 0) {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n' || c == '\r') {
+                    if (c == '\r') {
+                        in.mark(1);
+                        if (in.read() != '\n') in.reset();
+                    }
+                    line++;
+                    fields.add(field.toString());
+                    return fields;
+                } else {
+                    field.append((char) c);
+                }
+                if (field.length() > MAX_FIELD_CHARS) {
+                    throw new IllegalArgumentException("Field too long on line " + line);
+                }
+                c = in.read();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // vCard 2.1, 3.0 and 4.0: FN (or N) is the name, TEL;TYPE=CELL the cell phone and any other TEL
+    // the phone. a card with only one number uses it for both
+    private static class VCardReader implements EntryReader {
+        private final BufferedReader in;
+        private String pending; // a line we read ahead to check for folding
+        private long line;
+
+        VCardReader(BufferedReader in) {
+            this.in = in;
+        }
+
+        @Override
+        public Entry next() throws IOException {
+            String l;
+            // skip to the next card
+            do {
+                l = unfoldedLine(MAX_FIELD_CHARS);
+            } while (l != null && !l.trim().equalsIgnoreCase("BEGIN:VCARD"));
+            if (l == null) {
+                return null;
+            }
+            String fn = null;
+            String n = null;
+            String phone = "";
+            String cell = "";
+            byte[] photo = null;
+            while (true) {
+                l = unfoldedLine(MAX_PHOTO_CHARS);
+                if (l == null) {
+                    throw new IllegalArgumentException("Card without END:VCARD at line " + line);
+                }
+                if (l.trim().equalsIgnoreCase("END:VCARD")) {
+                    break;
+                }
+                int colon = l.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String[] params = l.substring(0, colon).split(";");
+                String property = params[0].toUpperCase(Locale.ROOT);
+                int dot = property.indexOf('.');
+                if (dot >= 0) {
+                    property = property.substring(dot + 1); // item1.TEL is just TEL
+                }
+                String value = l.substring(colon + 1);
+                String paramText = l.substring(0, colon).toUpperCase(Locale.ROOT);
+                switch (property) {
+                    case "FN":
+                        fn = unescape(value);
+                        break;
+                    case "N":
+                        n = nameFromN(value);
+                        break;
+                    case "TEL":
+                        String number = value.startsWith("tel:") ? value.substring(4) : value;
+                        if (paramText.contains("CELL")) {
+                            if (cell.isEmpty()) cell = number.trim();
+                        } else if (phone.isEmpty()) {
+                            phone = number.trim();
+                        }
+                        break;
+                    case "PHOTO":
+                        photo = decodePhoto(paramText, value);
+                        break;
+                    default:
+                        // nothing we keep
+                }
+            }
+            String name = fn != null && !fn.isEmpty() ? fn : n != null ? n : "";
+            if (phone.isEmpty()) phone = cell;
+            if (cell.isEmpty()) cell = phone;
+            return new Entry(name.trim(), phone, cell, photo);
+        }
+
+        // a logical line: lines starting with a space or tab carry on the one before
+        private String unfoldedLine(int maxChars) throws IOException {
+            String first = pending != null ? pending : in.readLine();
+            pending = null;
+            if (first == null) {
+                return null;
+            }
+            line++;
+            StringBuilder sb = null;
+            String next;
+            while ((next = in.readLine()) != null && !next.isEmpty() && (next.charAt(0) == ' ' || next.charAt(0) == '\t')) {
+                line++;
+                if (sb == null) sb = new StringBuilder(first);
+                sb.append(next, 1, next.length());
+                if (sb.length() > maxChars) {
+                    throw new IllegalArgumentException("Line too long at line " + line);
+                }
+            }
+            pending = next;
+            return sb != null ? sb.toString() : first;
+        }
+
+        // N is family;given;additional;prefix;suffix
+        private static String nameFromN(String value) {
+            String[] parts = value.split(";", -1);
+            StringBuilder name = new StringBuilder();
+            for (int i : new int[] { 3, 1, 2, 0, 4 }) {
+                if (i < parts.length && !parts[i].isEmpty()) {
+                    if (name.length() > 0) name.append(' ');
+                    name.append(unescape(parts[i]));
+                }
+            }
+            return name.toString();
+        }
+
+        private static byte[] decodePhoto(String params, String value) {
+            String data;
+            if (value.startsWith("data:")) {
+                int comma = value.indexOf(',');
+                if (comma < 0 || !value.substring(0, comma).contains("base64")) {
+                    return null;
+                }
+                data = value.substring(comma + 1); // vCard 4: data:image/jpeg;base64,...
+            } else if (params.contains("ENCODING=B") || params.contains("BASE64")) {
+                data = value;
+            } else {
+                return null; // a link to a photo somewhere else, we don't go fetching those
+            }
+            try {
+                return Base64.getMimeDecoder().decode(data);
+            } catch (IllegalArgumentException e) {
+                return null; // a broken photo shouldn't lose the contact
+            }
+        }
+
+        private static String unescape(String value) {
+            if (value.indexOf('\\') < 0) {
+                return value;
+            }
+            StringBuilder sb = new StringBuilder(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' && i + 1 < value.length()) {
+                    char e = value.charAt(++i);
+                    sb.append(e == 'n' || e == 'N' ? '\n' : e);
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    public static void writeCsvHeader(Writer out) throws IOException {
+        out.write("id,name,phone,cellPhone\r\n");
+    }
+
+    public static void writeCsv(Contact contact, Writer out) throws IOException {
+        out.write(Long.toString(contact.getId()));
+        out.write(',');
+        writeCsvField(contact.getName(), out);
+        out.write(',');
+        writeCsvField(contact.getPhone(), out);
+        out.write(',');
+        writeCsvField(contact.getCellPhone(), out);
+        out.write("\r\n");
+    }
+
+    private static void writeCsvField(String value, Writer out) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+
+    // one vCard 3.0. photo is the stored photo's bytes (null if none), written as folded base64
+    public static void writeVCard(Contact contact, ByteBuffer photo, Writer out) throws IOException {
+        out.write("BEGIN:VCARD\r\nVERSION:3.0\r\nFN:");
+        out.write(escape(contact.getName()));
+        out.write("\r\nN:;");
+        out.write(escape(contact.getName()));
+        out.write(";;;\r\nTEL;TYPE=HOME,VOICE:");
+        out.write(escape(contact.getPhone()));
+        out.write("\r\nTEL;TYPE=CELL:");
+        out.write(escape(contact.getCellPhone()));
+        out.write("\r\n");
+        if (photo != null) {
+            String type = contact.getPhotoType() != null ? contact.getPhotoType() : "image/jpeg";
+            out.write("PHOTO;ENCODING=b;TYPE=");
+            out.write(type.substring(type.indexOf('/') + 1).toUpperCase(Locale.ROOT));
+            out.write(":\r\n");
+            // a few bytes at a time so a big photo is never one big string
+            Base64.Encoder base64 = Base64.getEncoder();
+            byte[] chunk = new byte[PHOTO_LINE_BYTES];
+            while (photo.hasRemaining()) {
+                int n = Math.min(chunk.length, photo.remaining());
+                photo.get(chunk, 0, n);
+                out.write(' ');
+                out.write(base64.encodeToString(n == chunk.length ? chunk : Arrays.copyOf(chunk, n)));
+                out.write("\r\n");
+            }
+        }
+        out.write("END:VCARD\r\n");
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace(",", "\\,").replace(";", "\\;")
+                .replace("\r\n", "\\n").replace("\n", "\\n").replace("\r", "\\n");
+    }
+}
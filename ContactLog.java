@@ -0,0 +1,396 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+// append-only persistence for the phone book
+//
+// contacts.dat holds the last full snapshot and every change after that is appended
+// as one small record to contacts.log, so a write only costs as much as the change.
+// every log file starts with a generation number and the snapshot remembers the last
+// generation it already contains, so replaying after a crash never applies a change twice.
+public class ContactLog {
+    private static final int LOG_MAGIC = 0x50424C47; // "PBLG"
+    private static final byte RECORD_ADD_INLINE_PHOTO = 1; // older logs, photo bytes inside the record
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_ADD_UNTYPED_PHOTO = 3; // photo hash but no MIME type
+    private static final byte RECORD_ADD = 4; // photo hash and MIME type
+    private static final byte RECORD_BATCH = 5; // several deletes and adds that happen all together or not at all
+    private static final long COMPACT_MIN_BYTES = 1024 * 1024; // don't bother compacting tiny logs
+    private static final Metrics.Histogram APPEND_TIME = Metrics.histogram("phonebook_log_append_duration_seconds",
+            "Writing one change to the log and syncing it to disk");
+    private static final Metrics.Histogram LOAD_TIME = Metrics.histogram("phonebook_log_load_duration_seconds",
+            "Reading the snapshot and replaying the logs after it");
+    private static final Metrics.Histogram COMPACT_TIME = Metrics.histogram("phonebook_compaction_duration_seconds",
+            "Writing a new snapshot in the background");
+
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "contact-log-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private FileChannel log; // the log we are currently appending to
+    private long generation; // generation of the current log
+    private long snapshotBytes; // size of the last snapshot, used to decide when to compact
+    private long highestId; // biggest id ever handed out, so deleted ids never come back
+    private boolean compacting;
+    private boolean legacySnapshot; // contacts.dat is still in the old Java serialization format
+
+    public ContactLog(String snapshotFile) {
+        this.snapshotFile = Paths.get(snapshotFile);
+        this.logFile = Paths.get(snapshotFile.replaceFirst("\\.dat$", "") + ".log");
+    }
+
+    // read the snapshot and replay every log written after it, keyed by contact id in insertion order
+    public synchronized Map<Long, Contact> load() throws IOException {
+        long start = System.nanoTime();
+        Map<Long, Contact> contacts = new LinkedHashMap<>();
+        long covered = 0;
+        if (Files.exists(snapshotFile)) {
+            Snapshot snapshot = Snapshot.read(snapshotFile);
+            covered = snapshot.covered;
+            highestId = snapshot.highestId;
+            legacySnapshot = snapshot.legacy;
+            // files from before ids existed get them in list order, which is the same on every start
+            for (Contact contact : snapshot.contacts) {
+                if (contact.getId() == 0) {
+                    contact = contact.withId(highestId + 1);
+                }
+                highestId = Math.max(highestId, contact.getId());
+                contacts.put(contact.getId(), contact);
+            }
+            snapshotBytes = Files.size(snapshotFile);
+        }
+
+        // rotated logs (contacts.log.<gen>) first, then the live one
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        Path dir = logFile.toAbsolutePath().getParent();
+        String prefix = logFile.getFileName() + ".";
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path p : stream) {
+                try {
+                    logs.put(Long.parseLong(p.getFileName().toString().substring(prefix.length())), p);
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+
+        long lastGeneration = covered;
+        for (Path p : logs.values()) {
+            lastGeneration = Math.max(lastGeneration, replay(p, contacts, covered, false));
+        }
+        if (Files.exists(logFile)) {
+            lastGeneration = Math.max(lastGeneration, replay(logFile, contacts, covered, true));
+        }
+
+        // anything the snapshot already has can go
+        for (Path p : logs.values()) {
+            if (readGeneration(p) <= covered) {
+                Files.deleteIfExists(p);
+            }
+        }
+
+        openLog(lastGeneration);
+        LOAD_TIME.recordSince(start);
+        return contacts;
+    }
+
+    // true if load() read an old style contacts.dat, which the next compaction will replace
+    public synchronized boolean hasLegacySnapshot() {
+        return legacySnapshot;
+    }
+
+    // the biggest id that load() saw, including contacts that were deleted since
+    public synchronized long getHighestId() {
+        return highestId;
+    }
+
+    // apply one log file on top of the list, returns its generation
+    private long replay(Path file, Map<Long, Contact> contacts, long covered, boolean live) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(12);
+            if (!readFully(ch, header)) {
+                // crashed while creating the file, nothing in it yet
+                ch.truncate(0);
+                return covered;
+            }
+            header.flip();
+            if (header.getInt() != LOG_MAGIC) {
+                throw new IOException("Not a contact log: " + file);
+            }
+            long gen = header.getLong();
+            boolean skip = gen <= covered; // snapshot already contains these changes
+
+            long good = ch.position();
+            ByteBuffer recordHeader = ByteBuffer.allocate(8);
+            while (true) {
+                recordHeader.clear();
+                if (!readFully(ch, recordHeader)) break;
+                recordHeader.flip();
+                int length = recordHeader.getInt();
+                int crc = recordHeader.getInt();
+                if (length <= 0 || length > ch.size() - ch.position()) break; // torn write
+                ByteBuffer body = ByteBuffer.allocate(length);
+                if (!readFully(ch, body)) break;
+                CRC32 check = new CRC32();
+                check.update(body.array(), 0, length);
+                if ((int) check.getValue() != crc) break; // torn write
+
+                if (!skip) {
+                    apply(body.array(), contacts);
+                }
+                good = ch.position();
+            }
+
+            if (good < ch.size()) {
+                Log.warn("Discarding %d bytes of incomplete log data in %s", ch.size() - good, file);
+                ch.truncate(good);
+                if (live) ch.force(true);
+            }
+            return gen;
+        }
+    }
+
+    private void apply(byte[] record, Map<Long, Contact> contacts) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        if (type == RECORD_ADD || type == RECORD_ADD_UNTYPED_PHOTO || type == RECORD_ADD_INLINE_PHOTO) {
+            Contact contact = type == RECORD_ADD_INLINE_PHOTO ? readInlinePhotoContact(in) : readContact(in, type == RECORD_ADD);
+            contacts.put(contact.getId(), contact);
+            highestId = Math.max(highestId, contact.getId());
+        } else if (type == RECORD_DELETE) {
+            contacts.remove(in.readLong());
+        } else if (type == RECORD_BATCH) {
+            // one record with one CRC, so a torn batch is thrown away whole
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] inner = new byte[in.readInt()];
+                in.readFully(inner);
+                apply(inner, contacts);
+            }
+        } else {
+            throw new IOException("Unknown log record type " + type);
+        }
+    }
+
+    // log a new contact, it must already have its id. also used to log a changed contact,
+    // replaying an add for an id we already have just replaces it
+    public void appendAdd(Contact contact) throws IOException {
+        append(addRecord(contact));
+    }
+
+    // log removing a contact
+    public void appendDelete(long id) throws IOException {
+        append(deleteRecord(id));
+    }
+
+    // log deleting and adding many contacts as one record, with one write and one sync.
+    // after a crash it's either all replayed or none of it
+    public void appendBatch(Collection<Long> deletes, Collection<Contact> adds) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_BATCH);
+        out.writeInt(deletes.size() + adds.size());
+        for (long id : deletes) {
+            byte[] record = deleteRecord(id);
+            out.writeInt(record.length);
+            out.write(record);
+        }
+        for (Contact contact : adds) {
+            byte[] record = addRecord(contact);
+            out.writeInt(record.length);
+            out.write(record);
+        }
+        append(bytes.toByteArray());
+    }
+
+    private static byte[] addRecord(Contact contact) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_ADD);
+        writeContact(out, contact);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] deleteRecord(long id) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_DELETE);
+        out.writeLong(id);
+        return bytes.toByteArray();
+    }
+
+    private synchronized void append(byte[] record) throws IOException {
+        long start = System.nanoTime();
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(record.length).putInt((int) crc.getValue()).flip();
+        ByteBuffer[] buffers = { header, ByteBuffer.wrap(record) }; // one write, no extra copy of the record
+        while (buffers[1].hasRemaining()) {
+            log.write(buffers);
+        }
+        log.force(false); // make sure it's on disk before we tell the browser it worked
+        APPEND_TIME.recordSince(start);
+    }
+
+    // start a background compaction if the log has grown past the snapshot.
+    // the caller passes the current contacts and must not log anything else until we return;
+    // we only copy the references, not the photos
+    public synchronized void maybeCompact(Collection<Contact> contacts, long highestId) throws IOException {
+        long logBytes = log.size();
+        if (logBytes < COMPACT_MIN_BYTES || logBytes < snapshotBytes) {
+            return;
+        }
+        compact(contacts, highestId);
+    }
+
+    // start a background compaction now, whatever the size of the log
+    public synchronized void compact(Collection<Contact> contacts, long highestId) throws IOException {
+        if (compacting) {
+            return;
+        }
+        compacting = true;
+        List<Contact> copy = new ArrayList<>(contacts);
+        long covered = generation;
+        rotate();
+        compactor.execute(() -> writeSnapshot(copy, covered, highestId));
+    }
+
+    // write a fresh snapshot next to the old one and swap it in atomically
+    private void writeSnapshot(List<Contact> contacts, long covered, long highestId) {
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        long start = System.nanoTime();
+        try {
+            Snapshot.write(tmp, covered, highestId, contacts); // synced to disk before we return
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(rotatedLog(covered));
+            synchronized (this) {
+                snapshotBytes = Files.size(snapshotFile);
+                legacySnapshot = false;
+            }
+            COMPACT_TIME.recordSince(start);
+        } catch (IOException e) {
+            // the rotated log is still there, so nothing is lost - we'll just replay it next time
+            Log.error("Error compacting contacts: %s", e.getMessage());
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    // move the live log aside and start a new generation
+    private void rotate() throws IOException {
+        log.force(true);
+        log.close();
+        Files.move(logFile, rotatedLog(generation), StandardCopyOption.ATOMIC_MOVE);
+        openLog(generation);
+    }
+
+    private Path rotatedLog(long gen) {
+        return logFile.resolveSibling(logFile.getFileName() + "." + gen);
+    }
+
+    // open the live log, creating it with the next generation if needed
+    private void openLog(long lastGeneration) throws IOException {
+        if (Files.exists(logFile) && Files.size(logFile) >= 12) {
+            generation = readGeneration(logFile);
+            log = FileChannel.open(logFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            return;
+        }
+        generation = lastGeneration + 1;
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(LOG_MAGIC).putLong(generation).flip();
+        while (header.hasRemaining()) {
+            log.write(header);
+        }
+        log.force(true);
+    }
+
+    private static long readGeneration(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            in.readInt();
+            return in.readLong();
+        } catch (EOFException e) {
+            return 0;
+        }
+    }
+
+    private static boolean readFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf) < 0) return false;
+        }
+        return true;
+    }
+
+    static void writeContact(DataOutputStream out, Contact contact) throws IOException {
+        out.writeLong(contact.getId());
+        writeString(out, contact.getName());
+        writeString(out, contact.getPhone());
+        writeString(out, contact.getCellPhone());
+        out.writeBoolean(contact.hasPhoto());
+        if (contact.hasPhoto()) {
+            writeString(out, contact.getPhotoHash());
+            writeString(out, contact.getPhotoType());
+        }
+    }
+
+    static Contact readContact(DataInputStream in, boolean withPhotoType) throws IOException {
+        long id = in.readLong();
+        String name = readString(in);
+        String phone = readString(in);
+        String cellPhone = readString(in);
+        String photoHash = null;
+        String photoType = null;
+        if (in.readBoolean()) {
+            photoHash = readString(in);
+            photoType = withPhotoType ? readString(in) : null; // the store fills it in for older records
+        }
+        return new Contact(name, phone, cellPhone, photoHash, photoType).withId(id);
+    }
+
+    // the record layout from before photos moved to the PhotoStore
+    private static Contact readInlinePhotoContact(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        String name = readString(in);
+        String phone = readString(in);
+        String cellPhone = readString(in);
+        byte[] photo = null;
+        int photoLength = in.readInt();
+        if (photoLength >= 0) {
+            photo = new byte[photoLength];
+            in.readFully(photo);
+        }
+        return Contact.withInlinePhoto(name, phone, cellPhone, photo).withId(id);
+    }
+
+    // length prefixed UTF-8, writeUTF can't do more than 64KB
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
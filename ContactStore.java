@@ -0,0 +1,328 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// all the contacts, shared by every handler
+//
+// contacts are looked up by their id, which never changes and is never reused, so a page that
+// was rendered before someone else deleted a contact still points at the right people.
+// reads go straight to the concurrent maps and never wait; writers take one lock so that
+// the order in the log is the same as the order the changes were made in memory.
+public class ContactStore {
+    private final ContactLog log; // null if we only keep contacts in memory
+    private final PhotoStore photos;
+    private final ConcurrentHashMap<Long, Contact> byId = new ConcurrentHashMap<>(); // O(1) lookups
+    private final ConcurrentSkipListMap<Long, Contact> ordered = new ConcurrentSkipListMap<>(); // listing order
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private long lastId; // only touched while holding writeLock
+    private volatile long version; // goes up with every change, once the listeners have seen it
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private volatile boolean loadFailed; // what's in memory may be only part of the book, nothing may be written
+
+    // something that keeps its own view of the contacts up to date, like a search index.
+    // called while the store holds its write lock, so calls arrive one at a time and in order
+    public interface Listener {
+        void contactAdded(Contact contact);
+
+        void contactRemoved(Contact contact);
+    }
+
+    public ContactStore(ContactLog log, PhotoStore photos) {
+        this.log = log;
+        this.photos = photos;
+    }
+
+    // fill the store from disk, call this once. it may run in the background while the server
+    // starts; awaitLoaded() tells you when it's done (whether it worked or not). if it didn't, the
+    // store refuses every change from then on (see loadFailed()): writing to half a book, or
+    // compacting it, would make the missing half gone for good
+    public void load() throws IOException {
+        if (log == null) {
+            loaded.countDown();
+            return;
+        }
+        writeLock.lock();
+        try {
+            Map<Long, Contact> loaded = log.load();
+            boolean migrated = false;
+            Set<String> photosInUse = new HashSet<>();
+            for (Contact contact : loaded.values()) {
+                // old data files kept photos inside the contact, move them out
+                if (contact.getInlinePhoto() != null) {
+                    String hash = photos.put(contact.getInlinePhoto());
+                    contact = contact.withPhoto(hash, photos.detectType(hash));
+                    migrated = true;
+                } else if (contact.hasPhoto() && contact.getPhotoType() == null) {
+                    contact = contact.withPhoto(contact.getPhotoHash(), photos.detectType(contact.getPhotoHash()));
+                    migrated = true;
+                }
+                if (contact.hasPhoto()) {
+                    photosInUse.add(contact.getPhotoHash());
+                }
+                byId.put(contact.getId(), contact);
+                ordered.put(contact.getId(), contact);
+                notifyAdded(contact);
+            }
+            lastId = log.getHighestId();
+            if (migrated || log.hasLegacySnapshot()) {
+                // so the photo bytes aren't read again next time, and the file is in the current format
+                log.compact(ordered.values(), lastId);
+            }
+            try {
+                int removed = photos.removeUnused(photosInUse);
+                if (removed > 0) {
+                    Log.info("Removed %d photos that no contact uses any more", removed);
+                }
+            } catch (IOException e) {
+                Log.warn("Couldn't clear out unused photos: %s", e.getMessage()); // the contacts are all there, that's what counts
+            }
+        } catch (IOException | RuntimeException e) {
+            loadFailed = true;
+            throw e;
+        } finally {
+            writeLock.unlock();
+            loaded.countDown();
+        }
+    }
+
+    // true if load() went wrong part way, changes are refused
+    public boolean loadFailed() {
+        return loadFailed;
+    }
+
+    // wait for load() to finish, returns false if it's still going after the timeout
+    public boolean awaitLoaded(long timeout, TimeUnit unit) throws InterruptedException {
+        return loaded.await(timeout, unit);
+    }
+
+    // save a new contact and give it an id, returns the stored copy
+    public Contact add(Contact contact) throws IOException {
+        writeLock.lock();
+        try {
+            checkWritable();
+            Contact stored = contact.withId(lastId + 1);
+            if (log != null) {
+                log.appendAdd(stored); // only counts once it's on disk
+            }
+            lastId = stored.getId();
+            byId.put(stored.getId(), stored);
+            ordered.put(stored.getId(), stored);
+            notifyAdded(stored);
+            compactIfNeeded();
+            return stored;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // delete a contact, returns what was removed or null if there was no such id
+    public Contact remove(long id) throws IOException {
+        writeLock.lock();
+        try {
+            checkWritable();
+            Contact existing = byId.get(id);
+            if (existing == null) {
+                return null;
+            }
+            if (log != null) {
+                log.appendDelete(id);
+            }
+            byId.remove(id);
+            ordered.remove(id);
+            notifyRemoved(existing);
+            compactIfNeeded();
+            return existing;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // store a contact under the id it already has, replacing any contact with that id. for copying
+    // contacts from somewhere else, like a replica following its primary
+    public Contact put(Contact contact) throws IOException {
+        writeLock.lock();
+        try {
+            checkWritable();
+            if (log != null) {
+                log.appendAdd(contact);
+            }
+            Contact existing = byId.put(contact.getId(), contact);
+            ordered.put(contact.getId(), contact);
+            lastId = Math.max(lastId, contact.getId());
+            if (existing != null) {
+                notifyRemoved(existing);
+            }
+            notifyAdded(contact);
+            compactIfNeeded();
+            return contact;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // change a contact, keeping its id (and its photo unless the new one has its own).
+    // returns the stored copy, or null if there was no such id
+    public Contact update(long id, Contact contact) throws IOException {
+        writeLock.lock();
+        try {
+            checkWritable();
+            Contact existing = byId.get(id);
+            if (existing == null) {
+                return null;
+            }
+            if (!contact.hasPhoto() && existing.hasPhoto()) {
+                contact = contact.withPhoto(existing.getPhotoHash(), existing.getPhotoType());
+            }
+            Contact stored = contact.withId(id);
+            if (log != null) {
+                log.appendAdd(stored); // an add for an id we already have replaces it
+            }
+            byId.put(id, stored);
+            ordered.put(id, stored);
+            notifyRemoved(existing);
+            notifyAdded(stored);
+            compactIfNeeded();
+            return stored;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // delete and add many contacts in one go, with a single log write. either all of it happens or,
+    // if any of the ids to delete doesn't exist (NoSuchElementException), none of it does.
+    // returns the stored copies of the added contacts, with their ids
+    public List<Contact> apply(Collection<Long> deletes, List<Contact> adds) throws IOException {
+        writeLock.lock();
+        try {
+            checkWritable();
+            Set<Long> toDelete = new LinkedHashSet<>(deletes);
+            for (long id : toDelete) {
+                if (!byId.containsKey(id)) {
+                    throw new NoSuchElementException("No contact with id " + id);
+                }
+            }
+            List<Contact> stored = new ArrayList<>(adds.size());
+            long id = lastId;
+            for (Contact contact : adds) {
+                stored.add(contact.withId(++id));
+            }
+            if (log != null) {
+                log.appendBatch(toDelete, stored);
+            }
+            lastId = id;
+            for (long deleted : toDelete) {
+                Contact existing = byId.remove(deleted);
+                ordered.remove(deleted);
+                notifyRemoved(existing);
+            }
+            for (Contact contact : stored) {
+                byId.put(contact.getId(), contact);
+                ordered.put(contact.getId(), contact);
+                notifyAdded(contact);
+            }
+            compactIfNeeded();
+            return stored;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // start telling a listener about changes. it's first told about every contact we already have
+    public void addListener(Listener listener) {
+        addListener(listener, true);
+    }
+
+    // the same, but with withExisting false it only hears about changes from now on
+    public void addListener(Listener listener, boolean withExisting) {
+        writeLock.lock();
+        try {
+            if (withExisting) {
+                for (Contact contact : ordered.values()) {
+                    listener.contactAdded(contact);
+                }
+            }
+            listeners.add(listener);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // a copy of every contact, taken while nothing can change. atTheSameTime runs inside that same
+    // moment, so a listener's position read there says exactly which changes the copy already has
+    public List<Contact> copyAll(Runnable atTheSameTime) {
+        writeLock.lock();
+        try {
+            atTheSameTime.run();
+            return new ArrayList<>(ordered.values());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void notifyAdded(Contact contact) {
+        for (Listener listener : listeners) {
+            listener.contactAdded(contact);
+        }
+        version++; // only written while holding writeLock
+    }
+
+    private void notifyRemoved(Contact contact) {
+        for (Listener listener : listeners) {
+            listener.contactRemoved(contact);
+        }
+        version++;
+    }
+
+    private void checkWritable() throws IOException {
+        if (loadFailed) {
+            throw new IOException("The phone book didn't load completely, not taking changes");
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (log != null) {
+            log.maybeCompact(ordered.values(), lastId);
+        }
+    }
+
+    public Contact get(long id) {
+        return byId.get(id);
+    }
+
+    // which state the contacts are in: anything worked out from them at one version (a rendered
+    // page, say) is still right while the version is the same. read it before looking at them,
+    // what you see is then at least that new
+    public long version() {
+        return version;
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    // every contact in the order they were added. this is a live view, so it's fine to
+    // iterate while others add and delete - you just may or may not see their changes
+    public Collection<Contact> all() {
+        return ordered.values();
+    }
+
+    // the contacts added after the one with this id (0 for all of them), in the same order and
+    // just as live as all(). it works even if that contact was deleted in the meantime, so an
+    // id makes a cursor that's good for paging through the book
+    public Collection<Contact> after(long id) {
+        return ordered.tailMap(id, false).values();
+    }
+}
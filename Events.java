@@ -0,0 +1,289 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// changes as they happen, for open pages: Server-Sent Events on /events
+//
+// a page opens /events?since=<id> with the id its table was rendered at, and from then on gets an
+// "added" event with the contact for every add and a "removed" one with the id for every delete,
+// and patches its table with them. nobody holds a thread while they wait: the handler sends the
+// headers and returns with the response left open, and a page is only written to when there's
+// something for it, by one of a few writer threads. each change is turned into text once,
+// however many pages are watching.
+//
+// a page that falls too far behind (it stopped reading) is cut off rather than queued for, and so
+// is one whose write has been stuck for WRITE_TIMEOUT_SECONDS (a laptop that went to sleep): the
+// JDK's server has no write timeout, so without that the writer would wait on it for good. the
+// writer is interrupted, which closes the connection under it. the browser reconnects by itself
+// with the id of the last event it got, and is sent what it missed if that's among the last RECENT
+// changes, or a "reload" event if it isn't (or we've restarted since).
+public class Events implements ContactStore.Listener, HttpHandler {
+    private static final int RECENT = 512; // changes kept for pages that reconnect
+    private static final int MAX_PENDING = 2 * RECENT; // events waiting for one page before it's cut off, room for a catch up
+    private static final long HEARTBEAT_SECONDS = 15; // finds connections that are gone, keeps proxies from timing out
+    private static final long WRITE_TIMEOUT_SECONDS = 10; // longest one write to a page may take
+    private static final int WRITERS = 4; // a page that's stopped reading holds one for WRITE_TIMEOUT_SECONDS at most
+    private static final byte[] HELLO = "retry: 2000\n\n".getBytes(StandardCharsets.UTF_8); // reconnect after 2s
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RELOAD = "event: reload\ndata:\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final Function<Contact, String> toJson; // what an "added" event carries
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36); // ids from another run mean nothing here
+    private final Change[] recent = new Change[RECENT]; // by sequence number % RECENT
+    private long last; // the latest change's sequence number
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet(); // changed only while holding this
+    private final long writeTimeout; // nanoseconds
+    private final ExecutorService writers = Executors.newFixedThreadPool(WRITERS, PhoneBookServer.namedThreads("events"));
+    // heartbeats and the watchdog, on their own thread: with every writer stuck in a write, they're
+    // what gets one free again
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(PhoneBookServer.namedThreads("events-timer"));
+    private final Metrics.Counter cutOff;
+
+    private static final class Change {
+        final long seq;
+        final boolean added;
+        final Contact contact;
+        byte[] text; // made when first needed, with nobody watching (loading the book) it never is
+
+        Change(long seq, boolean added, Contact contact) {
+            this.seq = seq;
+            this.added = added;
+            this.contact = contact;
+        }
+    }
+
+    public Events(Function<Contact, String> toJson) {
+        this(toJson, TimeUnit.SECONDS.toMillis(WRITE_TIMEOUT_SECONDS));
+    }
+
+    // the tests use a shorter write timeout, so they don't wait WRITE_TIMEOUT_SECONDS for it
+    Events(Function<Contact, String> toJson, long writeTimeoutMillis) {
+        this.toJson = toJson;
+        this.writeTimeout = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+        timer.scheduleAtFixedRate(() -> {
+            synchronized (this) {
+                for (Subscriber subscriber : subscribers) {
+                    subscriber.send(HEARTBEAT);
+                }
+            }
+        }, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+        long check = Math.max(10, Math.min(1000, writeTimeoutMillis / 4));
+        timer.scheduleWithFixedDelay(() -> {
+            long now = System.nanoTime();
+            for (Subscriber subscriber : subscribers) {
+                subscriber.checkWrite(now);
+            }
+        }, check, check, TimeUnit.MILLISECONDS);
+        cutOff = Metrics.counter("phonebook_events_cut_off_total", "Event streams closed because the page fell too far behind or stopped taking writes");
+        Metrics.gauge("phonebook_events_subscribers", "Pages listening on /events", subscribers::size);
+    }
+
+    // the id of the latest change, for a page to pass back as since=
+    public synchronized String lastId() {
+        return epoch + "-" + last;
+    }
+
+    @Override
+    public void contactAdded(Contact contact) {
+        publish(true, contact);
+    }
+
+    @Override
+    public void contactRemoved(Contact contact) {
+        publish(false, contact);
+    }
+
+    // the store calls us one change at a time, in order. sending only queues, so it's quick
+    private synchronized void publish(boolean added, Contact contact) {
+        Change change = new Change(++last, added, contact);
+        recent[(int) (change.seq % RECENT)] = change;
+        if (!subscribers.isEmpty()) {
+            byte[] text = text(change);
+            for (Subscriber subscriber : subscribers) {
+                subscriber.send(text);
+            }
+        }
+    }
+
+    private byte[] text(Change change) {
+        if (change.text == null) {
+            String data = change.added ? toJson.apply(change.contact) : "{\"id\":" + change.contact.getId() + "}";
+            change.text = ("id: " + epoch + "-" + change.seq + "\nevent: " + (change.added ? "added" : "removed")
+                    + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+        }
+        return change.text;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        // the browser sends the last id it saw when it reconnects, a fresh page has it in the URL
+        String since = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+        if (since == null) {
+            since = PhoneBookServer.parseQueryParams(exchange.getRequestURI().getQuery()).get("since");
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=UTF-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(200, 0);
+
+        // left open: the writers send to it from now on, and close it if it goes wrong
+        Subscriber subscriber = new Subscriber(exchange);
+        synchronized (this) {
+            subscriber.send(HELLO);
+            catchUp(subscriber, since);
+            subscribers.add(subscriber);
+        }
+    }
+
+    // what the page missed since the id it has, or tell it to reload if we don't have all of that
+    private void catchUp(Subscriber subscriber, String since) {
+        if (since == null) {
+            return;
+        }
+        long from;
+        try {
+            int dash = since.lastIndexOf('-');
+            from = since.substring(0, Math.max(dash, 0)).equals(epoch) ? Long.parseLong(since.substring(dash + 1)) : -1;
+        } catch (NumberFormatException e) {
+            from = -1;
+        }
+        if (from < 0 || from > last || last - from > RECENT) {
+            subscriber.send(RELOAD);
+            return;
+        }
+        for (long seq = from + 1; seq <= last; seq++) {
+            subscriber.send(text(recent[(int) (seq % RECENT)]));
+        }
+    }
+
+    // one open page. events queue here and a writer sends them, so a slow page only holds up itself
+    private final class Subscriber implements Runnable {
+        private final HttpExchange exchange;
+        private final OutputStream out;
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+        private boolean writing; // a writer has it, or is about to
+        private boolean closing;
+        private Thread writer; // the writer while it's in a write or flush to this page, else null
+        private long writeStarted; // System.nanoTime() when that began
+
+        Subscriber(HttpExchange exchange) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+        }
+
+        // queue text, never waits
+        void send(byte[] text) {
+            synchronized (this) {
+                if (closing) {
+                    return;
+                }
+                if (pending.size() >= MAX_PENDING) {
+                    cutOff(); // it reconnects and catches up, or reloads
+                } else {
+                    pending.add(text);
+                }
+                if (writing) {
+                    return;
+                }
+                writing = true;
+            }
+            writers.execute(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    byte[] text;
+                    synchronized (this) {
+                        text = pending.poll();
+                        if (text == null && closing) {
+                            break;
+                        }
+                    }
+                    if (text != null) {
+                        write(text);
+                        continue;
+                    }
+                    write(null); // flush: everything queued so far goes out together
+                    synchronized (this) {
+                        if (pending.isEmpty() && !closing) {
+                            writing = false;
+                            return;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // the page has gone
+            }
+            synchronized (this) {
+                closing = true;
+                pending.clear();
+            }
+            close();
+        }
+
+        // text, or a flush if null, timed so checkWrite can see a write that isn't going anywhere
+        private void write(byte[] text) throws IOException {
+            synchronized (this) {
+                if (closing) {
+                    throw new IOException("Cut off"); // and it may have been interrupted, don't start anything
+                }
+                writer = Thread.currentThread();
+                writeStarted = System.nanoTime();
+            }
+            try {
+                if (text != null) {
+                    out.write(text);
+                } else {
+                    out.flush();
+                }
+            } finally {
+                synchronized (this) {
+                    writer = null;
+                    Thread.interrupted(); // an interrupt meant for this page mustn't hit the writer's next one
+                }
+            }
+        }
+
+        // by the watchdog: give up on a write that's been stuck too long
+        synchronized void checkWrite(long now) {
+            if (writer != null && !closing && now - writeStarted > writeTimeout) {
+                cutOff();
+            }
+        }
+
+        // stop sending to this page. a writer stuck in a write to it is interrupted, which closes
+        // the connection (the JDK's blocking socket channel, or ours in NioHttpServer), so the write
+        // fails and the writer closes the exchange and moves on
+        private synchronized void cutOff() {
+            cutOff.increment();
+            pending.clear();
+            closing = true;
+            if (writer != null) {
+                writer.interrupt();
+            }
+        }
+
+        private void close() {
+            synchronized (Events.this) {
+                subscribers.remove(this);
+            }
+            exchange.close();
+        }
+    }
+}
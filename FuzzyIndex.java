@@ -0,0 +1,382 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// ranked name search that forgives typos: "jonh smit" still finds John Smith, first
+//
+// names are split into words and every distinct word goes into a dictionary once, however many
+// contacts share it, with a sorted list of those contacts' ids. a query word is looked up in the
+// dictionary, not in the contacts: exactly, as the start of a word, within an edit distance or two
+// (through a BK-tree, so only a small part of the dictionary is compared) and by how it sounds
+// (Soundex). each of those gives the dictionary word a score, and a contact scores the average of
+// its best word for each query word. the best k contacts are kept in a small heap, so a broad
+// query over a big book never sorts it all.
+//
+// like SearchIndex, removing a contact only forgets its words; its id is dropped from the lists
+// once enough of them are stale, and words nobody has any more stay in the dictionary harmlessly.
+// a contact that's changed (removed, then added with its new name) is still in its old words'
+// lists until then, so every contact found is scored from the words it has now.
+public class FuzzyIndex implements ContactStore.Listener {
+    private static final int MAX_QUERY_WORDS = 5;
+    private static final int MAX_PREFIX_WORDS = 200; // dictionary words a short prefix may stand for
+    private static final double EXACT = 1.0;
+    private static final double PREFIX = 0.9;
+    private static final double TYPO = 0.85; // times how much of the word is still right
+    private static final double SOUNDS_LIKE = 0.5;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, SearchIndex.Postings> postings = new HashMap<>(); // word -> ids, guarded by lock
+    private final TreeSet<String> words = new TreeSet<>(); // the dictionary in order, for prefixes
+    private final Map<String, List<String>> bySound = new HashMap<>(); // Soundex code -> words
+    private final BkTree tree = new BkTree();
+    private final ConcurrentHashMap<Long, String[]> names = new ConcurrentHashMap<>(); // id -> its words
+    private long staleIds;
+
+    // a contact and how well it matched, 1.0 for every word exactly
+    public static final class Hit {
+        public final long id;
+        public final double score;
+
+        Hit(long id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    @Override
+    public void contactAdded(Contact contact) {
+        String[] nameWords = wordsOf(contact.getName());
+        lock.writeLock().lock();
+        try {
+            for (String word : nameWords) {
+                SearchIndex.Postings ids = postings.get(word);
+                if (ids == null) {
+                    ids = new SearchIndex.Postings();
+                    postings.put(word, ids);
+                    words.add(word);
+                    tree.add(word);
+                    String sound = soundex(word);
+                    if (sound != null) {
+                        bySound.computeIfAbsent(sound, s -> new ArrayList<>(2)).add(word);
+                    }
+                }
+                ids.add(contact.getId());
+            }
+            names.put(contact.getId(), nameWords);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void contactRemoved(Contact contact) {
+        lock.writeLock().lock();
+        try {
+            String[] nameWords = names.remove(contact.getId());
+            if (nameWords != null) {
+                staleIds += nameWords.length;
+                if (staleIds > 1024 && staleIds > names.size()) {
+                    purgeStale();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // the k best matches for the query's words, best first (equal scores in id order).
+    // every word of the query has to match one of the name's somehow
+    public List<Hit> search(String query, int k) {
+        List<String> queryWords = new ArrayList<>(new LinkedHashSet<>(List.of(wordsOf(query))));
+        if (queryWords.isEmpty() || k < 1) {
+            return List.of();
+        }
+        if (queryWords.size() > MAX_QUERY_WORDS) {
+            queryWords = queryWords.subList(0, MAX_QUERY_WORDS);
+        }
+        // worst of the best k on top, so it's the one pushed out
+        PriorityQueue<Hit> best = new PriorityQueue<>(k + 1, (a, b) -> a.score != b.score
+                ? Double.compare(a.score, b.score) : Long.compare(b.id, a.id));
+
+        lock.readLock().lock();
+        try {
+            // the dictionary words each query word could be, with how good a match each is
+            List<Map<String, Double>> matches = new ArrayList<>(queryWords.size());
+            int narrowest = 0;
+            long narrowestCount = Long.MAX_VALUE;
+            for (String word : queryWords) {
+                Map<String, Double> found = dictionaryMatches(word);
+                if (found.isEmpty()) {
+                    return List.of(); // nobody has anything like this word
+                }
+                long count = 0;
+                for (String match : found.keySet()) {
+                    count += postings.get(match).size;
+                }
+                if (count < narrowestCount) {
+                    narrowest = matches.size();
+                    narrowestCount = count;
+                }
+                matches.add(found);
+            }
+
+            // walk the contacts of the query word with the fewest, best matching words first
+            List<Map.Entry<String, Double>> start = new ArrayList<>(matches.get(narrowest).entrySet());
+            start.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
+            Set<Long> seen = new HashSet<>();
+            int others = queryWords.size() - 1;
+            for (Map.Entry<String, Double> entry : start) {
+                // the most a contact found through this word can score: a perfect match for the rest
+                double bound = (entry.getValue() + others * EXACT) / queryWords.size();
+                if (best.size() == k && bound < best.peek().score) {
+                    break; // words further down are worse still, nothing there can get in
+                }
+                SearchIndex.Postings ids = postings.get(entry.getKey());
+                for (int i = 0; i < ids.size; i++) {
+                    long id = ids.ids[i];
+                    if (best.size() == k && bound == best.peek().score && id > best.peek().id) {
+                        break; // ids only go up from here, at best they'd tie and lose on id
+                    }
+                    String[] nameWords = names.get(id);
+                    if (nameWords == null || !seen.add(id)) {
+                        continue; // deleted, or already scored through a better word
+                    }
+                    // from its words now, not the list's: after a change of name, lists of its
+                    // old words still have it until the next purge
+                    double score = score(nameWords, matches);
+                    if (score > 0) {
+                        offer(best, k, new Hit(id, score));
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Hit> hits = new ArrayList<>(best);
+        hits.sort((a, b) -> a.score != b.score ? Double.compare(b.score, a.score) : Long.compare(a.id, b.id));
+        return hits;
+    }
+
+    private static void offer(PriorityQueue<Hit> best, int k, Hit hit) {
+        if (best.size() < k) {
+            best.add(hit);
+        } else if (best.comparator().compare(hit, best.peek()) > 0) {
+            best.poll();
+            best.add(hit);
+        }
+    }
+
+    // the average over the query words of how well the name's best word matches it, 0 if any doesn't
+    private static double score(String[] nameWords, List<Map<String, Double>> matches) {
+        double total = 0;
+        for (Map<String, Double> found : matches) {
+            double bestWord = 0;
+            for (String word : nameWords) {
+                Double s = found.get(word);
+                if (s != null && s > bestWord) {
+                    bestWord = s;
+                }
+            }
+            if (bestWord == 0) {
+                return 0;
+            }
+            total += bestWord;
+        }
+        return total / matches.size();
+    }
+
+    // dictionary words close to the query word, scored. called with the read lock held
+    private Map<String, Double> dictionaryMatches(String word) {
+        Map<String, Double> found = new HashMap<>();
+        String sound = soundex(word);
+        if (sound != null) {
+            for (String match : bySound.getOrDefault(sound, List.of())) {
+                found.put(match, SOUNDS_LIKE);
+            }
+        }
+        int allowed = word.length() <= 2 ? 0 : word.length() <= 5 ? 1 : 2; // typos we forgive
+        if (allowed > 0) {
+            tree.within(word, allowed, (match, distance) -> {
+                double s = TYPO * (1 - (double) distance / Math.max(word.length(), match.length()));
+                found.merge(match, s, Math::max);
+            });
+            // a swapped pair of letters is one typo, not two
+            for (String swapped : swaps(word)) {
+                if (postings.containsKey(swapped)) {
+                    found.merge(swapped, TYPO * (1 - 1.0 / word.length()), Math::max);
+                }
+            }
+        }
+        int prefixes = 0;
+        for (String match : words.tailSet(word, true)) {
+            if (!match.startsWith(word) || ++prefixes > MAX_PREFIX_WORDS) {
+                break;
+            }
+            found.put(match, match.length() == word.length() ? EXACT : PREFIX);
+        }
+        return found;
+    }
+
+    private static List<String> swaps(String word) {
+        List<String> swapped = new ArrayList<>(word.length());
+        char[] chars = word.toCharArray();
+        for (int i = 0; i + 1 < chars.length; i++) {
+            if (chars[i] != chars[i + 1]) {
+                char c = chars[i];
+                chars[i] = chars[i + 1];
+                chars[i + 1] = c;
+                swapped.add(new String(chars));
+                chars[i + 1] = chars[i];
+                chars[i] = c;
+            }
+        }
+        return swapped;
+    }
+
+    // drop from every list the ids of contacts that are gone or no longer have its word (renamed),
+    // called with the write lock held
+    private void purgeStale() {
+        for (Map.Entry<String, SearchIndex.Postings> entry : postings.entrySet()) {
+            SearchIndex.Postings ids = entry.getValue();
+            int kept = 0;
+            for (int i = 0; i < ids.size; i++) {
+                String[] nameWords = names.get(ids.ids[i]);
+                if (nameWords != null && List.of(nameWords).contains(entry.getKey())) {
+                    ids.ids[kept++] = ids.ids[i];
+                }
+            }
+            ids.size = kept;
+        }
+        staleIds = 0;
+    }
+
+    // lowercased letters-and-digits words
+    static String[] wordsOf(String text) {
+        List<String> result = new ArrayList<>(4);
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                result.add(word);
+            }
+        }
+        return result.toArray(new String[0]);
+    }
+
+    // American Soundex: the first letter and three digits for the consonants after it, so
+    // "smith" and "smyth" are both S530. null for words that aren't plain letters
+    static String soundex(String word) {
+        final String codes = "01230120022455012623010202"; // a to z
+        StringBuilder sb = new StringBuilder(4);
+        char last = 0;
+        for (int i = 0; i < word.length() && sb.length() < 4; i++) {
+            char c = word.charAt(i);
+            if (c < 'a' || c > 'z') {
+                return null;
+            }
+            char code = codes.charAt(c - 'a');
+            if (i == 0) {
+                sb.append(Character.toUpperCase(c));
+            } else if (code != '0' && code != last) {
+                sb.append(code);
+            }
+            if (c != 'h' && c != 'w') {
+                last = code; // h and w don't separate two of the same sound, vowels do
+            }
+        }
+        if (sb.length() == 0) {
+            return null;
+        }
+        while (sb.length() < 4) {
+            sb.append('0');
+        }
+        return sb.toString();
+    }
+
+    static int levenshtein(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+            }
+            int[] t = previous;
+            previous = current;
+            current = t;
+        }
+        return previous[b.length()];
+    }
+
+    // the dictionary arranged by edit distance: every child of a word is filed under its distance
+    // to it, so a search only goes down the branches the triangle inequality says can be close
+    private static class BkTree {
+        private Node root;
+
+        private static class Node {
+            final String word;
+            final Map<Integer, Node> children = new HashMap<>(4);
+
+            Node(String word) {
+                this.word = word;
+            }
+        }
+
+        interface Visitor {
+            void found(String word, int distance);
+        }
+
+        void add(String word) {
+            if (root == null) {
+                root = new Node(word);
+                return;
+            }
+            Node node = root;
+            while (true) {
+                int d = levenshtein(word, node.word);
+                if (d == 0) {
+                    return;
+                }
+                Node child = node.children.get(d);
+                if (child == null) {
+                    node.children.put(d, new Node(word));
+                    return;
+                }
+                node = child;
+            }
+        }
+
+        void within(String word, int maxDistance, Visitor visitor) {
+            if (root == null) {
+                return;
+            }
+            List<Node> toVisit = new ArrayList<>();
+            toVisit.add(root);
+            while (!toVisit.isEmpty()) {
+                Node node = toVisit.remove(toVisit.size() - 1);
+                int d = levenshtein(word, node.word);
+                if (d <= maxDistance) {
+                    visitor.found(node.word, d);
+                }
+                for (int i = Math.max(1, d - maxDistance); i <= d + maxDistance; i++) {
+                    Node child = node.children.get(i);
+                    if (child != null) {
+                        toVisit.add(child);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+// writes a page straight into the response as UTF-8, a few KB at a time
+//
+// instead of building the whole page in a StringBuilder and then copying it into a byte array,
+// text goes into one small char buffer, is encoded into one small byte buffer and written out
+// whenever that fills up. the same two buffers are used for the whole page, so a page with a
+// million rows needs no more memory than one with ten, and the first rows go out while the
+// rest are still being written.
+public class HtmlWriter implements Closeable {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE * 3); // a char is at most 3 bytes
+
+    public HtmlWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    // markup we wrote ourselves, as is
+    public HtmlWriter raw(String s) throws IOException {
+        for (int i = 0; i < s.length(); ) {
+            int n = Math.min(chars.remaining(), s.length() - i);
+            chars.put(s, i, i + n);
+            i += n;
+            if (!chars.hasRemaining()) {
+                drain(false);
+            }
+        }
+        return this;
+    }
+
+    public HtmlWriter raw(long n) throws IOException {
+        return raw(Long.toString(n));
+    }
+
+    // anything that came from a user, escaped so it can't turn into markup.
+    // safe both between tags and inside a quoted attribute
+    public HtmlWriter text(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '&': raw("&amp;"); break;
+                case '<': raw("&lt;"); break;
+                case '>': raw("&gt;"); break;
+                case '"': raw("&quot;"); break;
+                case '\'': raw("&#39;"); break;
+                default:
+                    chars.put(c);
+                    if (!chars.hasRemaining()) {
+                        drain(false);
+                    }
+            }
+        }
+        return this;
+    }
+
+    // bytes that are already UTF-8, like the fixed parts of a Template
+    public HtmlWriter bytes(byte[] b) throws IOException {
+        drain(false);
+        if (b.length <= bytes.remaining()) {
+            bytes.put(b);
+            if (bytes.position() > BUFFER_SIZE) {
+                writeBytes();
+            }
+        } else {
+            writeBytes();
+            out.write(b);
+        }
+        return this;
+    }
+
+    // send what we have so far, e.g. the top of the page before doing something slow
+    public void flush() throws IOException {
+        drain(false);
+        writeBytes();
+        out.flush();
+    }
+
+    // finish the page and close the response
+    @Override
+    public void close() throws IOException {
+        try {
+            drain(true);
+            while (encoder.flush(bytes).isOverflow()) {
+                writeBytes();
+            }
+            writeBytes();
+        } finally {
+            out.close();
+        }
+    }
+
+    // encode the buffered chars. half a surrogate pair at the end stays behind for next time
+    private void drain(boolean endOfInput) throws IOException {
+        chars.flip();
+        while (encoder.encode(chars, bytes, endOfInput).isOverflow()) {
+            writeBytes();
+        }
+        chars.compact();
+        if (bytes.position() > BUFFER_SIZE) {
+            writeBytes();
+        }
+    }
+
+    private void writeBytes() throws IOException {
+        if (bytes.position() > 0) {
+            out.write(bytes.array(), 0, bytes.position());
+            bytes.clear();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// logging that never makes a request wait for the console
+//
+// anything below the level (--log-level=debug, info, warn or error, default info) is dropped before
+// its message is even formatted. the rest goes on a queue and a background thread formats and
+// prints it, so a slow terminal can't hold up a handler. if the queue is ever full the message is
+// dropped (and counted, see dropped()) rather than blocking. debug and info go to stdout, warnings
+// and errors to stderr, same as before.
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int QUEUE_SIZE = 8192;
+
+    private static volatile Level level = Level.INFO;
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final LongAdder dropped = new LongAdder();
+
+    private static class Entry {
+        final Level level;
+        final String format;
+        final Object[] args;
+        final Throwable error;
+
+        Entry(Level level, String format, Object[] args, Throwable error) {
+            this.level = level;
+            this.format = format;
+            this.args = args;
+            this.error = error;
+        }
+    }
+
+    static {
+        Thread writer = new Thread(Log::writeForever, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // whatever's still queued when we stop gets printed too
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(String name) {
+        try {
+            level = Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown log level " + name + " (use debug, info, warn or error)");
+        }
+    }
+
+    public static boolean enabled(Level at) {
+        return at.compareTo(level) >= 0;
+    }
+
+    // the message is a String.format pattern, args are filled in later on the writer thread,
+    // so only pass things that won't change in the meantime (strings, numbers)
+    public static void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args, null);
+    }
+
+    public static void info(String format, Object... args) {
+        log(Level.INFO, format, args, null);
+    }
+
+    public static void warn(String format, Object... args) {
+        log(Level.WARN, format, args, null);
+    }
+
+    public static void error(String format, Object... args) {
+        log(Level.ERROR, format, args, null);
+    }
+
+    // an error with its stack trace
+    public static void error(Throwable e, String format, Object... args) {
+        log(Level.ERROR, format, args, e);
+    }
+
+    // messages thrown away because the queue was full
+    public static long dropped() {
+        return dropped.sum();
+    }
+
+    private static void log(Level at, String format, Object[] args, Throwable e) {
+        if (!enabled(at)) {
+            return;
+        }
+        if (!queue.offer(new Entry(at, format, args, e))) {
+            dropped.increment();
+        }
+    }
+
+    private static void writeForever() {
+        while (true) {
+            try {
+                write(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void drain() {
+        List<Entry> left = new ArrayList<>();
+        queue.drainTo(left);
+        for (Entry entry : left) {
+            write(entry);
+        }
+    }
+
+    private static void write(Entry entry) {
+        PrintStream out = entry.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+        String message;
+        try {
+            message = entry.args.length == 0 ? entry.format : String.format(entry.format, entry.args);
+        } catch (RuntimeException e) {
+            message = entry.format + " (unformattable: " + e + ")"; // a bad pattern shouldn't kill the writer
+        }
+        out.println(message);
+        if (entry.error != null) {
+            entry.error.printStackTrace(out);
+        }
+    }
+}
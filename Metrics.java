@@ -0,0 +1,332 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// counters, gauges and latency histograms for the whole server, served at /metrics in the
+// Prometheus text format
+//
+// wrap() puts a handler behind a counter of requests per status code, bytes in and out, and a
+// histogram of how long each request took. anything else (the store, the log) registers its own
+// with counter(), gauge() or histogram(). recording is a couple of atomic adds, no locks, so it's
+// fine on every request.
+public final class Metrics {
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // families by name, in the order they were registered. each family has one HELP and TYPE line
+    // and any number of labelled series
+    private static final Map<String, Family> families = new LinkedHashMap<>();
+
+    private Metrics() {
+    }
+
+    private static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Object> series = new ConcurrentSkipListMap<>(); // labels -> Counter, Histogram or LongSupplier
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    // latency in nanoseconds, kept the way HdrHistogram does it: values are bucketed by their highest
+    // bit and then the next SUB_BITS bits, so every bucket is within about 3% of the value whether
+    // it's 50 microseconds or 5 seconds, in a fixed ~15KB of counts
+    public static final class Histogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0; // the clock can't go backwards, but just in case
+            }
+            counts.incrementAndGet(bucketOf(nanos));
+            sum.add(nanos);
+        }
+
+        // time since start (from System.nanoTime)
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        // the biggest value that lands in the bucket
+        static long highestIn(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowest = (1L << (shift + SUB_BITS)) | ((long) (bucket % SUB_BUCKETS) << shift);
+            return lowest + (1L << shift) - 1;
+        }
+
+        // counts, sum, and then the value at each quantile, all from one pass over the buckets
+        long[] snapshot(double[] quantiles) {
+            long[] copy = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+                total += copy[i];
+            }
+            long[] result = new long[2 + quantiles.length];
+            result[0] = total;
+            result[1] = sum.sum();
+            int q = 0;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS && q < quantiles.length; i++) {
+                seen += copy[i];
+                while (q < quantiles.length && copy[i] > 0 && seen >= Math.ceil(quantiles[q] * total)) {
+                    result[2 + q++] = highestIn(i);
+                }
+            }
+            return result;
+        }
+    }
+
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, "counter", labels, new Counter());
+    }
+
+    public static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) register(name, help, "summary", labels, new Histogram());
+    }
+
+    // a value that's read when /metrics is asked for, like the number of contacts
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        register(name, help, "gauge", labels, value);
+    }
+
+    // labels come in pairs: "handler", "home", "status", "200"
+    private static Object register(String name, String help, String type, String[] labels, Object metric) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels for " + name + " must be name/value pairs");
+        }
+        Family family;
+        synchronized (families) {
+            family = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        }
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already a " + family.type);
+        }
+        Object existing = family.series.putIfAbsent(labelText(labels), metric);
+        return existing != null ? existing : metric;
+    }
+
+    private static String labelText(String[] labels) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            sb.append(sb.length() == 0 ? "" : ",").append(labels[i]).append("=\"");
+            for (char c : labels[i + 1].toCharArray()) {
+                if (c == '\\' || c == '"') {
+                    sb.append('\\').append(c);
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    // everything, as Prometheus expects it
+    public static String text() {
+        List<Family> all;
+        synchronized (families) {
+            all = new ArrayList<>(families.values());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Family family : all) {
+            sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof Counter) {
+                    sample(sb, family.name, labels, null, Long.toString(((Counter) metric).get()));
+                } else if (metric instanceof LongSupplier) {
+                    sample(sb, family.name, labels, null, Long.toString(((LongSupplier) metric).getAsLong()));
+                } else {
+                    long[] snapshot = ((Histogram) metric).snapshot(QUANTILES);
+                    for (int q = 0; q < QUANTILES.length; q++) {
+                        // nothing recorded yet has no quantiles
+                        String value = snapshot[0] == 0 ? "NaN" : seconds(snapshot[2 + q]);
+                        sample(sb, family.name, labels, "quantile=\"" + QUANTILES[q] + "\"", value);
+                    }
+                    sample(sb, family.name + "_sum", labels, null, seconds(snapshot[1]));
+                    sample(sb, family.name + "_count", labels, null, Long.toString(snapshot[0]));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, String extra, String value) {
+        sb.append(name);
+        if (!labels.isEmpty() || extra != null) {
+            sb.append('{').append(labels);
+            if (extra != null) {
+                sb.append(labels.isEmpty() ? "" : ",").append(extra);
+            }
+            sb.append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / NANOS_PER_SECOND);
+    }
+
+    // serves text() at /metrics
+    public static HttpHandler endpoint() {
+        return exchange -> {
+            byte[] body = text().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=UTF-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        };
+    }
+
+    // times and counts every request through handler, under the given name
+    public static HttpHandler wrap(String name, HttpHandler handler) {
+        Histogram latency = histogram("phonebook_http_request_duration_seconds",
+                "How long requests took, from the handler starting to the response being finished", "handler", name);
+        Counter bytesIn = counter("phonebook_http_request_bytes_total", "Request body bytes read", "handler", name);
+        Counter bytesOut = counter("phonebook_http_response_bytes_total",
+                "Response body bytes sent (after compression)", "handler", name);
+        Map<Integer, Counter> byStatus = new ConcurrentHashMap<>();
+        return exchange -> {
+            long start = System.nanoTime();
+            MeasuredExchange measured = new MeasuredExchange(exchange);
+            try {
+                handler.handle(measured);
+            } finally {
+                latency.recordSince(start);
+                bytesIn.add(measured.bytesIn);
+                bytesOut.add(measured.bytesOut);
+                // the handler blew up before answering: the server drops the connection, call it a 500
+                int status = measured.status > 0 ? measured.status : 500;
+                byStatus.computeIfAbsent(status, s -> counter("phonebook_http_requests_total",
+                        "Requests handled, by handler and response status", "handler", name, "status", Integer.toString(s)))
+                        .increment();
+            }
+        };
+    }
+
+    // notes the status and counts the body bytes going each way
+    private static class MeasuredExchange extends ForwardingExchange {
+        int status;
+        long bytesIn;
+        long bytesOut;
+        private InputStream countingIn;
+        private OutputStream countingOut;
+
+        MeasuredExchange(HttpExchange exchange) {
+            super(exchange);
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+            status = rCode;
+            super.sendResponseHeaders(rCode, responseLength);
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            if (countingIn == null) {
+                countingIn = new FilterInputStream(super.getRequestBody()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b >= 0) {
+                            bytesIn++;
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int n = super.read(b, off, len);
+                        if (n > 0) {
+                            bytesIn += n;
+                        }
+                        return n;
+                    }
+                };
+            }
+            return countingIn;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            if (countingOut == null) {
+                countingOut = new FilterOutputStream(super.getResponseBody()) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        bytesOut++;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len); // not FilterOutputStream's, that writes a byte at a time
+                        bytesOut += len;
+                    }
+                };
+            }
+            return countingOut;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// reads multipart/form-data straight off the request stream in one pass
+//
+// the body is never held in memory as a whole: bytes go through one fixed buffer and a KMP
+// matcher looks for the boundary, so each byte is looked at once. text fields are kept as
+// strings, files stay in memory while they're small and are moved to a temp file once they
+// get bigger than spillThreshold. every field, file and the request as a whole has a size limit.
+public class MultipartParser {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_HEADER_BYTES = 8192; // for the headers of a single part
+    private static final Pattern NAME = Pattern.compile("(?i)(?:^|;)\\s*name=\"([^\"]*)\"");
+    private static final Pattern FILENAME = Pattern.compile("(?i)(?:^|;)\\s*filename=\"([^\"]*)\"");
+
+    private final long maxFieldBytes;
+    private final long maxFileBytes;
+    private final long maxRequestBytes;
+    private final int spillThreshold;
+
+    public MultipartParser(long maxFieldBytes, long maxFileBytes, long maxRequestBytes, int spillThreshold) {
+        this.maxFieldBytes = maxFieldBytes;
+        this.maxFileBytes = maxFileBytes;
+        this.maxRequestBytes = maxRequestBytes;
+        this.spillThreshold = spillThreshold;
+    }
+
+    // thrown when some part of the upload is bigger than we allow
+    public static class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LimitExceededException(String message) {
+            super(message);
+        }
+    }
+
+    // one field or file from the form
+    public static class Part implements Closeable {
+        private final String name;
+        private final String filename; // null for normal fields
+        private byte[] data; // set while the part is small
+        private Path file; // set once it has been spilled to disk
+        private long size;
+
+        Part(String name, String filename) {
+            this.name = name;
+            this.filename = filename;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isFile() {
+            return filename != null;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getValue() {
+            return data != null ? new String(data, 0, (int) size, StandardCharsets.UTF_8) : "";
+        }
+
+        // the contents as one array - only for parts the caller knows are a sensible size
+        public byte[] getBytes() throws IOException {
+            if (file != null) {
+                return Files.readAllBytes(file);
+            }
+            if (data.length == size) {
+                return data; // already exactly the right size, no need to copy
+            }
+            byte[] copy = new byte[(int) size];
+            System.arraycopy(data, 0, copy, 0, copy.length);
+            return copy;
+        }
+
+        public InputStream open() throws IOException {
+            return file != null ? Files.newInputStream(file) : new ByteArrayInputStream(data, 0, (int) size);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    // all the parts of one request, closing it removes any temp files
+    public static class Form implements Closeable {
+        private final Map<String, Part> parts = new LinkedHashMap<>();
+
+        public String getValue(String name) {
+            Part part = parts.get(name);
+            return part != null && !part.isFile() ? part.getValue() : "";
+        }
+
+        // a file field, or null if none was uploaded
+        public Part getFile(String name) {
+            Part part = parts.get(name);
+            return part != null && part.isFile() && part.getSize() > 0 ? part : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Part part : parts.values()) {
+                part.close();
+            }
+        }
+    }
+
+    // get the boundary from a multipart Content-Type header, null if there isn't one
+    public static String extractBoundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase().startsWith("multipart/form-data")) {
+            return null;
+        }
+        int boundaryIndex = contentType.indexOf("boundary=");
+        if (boundaryIndex == -1) {
+            return null;
+        }
+        String boundary = contentType.substring(boundaryIndex + 9);
+        if (boundary.startsWith("\"")) {
+            int end = boundary.indexOf('"', 1);
+            return end > 0 ? boundary.substring(1, end) : null;
+        }
+        int end = boundary.indexOf(';');
+        return (end >= 0 ? boundary.substring(0, end) : boundary).trim();
+    }
+
+    public Form parse(InputStream in, String boundary) throws IOException {
+        Form form = new Form();
+        Reader reader = new Reader(in, boundary, form);
+        try {
+            reader.run();
+        } catch (IOException | RuntimeException e) {
+            reader.abandon();
+            form.close(); // don't leave temp files behind
+            throw e;
+        }
+        return form;
+    }
+
+    // state for parsing one request
+    private class Reader {
+        private final InputStream in;
+        private final byte[] delimiter; // CRLF--boundary
+        private final int[] fallback; // KMP failure table for delimiter
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final Form form;
+        private int pos;
+        private int limit;
+        private long totalRead;
+
+        // where the bytes of the current part go
+        private Part part;
+        private OutputStream spill;
+        private long partLimit;
+
+        Reader(InputStream in, String boundary, Form form) {
+            this.in = in;
+            this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            this.fallback = failureTable(delimiter);
+            this.form = form;
+        }
+
+        void run() throws IOException {
+            // the first boundary has no CRLF in front of it, so pretend we've already seen one.
+            // anything before it (the preamble) is skipped
+            if (!skipToDelimiter(2)) {
+                throw new EOFException("No multipart boundary found");
+            }
+            while (true) {
+                int a = read();
+                int b = read();
+                if (a == '-' && b == '-') {
+                    skipEpilogue();
+                    return; // closing boundary
+                }
+                if (a != '\r' || b != '\n') {
+                    throw new IOException("Malformed multipart boundary");
+                }
+                startPart(readHeaders());
+                if (!skipToDelimiter(0)) {
+                    throw new EOFException("Multipart body ended in the middle of a part");
+                }
+                finishPart();
+            }
+        }
+
+        // whatever comes after the closing boundary means nothing, but the server only keeps the
+        // connection open for the next request if the body has been read to the end
+        private void skipEpilogue() throws IOException {
+            pos = limit;
+            while (read() >= 0) {
+                pos = limit; // a whole buffer at a time
+            }
+        }
+
+        // feed bytes to the current part until we've matched the whole delimiter.
+        // matched says how much of it we've already seen. returns false at end of stream
+        private boolean skipToDelimiter(int matched) throws IOException {
+            int j = matched;
+            while (true) {
+                int c = read();
+                if (c < 0) {
+                    return false;
+                }
+                while (true) {
+                    if (delimiter[j] == (byte) c) {
+                        j++;
+                        break;
+                    }
+                    if (j == 0) {
+                        write((byte) c); // can't be the start of a boundary
+                        break;
+                    }
+                    // the bytes we were holding back aren't a boundary after all;
+                    // let go of the ones that can't start a new match
+                    int keep = fallback[j];
+                    writePrefix(j - keep);
+                    j = keep;
+                }
+                if (j == delimiter.length) {
+                    return true;
+                }
+            }
+        }
+
+        // the first n bytes we held back are part of the content
+        private void writePrefix(int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                write(delimiter[i]);
+            }
+        }
+
+        private String readHeaders() throws IOException {
+            ByteArrayOutputStream headers = new ByteArrayOutputStream();
+            int state = 2; // how much of CRLFCRLF we've seen - the CRLF after the boundary counts
+            while (state < 4) {
+                int c = read();
+                if (c < 0) {
+                    throw new EOFException("Multipart body ended in part headers");
+                }
+                headers.write(c);
+                if (headers.size() > MAX_HEADER_BYTES) {
+                    throw new LimitExceededException("Multipart headers too large");
+                }
+                if (c == (state % 2 == 0 ? '\r' : '\n')) {
+                    state++;
+                } else {
+                    state = c == '\r' ? 1 : 0;
+                }
+            }
+            return headers.toString(StandardCharsets.UTF_8);
+        }
+
+        private void startPart(String headers) throws IOException {
+            String name = null;
+            String filename = null;
+            for (String line : headers.split("\r\n")) {
+                if (line.regionMatches(true, 0, "Content-Disposition:", 0, 20)) {
+                    Matcher m = NAME.matcher(line.substring(20));
+                    if (m.find()) name = m.group(1);
+                    m = FILENAME.matcher(line.substring(20));
+                    if (m.find() && !m.group(1).isEmpty()) filename = m.group(1);
+                }
+            }
+            if (name == null) {
+                part = null; // nothing we can do with it, skip the contents
+                return;
+            }
+            part = new Part(name, filename);
+            part.data = new byte[256];
+            partLimit = part.isFile() ? maxFileBytes : maxFieldBytes;
+            form.parts.put(name, part);
+        }
+
+        private void write(byte b) throws IOException {
+            if (part == null) {
+                return;
+            }
+            if (part.size >= partLimit) {
+                throw new LimitExceededException("Field " + part.name + " is larger than " + partLimit + " bytes");
+            }
+            if (spill != null) {
+                spill.write(b);
+            } else {
+                if (part.size == part.data.length) {
+                    if (part.isFile() && part.size >= spillThreshold) {
+                        startSpill();
+                        spill.write(b);
+                        part.size++;
+                        return;
+                    }
+                    byte[] bigger = new byte[(int) Math.min(part.data.length * 2L, Math.max(partLimit, 1))];
+                    System.arraycopy(part.data, 0, bigger, 0, part.data.length);
+                    part.data = bigger;
+                }
+                part.data[(int) part.size] = b;
+            }
+            part.size++;
+        }
+
+        // the part got too big to keep in memory, move what we have to a temp file
+        private void startSpill() throws IOException {
+            part.file = Files.createTempFile("phonebook-upload", ".part");
+            spill = new BufferedOutputStream(Files.newOutputStream(part.file), BUFFER_SIZE);
+            spill.write(part.data, 0, (int) part.size);
+            part.data = null;
+        }
+
+        private void finishPart() throws IOException {
+            if (spill != null) {
+                spill.close();
+                spill = null;
+            }
+            part = null;
+        }
+
+        // parsing stopped in the middle of a part that had gone to disk, let go of its file
+        void abandon() {
+            if (spill != null) {
+                try {
+                    spill.close();
+                } catch (IOException e) {
+                    // it's being deleted anyway
+                }
+                spill = null;
+            }
+        }
+
+        private int read() throws IOException {
+            if (pos == limit) {
+                limit = in.read(buffer);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+                totalRead += limit;
+                if (totalRead > maxRequestBytes) {
+                    throw new LimitExceededException("Request is larger than " + maxRequestBytes + " bytes");
+                }
+            }
+            return buffer[pos++] & 0xFF;
+        }
+    }
+
+    // standard KMP table: fallback[j] is how much of the pattern still matches after
+    // a mismatch when j bytes had matched
+    private static int[] failureTable(byte[] pattern) {
+        int[] table = new int[pattern.length + 1];
+        int k = 0;
+        for (int i = 1; i < pattern.length; i++) {
+            while (k > 0 && pattern[i] != pattern[k]) {
+                k = table[k];
+            }
+            if (pattern[i] == pattern[k]) {
+                k++;
+            }
+            table[i + 1] = k;
+        }
+        return table;
+    }
+}
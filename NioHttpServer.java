@@ -0,0 +1,1207 @@
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// an HttpServer on a single selector thread, for --engine=nio
+//
+// it's a drop-in for the JDK's com.sun.net.httpserver server: same contexts, same HttpHandlers,
+// same HttpExchange, so nothing above it knows which one it's running on. the difference is
+// underneath. one thread watches every connection, and a connection only costs a socket and a
+// small object until a request comes in, so thousands of idle keep-alive browsers are cheap.
+// reading requests and writing responses goes through direct buffers borrowed from a pool, and a
+// response's headers go out in the same write as its first body bytes.
+//
+// requests are parsed on the selector thread and handed to the executor (handlers block, so they
+// can't run on the selector). a request body is read on demand: the handler's stream waits and
+// the selector reads more when it asks. responses are written by the handler's thread straight
+// to the socket, waiting for the selector only when the socket is full. connections are
+// HTTP/1.1 keep-alive, and pipelined requests are answered one after another, in order.
+// like the JDK's, a handler may return with its response still open (a stream of events) and
+// finish it from another thread later, the connection waits for that.
+public class NioHttpServer extends HttpServer {
+    private static final int BUFFER_SIZE = 16 * 1024; // also the biggest request line plus headers we take
+    private static final int MAX_POOLED_BUFFERS = 1024;
+    private static final long IDLE_TIMEOUT_MILLIS = 60_000; // keep-alive connections with nothing to do
+    private static final long IO_TIMEOUT_MILLIS = 60_000; // waiting on a client in the middle of a request
+    private static final long DRAIN_BYTES = 64 * 1024; // unread request body we'll skip to keep the connection
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final List<NioContext> contexts = new CopyOnWriteArrayList<>();
+    private final Map<SocketChannel, Connection> connections = new ConcurrentHashMap<>();
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread selectorThread;
+    private volatile boolean running;
+    private Executor executor;
+    private Executor workers; // executor, or our own thread if none was set
+
+    private NioHttpServer() {
+    }
+
+    public static NioHttpServer create(InetSocketAddress address, int backlog) throws IOException {
+        NioHttpServer server = new NioHttpServer();
+        if (address != null) {
+            server.bind(address, backlog);
+        }
+        return server;
+    }
+
+    // ---- HttpServer ----
+
+    @Override
+    public void bind(InetSocketAddress address, int backlog) throws IOException {
+        if (serverChannel != null) {
+            throw new IllegalStateException("Already bound");
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address, backlog);
+        serverChannel.configureBlocking(false);
+    }
+
+    @Override
+    public void start() {
+        if (serverChannel == null) {
+            throw new IllegalStateException("Not bound");
+        }
+        workers = executor != null ? executor : Executors.newSingleThreadExecutor(PhoneBookServer.namedThreads("nio-worker"));
+        running = true;
+        selectorThread = new Thread(this::selectLoop, "nio-selector");
+        selectorThread.start();
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        if (running) {
+            throw new IllegalStateException("Already started");
+        }
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void stop(int delaySeconds) {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        // give requests that are under way a moment to finish
+        long until = System.currentTimeMillis() + delaySeconds * 1000L;
+        while (System.currentTimeMillis() < until && connections.values().stream().anyMatch(c -> c.busy)) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Connection connection : connections.values()) {
+            connection.close();
+        }
+        selector.wakeup();
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        NioContext context = createContext(path);
+        context.setHandler(handler);
+        return context;
+    }
+
+    @Override
+    public NioContext createContext(String path) {
+        if (path == null || !path.startsWith("/")) {
+            throw new IllegalArgumentException("Context path must start with /: " + path);
+        }
+        for (NioContext context : contexts) {
+            if (context.path.equals(path)) {
+                throw new IllegalArgumentException("Context " + path + " already exists");
+            }
+        }
+        NioContext context = new NioContext(path);
+        contexts.add(context);
+        return context;
+    }
+
+    @Override
+    public void removeContext(String path) {
+        if (!contexts.removeIf(c -> c.path.equals(path))) {
+            throw new IllegalArgumentException("No context " + path);
+        }
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        contexts.remove(context);
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // the context with the longest path the request's path starts with, like the JDK server
+    private NioContext contextFor(String path) {
+        NioContext best = null;
+        for (NioContext context : contexts) {
+            if (path.startsWith(context.path) && (best == null || context.path.length() > best.path.length())) {
+                best = context;
+            }
+        }
+        return best;
+    }
+
+    private class NioContext extends HttpContext {
+        final String path;
+        private volatile HttpHandler handler;
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private final List<Filter> filters = new CopyOnWriteArrayList<>();
+        private volatile Authenticator authenticator;
+
+        NioContext(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return NioHttpServer.this;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator auth) {
+            Authenticator old = authenticator;
+            authenticator = auth;
+            return old;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+
+    // ---- buffers ----
+
+    private ByteBuffer borrow() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        pooled.decrementAndGet();
+        return buffer.clear();
+    }
+
+    private void giveBack(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            pool.offer(buffer);
+        } else {
+            pooled.decrementAndGet(); // plenty pooled already, let the GC have it
+        }
+    }
+
+    // ---- the selector thread ----
+
+    private void selectLoop() {
+        try {
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            long nextSweep = System.currentTimeMillis() + 1000;
+            while (running) {
+                selector.select(1000);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isWritable()) {
+                                connection.onWritable();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        if (key.attachment() instanceof Connection) {
+                            ((Connection) key.attachment()).close();
+                        } else {
+                            Log.error("Error accepting a connection: %s", e);
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    closeIdle(now);
+                    nextSweep = now + 1000;
+                }
+            }
+        } catch (IOException e) {
+            Log.error(e, "The NIO server stopped: %s", e.getMessage());
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // we write whole responses, don't hold them back
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.put(channel, connection);
+        }
+    }
+
+    private void closeIdle(long now) {
+        for (Connection connection : connections.values()) {
+            if (connection.isIdleSince(now - IDLE_TIMEOUT_MILLIS)) {
+                connection.close();
+            }
+        }
+    }
+
+    // ---- connections ----
+
+    // one browser connection. everything in here is guarded by the connection itself, the selector
+    // thread and the handler's thread take turns
+    private class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in; // read mode: position to limit is what we've read and not used yet. null while idle
+        int scanned; // how far we've looked for the end of the headers
+        boolean busy; // a request is being handled
+        boolean eof; // the client closed its side
+        boolean closed;
+        boolean writable; // the selector says there's room in the socket again
+        long lastActive = System.currentTimeMillis();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        synchronized boolean isIdleSince(long time) {
+            return !busy && lastActive < time;
+        }
+
+        synchronized void onReadable() throws IOException {
+            if (in == null) {
+                in = borrow().flip(); // empty, in read mode
+            }
+            in.compact();
+            int n = channel.read(in);
+            in.flip();
+            lastActive = System.currentTimeMillis();
+            if (n < 0) {
+                eof = true;
+            }
+            if (busy) {
+                // a handler wanted more of its request body, it'll ask again if it needs more
+                interest(SelectionKey.OP_READ, false);
+                notifyAll();
+                return;
+            }
+            if (eof && !in.hasRemaining()) {
+                close();
+                return;
+            }
+            startNextRequest();
+        }
+
+        synchronized void onWritable() {
+            interest(SelectionKey.OP_WRITE, false);
+            writable = true;
+            notifyAll();
+        }
+
+        // look for a whole request head in what we've read, and if it's there, hand it to a worker.
+        // called with the connection idle, by the selector or by the worker that just finished
+        private void startNextRequest() throws IOException {
+            if (in == null || !in.hasRemaining()) {
+                releaseInput();
+                if (eof) {
+                    close();
+                } else {
+                    interest(SelectionKey.OP_READ, true);
+                }
+                return;
+            }
+            int end = headEnd();
+            if (end < 0) {
+                if (in.remaining() == in.capacity()) {
+                    // headers that don't fit in a buffer, nobody sends those on purpose
+                    sendErrorAndClose(431, "Request Header Fields Too Large");
+                } else if (eof) {
+                    close();
+                } else {
+                    interest(SelectionKey.OP_READ, true);
+                }
+                return;
+            }
+            NioExchange exchange;
+            try {
+                exchange = parseHead(end);
+            } catch (IllegalArgumentException e) {
+                sendErrorAndClose(400, "Bad Request");
+                return;
+            }
+            busy = true;
+            interest(SelectionKey.OP_READ, false); // until the handler wants the body, or it's done
+            workers.execute(() -> handle(exchange));
+        }
+
+        // index just past the CRLFCRLF that ends the head, or -1 if it hasn't all arrived yet
+        private int headEnd() {
+            int start = in.position();
+            int from = Math.max(start, start + scanned - 3);
+            for (int i = from; i + 3 < in.limit(); i++) {
+                if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                    scanned = 0;
+                    return i + 4;
+                }
+            }
+            scanned = in.remaining();
+            return -1;
+        }
+
+        private NioExchange parseHead(int end) {
+            byte[] bytes = new byte[end - in.position()];
+            in.get(bytes);
+            String head = new String(bytes, StandardCharsets.ISO_8859_1);
+            // some clients send a blank line between pipelined requests
+            int start = 0;
+            while (head.startsWith("\r\n", start)) {
+                start += 2;
+            }
+            String[] lines = head.substring(start).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                throw new IllegalArgumentException("Bad request line " + lines[0]);
+            }
+            URI uri;
+            try {
+                uri = new URI(requestLine[1]);
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException(e);
+            }
+            Headers headers = new Headers();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("Bad header " + lines[i]);
+                }
+                headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+            return new NioExchange(this, requestLine[0], uri, requestLine[2], headers);
+        }
+
+        // runs on a worker
+        private void handle(NioExchange exchange) {
+            boolean keepAlive = false;
+            try {
+                NioContext context = contextFor(exchange.uri.getPath() != null ? exchange.uri.getPath() : "/");
+                exchange.context = context;
+                if (context == null || context.handler == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else if (authenticate(context, exchange)) {
+                    if ("100-continue".equalsIgnoreCase(exchange.requestHeaders.getFirst("Expect"))) {
+                        write(ByteBuffer.wrap(CONTINUE));
+                    }
+                    new Filter.Chain(context.filters, context.handler).doFilter(exchange);
+                }
+                if (exchange.detach()) {
+                    return; // the response is still open, whoever closes it finishes up (see ResponseBody.close)
+                }
+                keepAlive = exchange.finish();
+            } catch (Throwable e) {
+                if (!exchange.sentHeaders && !closed) {
+                    Log.error(e, "Error handling %s %s: %s", exchange.method, exchange.uri, e);
+                    try {
+                        exchange.sendResponseHeaders(500, -1);
+                    } catch (IOException ignored) {
+                        // the client's gone
+                    }
+                }
+                // the response is cut short if it had started, closing tells the browser so
+            }
+            done(exchange, keepAlive);
+        }
+
+        // the context's authenticator, before its filters as in the JDK's server. false if the
+        // request was refused, with the code it gave us (a Retry has set WWW-Authenticate)
+        private boolean authenticate(NioContext context, NioExchange exchange) throws IOException {
+            Authenticator authenticator = context.authenticator;
+            if (authenticator == null) {
+                return true;
+            }
+            Authenticator.Result result = authenticator.authenticate(exchange);
+            if (result instanceof Authenticator.Success) {
+                exchange.principal = ((Authenticator.Success) result).getPrincipal();
+                return true;
+            }
+            int code = 401;
+            if (result instanceof Authenticator.Failure) {
+                code = ((Authenticator.Failure) result).getResponseCode();
+            } else if (result instanceof Authenticator.Retry) {
+                code = ((Authenticator.Retry) result).getResponseCode();
+            }
+            exchange.sendResponseHeaders(code, -1);
+            return false;
+        }
+
+        // a response the handler left open has been closed, by some other thread
+        void finishDetached(NioExchange exchange) {
+            boolean keepAlive = false;
+            try {
+                keepAlive = exchange.finish();
+            } catch (IOException e) {
+                // the client's gone, the connection is closed below
+            }
+            done(exchange, keepAlive);
+        }
+
+        // the exchange is over: on to the next request, or close
+        private void done(NioExchange exchange, boolean keepAlive) {
+            exchange.releaseOutput();
+            synchronized (this) {
+                busy = false;
+                lastActive = System.currentTimeMillis();
+                if (!keepAlive || closed) {
+                    close();
+                    return;
+                }
+                try {
+                    startNextRequest(); // maybe the next pipelined request is already here
+                } catch (IOException e) {
+                    close();
+                }
+            }
+            selector.wakeup(); // so the interest change takes effect now
+        }
+
+        // request body bytes, blocking until the selector has read some. -1 when the client closed
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            long deadline = System.currentTimeMillis() + IO_TIMEOUT_MILLIS;
+            while (in == null || !in.hasRemaining()) {
+                if (eof || closed) {
+                    return -1;
+                }
+                if (in == null) {
+                    in = borrow().flip();
+                }
+                interest(SelectionKey.OP_READ, true);
+                selector.wakeup();
+                waitUntil(deadline, "reading the request body");
+            }
+            int n = Math.min(len, in.remaining());
+            in.get(b, off, n);
+            return n;
+        }
+
+        // write all of it, waiting for room in the socket when it's full
+        void write(ByteBuffer... buffers) throws IOException {
+            long deadline = System.currentTimeMillis() + IO_TIMEOUT_MILLIS;
+            long left = 0;
+            for (ByteBuffer buffer : buffers) {
+                left += buffer.remaining();
+            }
+            while (left > 0) {
+                long n;
+                try {
+                    n = channel.write(buffers); // gathering: headers and body in one go
+                } catch (IOException e) {
+                    close();
+                    throw e;
+                }
+                left -= n;
+                if (left > 0 && n == 0) {
+                    synchronized (this) {
+                        if (closed) {
+                            throw new ClosedChannelException();
+                        }
+                        writable = false;
+                        interest(SelectionKey.OP_WRITE, true);
+                        selector.wakeup();
+                        while (!writable) {
+                            waitUntil(deadline, "writing the response");
+                        }
+                    }
+                }
+            }
+            synchronized (this) {
+                lastActive = System.currentTimeMillis();
+            }
+        }
+
+        private void waitUntil(long deadline, String what) throws IOException {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                close();
+                throw new IOException("Timed out " + what);
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close(); // like an interrupted blocking socket: half a request or response is no use
+                throw new IOException("Interrupted " + what);
+            }
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+        }
+
+        private void interest(int op, boolean on) {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = key.interestOps();
+            key.interestOps(on ? ops | op : ops & ~op);
+        }
+
+        private void sendErrorAndClose(int code, String reason) {
+            byte[] response = ("HTTP/1.1 " + code + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            try {
+                channel.write(ByteBuffer.wrap(response)); // tiny, it fits
+            } catch (IOException e) {
+                // closing anyway
+            }
+            close();
+        }
+
+        private void releaseInput() {
+            if (in != null) {
+                giveBack(in);
+                in = null;
+                scanned = 0;
+            }
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connections.remove(channel);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // it's closed either way
+            }
+            if (!busy) {
+                releaseInput(); // a busy connection's worker gives it back when it's done
+            }
+            notifyAll();
+        }
+    }
+
+    // ---- exchanges ----
+
+    private class NioExchange extends HttpExchange {
+        final Connection connection;
+        final String method;
+        final URI uri;
+        final String protocol;
+        final Headers requestHeaders;
+        final Headers responseHeaders = new Headers();
+        final Map<String, Object> attributes = new HashMap<>();
+        NioContext context;
+        HttpPrincipal principal; // who the context's authenticator said it is, if it has one
+        InputStream requestBody;
+        OutputStream responseBody;
+        final RequestBody rawBody;
+        ResponseBody rawResponse;
+        boolean sentHeaders;
+        int responseCode = -1;
+        boolean closeAfter;
+        private boolean handlerReturned; // these two guarded by the exchange, see detach()
+        private boolean bodyClosed;
+
+        NioExchange(Connection connection, String method, URI uri, String protocol, Headers requestHeaders) {
+            this.connection = connection;
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.requestHeaders = requestHeaders;
+            String encoding = requestHeaders.getFirst("Transfer-Encoding");
+            String length = requestHeaders.getFirst("Content-Length");
+            if (encoding != null && encoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+                rawBody = new RequestBody(connection, -1);
+            } else {
+                long n = 0;
+                if (length != null) {
+                    try {
+                        n = Long.parseLong(length.trim());
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Bad Content-Length " + length);
+                    }
+                }
+                rawBody = new RequestBody(connection, n);
+            }
+            requestBody = rawBody;
+            String wants = requestHeaders.getFirst("Connection");
+            boolean http10 = protocol.equals("HTTP/1.0");
+            closeAfter = wants != null ? wants.equalsIgnoreCase("close") || (http10 && !wants.equalsIgnoreCase("keep-alive")) : http10;
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return uri;
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return method;
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return context;
+        }
+
+        @Override
+        public void close() {
+            try {
+                getResponseBody().close();
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return requestBody;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            if (responseBody == null) {
+                rawResponse = new ResponseBody(this);
+                responseBody = rawResponse;
+            }
+            return responseBody;
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+            if (sentHeaders) {
+                throw new IOException("Headers already sent");
+            }
+            sentHeaders = true;
+            responseCode = rCode;
+            boolean head = method.equals("HEAD");
+            boolean noBody = head || rCode == 204 || rCode == 304 || rCode < 200 || responseLength == -1;
+            String connectionHeader = responseHeaders.getFirst("Connection");
+            if (connectionHeader != null && connectionHeader.equalsIgnoreCase("close")) {
+                closeAfter = true;
+            }
+
+            long length;
+            if (noBody) {
+                length = -1;
+                if (!head && rCode >= 200 && rCode != 204 && rCode != 304) {
+                    responseHeaders.set("Content-Length", "0");
+                } else if (head && responseLength > 0) {
+                    responseHeaders.set("Content-Length", Long.toString(responseLength));
+                }
+            } else if (responseLength > 0) {
+                length = responseLength;
+                responseHeaders.set("Content-Length", Long.toString(responseLength));
+            } else if (protocol.equals("HTTP/1.0")) {
+                length = 0; // no chunking in 1.0, the end of the body is the end of the connection
+                closeAfter = true;
+            } else {
+                length = 0;
+                responseHeaders.set("Transfer-Encoding", "chunked");
+            }
+            if (closeAfter) {
+                responseHeaders.set("Connection", "close");
+            }
+            responseHeaders.set("Date", httpDate());
+
+            StringBuilder sb = new StringBuilder(256);
+            sb.append(protocol.equals("HTTP/1.0") ? "HTTP/1.0 " : "HTTP/1.1 ").append(rCode).append(' ').append(reason(rCode)).append("\r\n");
+            for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+                for (String value : header.getValue()) {
+                    sb.append(header.getKey()).append(": ").append(value).append("\r\n");
+                }
+            }
+            sb.append("\r\n");
+            ByteBuffer headerBytes = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+            getResponseBody();
+            rawResponse.start(headerBytes, length, noBody && head);
+            if (noBody) {
+                rawResponse.close(); // nothing to wait for, the headers are the whole response
+            }
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            try {
+                return (InetSocketAddress) connection.channel.getRemoteAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            try {
+                return (InetSocketAddress) connection.channel.getLocalAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String getProtocol() {
+            return protocol;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            if (i != null) {
+                requestBody = i;
+            }
+            if (o != null) {
+                getResponseBody();
+                responseBody = o;
+            }
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return principal;
+        }
+
+        // after the handler: make sure the response is complete and the request body read, so the
+        // connection can take the next request. false if it has to be closed instead
+        boolean finish() throws IOException {
+            if (!sentHeaders) {
+                Log.warn("%s %s finished without a response", method, uri);
+                return false;
+            }
+            rawResponse.close();
+            if (!rawResponse.complete()) {
+                return false;
+            }
+            return !closeAfter && rawBody.drain(DRAIN_BYTES);
+        }
+
+        // the handler has returned. true if it left the response open, then closing it finishes the
+        // exchange. one or the other, never both: the thread that closes the body and the handler's
+        // thread each find out here which of them got there last
+        synchronized boolean detach() {
+            handlerReturned = true;
+            return sentHeaders && !bodyClosed;
+        }
+
+        // the body's been closed. true if the handler had already returned, so it's up to the closer
+        synchronized boolean closedAfterHandler() {
+            bodyClosed = true;
+            return handlerReturned;
+        }
+
+        void releaseOutput() {
+            if (rawResponse != null) {
+                rawResponse.release();
+            }
+        }
+    }
+
+    // the request body: exactly Content-Length bytes, or chunks until the last one. never reads past
+    // the end, so a pipelined request after it is left alone
+    private static class RequestBody extends InputStream {
+        private final Connection connection;
+        private final boolean chunked;
+        private long left; // in this body, or in the current chunk
+        private boolean done;
+        private final byte[] one = new byte[1];
+
+        RequestBody(Connection connection, long length) {
+            this.connection = connection;
+            this.chunked = length < 0;
+            this.left = Math.max(0, length);
+            this.done = length == 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (chunked && left == 0) {
+                left = nextChunkSize();
+                if (left == 0) {
+                    skipTrailers();
+                    done = true;
+                    return -1;
+                }
+            }
+            int n = connection.read(b, off, (int) Math.min(len, left));
+            if (n < 0) {
+                throw new EOFException("The client closed the connection in the middle of the request body");
+            }
+            left -= n;
+            if (left == 0) {
+                if (chunked) {
+                    readLine(); // the CRLF after the chunk
+                } else {
+                    done = true;
+                }
+            }
+            return n;
+        }
+
+        private long nextChunkSize() throws IOException {
+            String line = readLine();
+            int semicolon = line.indexOf(';'); // chunk extensions, ignored
+            try {
+                return Long.parseLong((semicolon >= 0 ? line.substring(0, semicolon) : line).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad chunk size " + line);
+            }
+        }
+
+        private void skipTrailers() throws IOException {
+            while (!readLine().isEmpty()) {
+                // trailer headers, nothing uses them
+                continue;
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (connection.read(one, 0, 1) < 0) {
+                    throw new EOFException("The client closed the connection in the middle of the request body");
+                }
+                if (one[0] == '\n') {
+                    int end = sb.length() > 0 && sb.charAt(sb.length() - 1) == '\r' ? sb.length() - 1 : sb.length();
+                    return sb.substring(0, end);
+                }
+                if (sb.length() > 1024) {
+                    throw new IOException("Chunk header too long");
+                }
+                sb.append((char) (one[0] & 0xFF));
+            }
+        }
+
+        // read and throw away up to max bytes of what the handler left. true if that was all of it
+        boolean drain(long max) throws IOException {
+            byte[] skip = new byte[8192];
+            long total = 0;
+            while (!done && total < max) {
+                int n = read(skip, 0, skip.length);
+                if (n < 0) {
+                    break;
+                }
+                total += n;
+            }
+            return done;
+        }
+    }
+
+    // the response body. bytes collect in a pooled direct buffer and go out when it's full, when
+    // the handler flushes, or at the end, with the headers in front of the first lot
+    private class ResponseBody extends OutputStream {
+        private final NioExchange exchange;
+        private ByteBuffer headers; // not sent yet
+        private ByteBuffer buffer; // borrowed on the first write
+        private long length; // > 0 fixed, 0 chunked (or until close for HTTP/1.0), -1 none
+        private boolean ignoreWrites; // HEAD: handlers may write the body anyway
+        private boolean started;
+        private boolean closed;
+        private long written;
+
+        ResponseBody(NioExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        void start(ByteBuffer headers, long length, boolean ignoreWrites) {
+            this.headers = headers;
+            this.length = length;
+            this.ignoreWrites = ignoreWrites;
+            this.started = true;
+        }
+
+        private boolean chunked() {
+            return length == 0 && !exchange.protocol.equals("HTTP/1.0");
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!started) {
+                throw new IOException("sendResponseHeaders() has to come before the body");
+            }
+            if (closed) {
+                throw new IOException("Response body already closed");
+            }
+            if (ignoreWrites || len == 0) {
+                return;
+            }
+            if (length < 0) {
+                throw new IOException("This response has no body");
+            }
+            if (length > 0 && written + len > length) {
+                throw new IOException("Response is longer than the " + length + " bytes promised");
+            }
+            written += len;
+            if (buffer == null) {
+                buffer = borrow();
+            }
+            if (len <= buffer.remaining()) {
+                buffer.put(b, off, len);
+                return;
+            }
+            if (len < buffer.capacity()) {
+                send(false);
+                buffer.put(b, off, len);
+                return;
+            }
+            // big enough to go straight out, along with whatever's buffered
+            send(false, ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (started && !closed) {
+                send(false);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed || !started) {
+                return;
+            }
+            closed = true;
+            try {
+                send(true);
+            } finally {
+                if (exchange.closedAfterHandler()) {
+                    exchange.connection.finishDetached(exchange);
+                }
+            }
+        }
+
+        // the whole body went out (a fixed length response that's short has to be cut off)
+        boolean complete() {
+            return closed && (length <= 0 || written == length) && !(length == 0 && !chunked());
+        }
+
+        // headers if they're still waiting, the buffer, any extra, and the end of the body if last
+        private void send(boolean last, ByteBuffer... extra) throws IOException {
+            List<ByteBuffer> out = new ArrayList<>(6);
+            if (headers != null) {
+                out.add(headers);
+                headers = null;
+            }
+            int size = buffer != null ? buffer.position() : 0;
+            for (ByteBuffer e : extra) {
+                size += e.remaining();
+            }
+            if (size > 0) {
+                if (chunked()) {
+                    out.add(ByteBuffer.wrap((Integer.toHexString(size) + "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+                }
+                if (buffer != null && buffer.position() > 0) {
+                    out.add(buffer.flip());
+                }
+                for (ByteBuffer e : extra) {
+                    out.add(e);
+                }
+                if (chunked()) {
+                    out.add(ByteBuffer.wrap(CRLF));
+                }
+            }
+            if (last && chunked()) {
+                out.add(ByteBuffer.wrap(LAST_CHUNK));
+            }
+            if (!out.isEmpty()) {
+                try {
+                    exchange.connection.write(out.toArray(new ByteBuffer[0]));
+                } finally {
+                    if (buffer != null) {
+                        buffer.clear();
+                    }
+                }
+            }
+        }
+
+        void release() {
+            if (buffer != null) {
+                giveBack(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    // ---- bits ----
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+    private static volatile long dateSecond;
+    private static volatile String dateText;
+
+    // the Date header, worked out once a second
+    private static String httpDate() {
+        long second = System.currentTimeMillis() / 1000;
+        String text = dateText;
+        if (second != dateSecond || text == null) {
+            text = HTTP_DATE.format(ZonedDateTime.now(ZoneOffset.UTC));
+            dateText = text;
+            dateSecond = second;
+        }
+        return text;
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 303: return "See Other";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 409: return "Conflict";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 415: return "Unsupported Media Type";
+            case 416: return "Range Not Satisfiable";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return code < 400 ? "OK" : "Error";
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.function.LongSupplier;
+
+// rendered pages, kept until the contacts change
+//
+// the home and search pages only depend on their URL and the contacts, so while the store's
+// version stays the same a page rendered once can be sent again as it is. wrap() puts this in
+// front of a page's handler: the first request for a URL at a version renders it into memory and
+// keeps the bytes, later ones get those, and any change to the contacts makes them all out of date
+// at once. the least recently used pages go when the cache is over its size.
+//
+// the version is also the page's ETag, so a browser coming back to a page it has gets a 304
+// without anything being rendered or sent. the bytes go out with their length and that ETag,
+// which lets Compression keep the compressed copy as well.
+public class PageCache {
+    private final LongSupplier version; // the contacts' version
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36); // versions start again on a restart
+    private final long limitBytes;
+    private final LinkedHashMap<String, Page> pages = new LinkedHashMap<>(16, 0.75f, true); // access order
+    private long cachedBytes;
+
+    private static final class Page {
+        final long version;
+        final String contentType;
+        final byte[] body;
+
+        Page(long version, String contentType, byte[] body) {
+            this.version = version;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    public PageCache(LongSupplier version, long limitBytes) {
+        this.version = version;
+        this.limitBytes = limitBytes;
+        Metrics.gauge("phonebook_page_cache_bytes", "Bytes of rendered pages kept", this::cachedBytes);
+    }
+
+    private synchronized long cachedBytes() {
+        return cachedBytes;
+    }
+
+    // name is the page's, for /metrics
+    public HttpHandler wrap(String name, HttpHandler handler) {
+        Metrics.Counter hits = Metrics.counter("phonebook_page_cache_hits_total", "Pages sent from the cache, or 304s", "page", name);
+        Metrics.Counter misses = Metrics.counter("phonebook_page_cache_misses_total", "Pages that had to be rendered", "page", name);
+        return exchange -> {
+            String query = exchange.getRequestURI().getRawQuery();
+            // a message (after a form, ?message=) is just for this one request, that page isn't kept
+            if (!"GET".equals(exchange.getRequestMethod()) || (query != null && PhoneBookServer.parseQueryParams(query).containsKey("message"))) {
+                handler.handle(exchange);
+                return;
+            }
+            long now = version.getAsLong(); // before rendering, so what's kept is at least this new
+            String etag = "\"" + epoch + "-" + now + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache"); // keep it, but ask each time
+            if (PhoneBookServer.ImageHandler.matchesEtag(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                hits.increment();
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            String key = exchange.getRequestURI().getRawPath() + (query != null ? "?" + query : "");
+            Page page;
+            synchronized (this) {
+                page = pages.get(key);
+            }
+            if (page != null && page.version == now) {
+                hits.increment();
+            } else {
+                misses.increment();
+                Rendering rendering = new Rendering(exchange);
+                handler.handle(rendering);
+                if (rendering.code != 200) {
+                    rendering.sendAsIs();
+                    return;
+                }
+                page = new Page(now, exchange.getResponseHeaders().getFirst("Content-Type"), rendering.body.toByteArray());
+                remember(key, page);
+            }
+            exchange.getResponseHeaders().set("Content-Type", page.contentType);
+            exchange.sendResponseHeaders(200, page.body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(page.body);
+            }
+        };
+    }
+
+    private synchronized void remember(String key, Page page) {
+        if (page.body.length > limitBytes) {
+            return;
+        }
+        Page old = pages.put(key, page);
+        cachedBytes += page.body.length - (old != null ? old.body.length : 0);
+        // drop the least recently used until we fit again
+        var it = pages.values().iterator();
+        while (cachedBytes > limitBytes && it.hasNext()) {
+            cachedBytes -= it.next().body.length;
+            it.remove();
+        }
+    }
+
+    // the handler's response, into memory instead of out to the browser
+    private static class Rendering extends ForwardingExchange {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(16 * 1024);
+        int code = -1;
+        long length;
+
+        Rendering(HttpExchange exchange) {
+            super(exchange);
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) {
+            code = rCode;
+            length = responseLength;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return body;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        // not a page (a 400, say): pass it on as the handler sent it
+        void sendAsIs() throws IOException {
+            exchange.getResponseHeaders().remove("ETag");
+            exchange.getResponseHeaders().remove("Cache-Control");
+            if (code < 0) {
+                return; // it didn't send anything, neither do we
+            }
+            exchange.sendResponseHeaders(code, length < 0 || body.size() == 0 ? -1 : body.size());
+            if (body.size() > 0) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    body.writeTo(out);
+                }
+            }
+        }
+    }
+}
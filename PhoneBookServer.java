@@ -3,74 +3,334 @@ import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.StringJoiner;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class PhoneBookServer {
     // setting up basic stuff
-    private static final int PORT = 8080; // the port our server runs on
+    private static final int DEFAULT_PORT = 8080; // the port our server runs on unless --port says otherwise
     private static final String CONTACTS_FILE = "contacts.dat"; // where we save our contacts
-    private static List<Contact> contacts = new ArrayList<>(); // our in-memory list of contacts
+    private static final String PHOTOS_DIR = "photos"; // where the photos themselves go
+    private static final String THUMBNAILS_DIR = "thumbnails"; // scaled down photos for the contacts table
+    private static final String TEMPLATES_DIR = "templates"; // the HTML pages
+    private static final String STATIC_DIR = "static"; // the stylesheet
+    private static final String CACHE_FOREVER = "public, max-age=31536000, immutable"; // for versioned URLs
+    private static final int LOADING_WAIT_SECONDS = 5; // longest a request waits for the contacts to load
+    private static final int MAX_PAGE_SIZE = 500; // most contacts on one page, whatever the URL says
+    private static final int KEEP_ALIVE_DRAIN_BYTES = 64 * 1024; // the most of a request body we'll read just to keep its connection
+    private static int pageSize = 50; // contacts per page unless the URL says otherwise
+    private static PhotoStore photos; // contact photos, by hash
+    private static Thumbnails thumbnails; // small versions of the photos
+    private static ContactStore contacts; // all our contacts, by id
+    private static ServerConfig settings; // the command line, for what's looked up later (see route)
+    private static final Map<String, Integer> ENDPOINT_CONCURRENCY = Map.of("api_import", 1, "api_export", 2); // unless --concurrency-<name> says
+    private static String primary; // host:port of the primary when we're a read-only replica, otherwise null
+    private static final SearchIndex searchIndex = new SearchIndex(); // for /search
+    private static final FuzzyIndex fuzzyIndex = new FuzzyIndex(); // for /search?mode=ranked
+    private static final SuggestIndex suggestIndex = new SuggestIndex(); // for /suggest, as the search box is typed in
+    private static final PhoneIndex phoneIndex = new PhoneIndex(); // numbers in any format, for /search and /lookup
+    private static Events events; // adds and deletes for open pages, null in the benchmarks
 
     public static void main(String[] args) throws IOException {
+        ServerConfig config = ServerConfig.fromArgs(args);
+        settings = config;
+        int port = config.getInt("port", DEFAULT_PORT);
+        int backlog = config.getInt("backlog", 0); // 0 lets the OS pick
+        pageSize = Math.max(1, Math.min(config.getInt("page-size", pageSize), MAX_PAGE_SIZE));
+        Log.setLevel(config.get("log-level", "info")); // debug shows every photo as it's handled
+
         // get existing contacts first
-        loadContacts();
+        PhoneNumbers.setCountryCode(config.get("country-code", "")); // e.g. 27, so 012... and +2712... match
+        photos = new PhotoStore(PHOTOS_DIR, config.getInt("photo-cache-mb", 64) * 1024L * 1024L);
+        System.setProperty("java.awt.headless", "true"); // we only use AWT to scale images, never to show them
+        thumbnails = new Thumbnails(photos, THUMBNAILS_DIR, config.getInt("thumbnail-cache-mb", 16) * 1024L * 1024L);
+        primary = config.get("replicate-from", null); // a replica keeps its copy in memory, not in contacts.dat
+        useContacts(new ContactStore(primary == null ? new ContactLog(CONTACTS_FILE) : null, photos)); // before loading, so the indexes fill as it goes
+        events = new Events(PhoneBookServer::eventJson);
+        contacts.addListener(events, false);
+
+        // the pages are compiled once here, only what's in their slots is filled in per request
+        StaticHandler staticFiles = new StaticHandler(STATIC_DIR);
+        Map<String, String> constants = Map.of("stylesheet", staticFiles.url("style.css"));
+        Template homePage = Template.load(Paths.get(TEMPLATES_DIR, "home.html"), constants);
+        Template searchPage = Template.load(Paths.get(TEMPLATES_DIR, "search.html"), constants);
+
+        // gzip/deflate for pages, the stylesheet and JSON (photos are skipped, they're compressed already)
+        Compression compression = new Compression(config.getInt("compression-level", 6),
+                config.getInt("compression-min-bytes", 1024), config.getInt("compression-cache-mb", 8) * 1024L * 1024L);
+
+        // the home and search pages, rendered once per URL until the contacts change, with ETags
+        PageCache pageCache = new PageCache(() -> contacts.version(), config.getInt("page-cache-mb", 16) * 1024L * 1024L);
 
         // setup the HTTP server - this is from Java docs
-        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        HttpServer server = createServer(config.get("engine", "jdk"), new InetSocketAddress(port), backlog);
         
-        // map URLs to their handlers
-        server.createContext("/", new HomeHandler()); // homepage
-        server.createContext("/add", new AddContactHandler()); // adding contacts
-        server.createContext("/search", new SearchContactHandler()); // searching contacts
-        server.createContext("/delete", new DeleteContactHandler()); // deleting contacts
-        server.createContext("/image", new ImageHandler()); // displaying contact images
+        // when we're busy, uploads and reads get in separately, and past their limits a request gets
+        // a quick 503 (Admission). --admission=off lets everything in
+        Admission.Limit reads = null;
+        Admission.Limit uploads = null;
+        if (!config.get("admission", "on").equals("off")) {
+            reads = Admission.Limit.adaptive("reads", 4, config.getInt("read-concurrency", 64), config.getInt("read-wait-ms", 200));
+            uploads = Admission.Limit.adaptive("uploads", 1, config.getInt("upload-concurrency", 4), config.getInt("upload-wait-ms", 2000));
+        }
+
+        // map URLs to their handlers, each one timed and counted for /metrics
+        route(server, "/", "home", reads, compression.wrap(whenLoaded(pageCache.wrap("home", new HomeHandler(homePage))))); // homepage
+        route(server, "/add", "add", uploads, compression.wrap(whenLoaded(primaryOnly(new AddContactHandler())))); // adding contacts
+        route(server, "/search", "search", reads, compression.wrap(whenLoaded(pageCache.wrap("search", new SearchContactHandler(searchPage))))); // searching contacts
+        route(server, "/delete", "delete", reads, compression.wrap(whenLoaded(primaryOnly(new DeleteContactHandler())))); // deleting contacts
+        route(server, "/image", "image", reads, compression.wrap(whenLoaded(new ImageHandler()))); // displaying contact images
+        route(server, "/suggest", "suggest", reads, compression.wrap(whenLoaded(new SuggestHandler()))); // typeahead for the search box
+        route(server, "/events", "events", reads, whenLoaded(events)); // live adds and deletes, not compressed, it's a stream
+        route(server, "/lookup", "lookup", reads, compression.wrap(whenLoaded(new LookupHandler()))); // who has this number
+        route(server, "/static/", "static", reads, compression.wrap(staticFiles)); // the stylesheet
+        route(server, "/api/contacts", "api_contacts", reads, compression.wrap(whenLoaded(primaryOnly(new ApiHandler())))); // JSON, for scripts
+        route(server, "/api/import", "api_import", uploads, whenLoaded(primaryOnly(new ImportHandler()))); // CSV or vCard in
+        route(server, "/api/export", "api_export", reads, compression.wrap(whenLoaded(new ExportHandler()))); // CSV or vCard out
+        server.createContext("/metrics", compression.wrap(Metrics.endpoint())); // for Prometheus
+        Metrics.gauge("phonebook_contacts", "Contacts in the phone book", () -> contacts.size());
+        Metrics.gauge("phonebook_log_messages_dropped", "Log messages thrown away because the log queue was full", Log::dropped);
         
         // fire up the server
-        server.setExecutor(null); // just use default executor
+        server.setExecutor(Admission.timed(createExecutor(config))); // so Admission knows how long requests queued
         server.start();
         
-        System.out.println("Server started on port " + PORT);
-        System.out.println("Open your browser and navigate to http://localhost:" + PORT);
-    }
+        Log.info("Server started on port %d", port);
+        Log.info("Open your browser and navigate to http://localhost:%d", port);
 
-    // load contacts from our saved file
-    private static void loadContacts() {
-        try {
-            File file = new File(CONTACTS_FILE);
-            if (file.exists()) { // only try to load if file exists
-                try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-                    contacts = (List<Contact>) ois.readObject(); // read the whole list at once
+        if (primary != null) {
+            // the contacts come from the primary, requests wait (whenLoaded) for the first copy
+            new Replication.Replica(primary, contacts, photos).start();
+            Log.info("Read-only replica of %s", primary);
+            return;
+        }
+        // the contacts load while we already take requests, anything that needs them waits (whenLoaded)
+        int replicationPort = config.getInt("replication-port", 0); // 0 means no replicas
+        Replication.Primary replication = replicationPort > 0
+                ? new Replication.Primary(contacts, photos, config.getInt("replication-backlog", 100_000)) : null;
+        new Thread(() -> {
+            if (!loadContacts()) {
+                return; // a replica would only copy the part that loaded
+            }
+            if (replication != null) {
+                try {
+                    replication.start(replicationPort);
+                } catch (IOException e) {
+                    Log.error("Can't take replicas on port %d: %s", replicationPort, e.getMessage());
                 }
             }
-        } catch (Exception e) {
-            System.err.println("Error loading contacts: " + e.getMessage());
-            contacts = new ArrayList<>(); // just start with empty list if something goes wrong
+        }, "contact-loader").start();
+    }
+
+    // --engine=jdk is the JDK's own server, nio is ours on a single selector thread (NioHttpServer).
+    // same handlers either way, so the two can be compared under the same load
+    private static HttpServer createServer(String engine, InetSocketAddress address, int backlog) throws IOException {
+        switch (engine) {
+            case "jdk":
+                return HttpServer.create(address, backlog);
+            case "nio":
+                Log.info("Using the NIO engine");
+                return NioHttpServer.create(address, backlog);
+            default:
+                throw new IllegalArgumentException("Unknown --engine " + engine + " (use jdk or nio)");
+        }
+    }
+
+    // pick what runs the requests: --executor=virtual (a thread per request), pool (--threads of them)
+    // or single (everything on the server's own thread, like before)
+    private static Executor createExecutor(ServerConfig config) {
+        String mode = config.get("executor", "pool");
+        switch (mode) {
+            case "single":
+                Log.info("Handling requests on a single thread");
+                return null; // HttpServer then uses its dispatcher thread (the NIO engine, one worker thread)
+            case "virtual":
+                ExecutorService virtual = newVirtualThreadExecutor();
+                if (virtual != null) {
+                    Log.info("Handling requests on virtual threads");
+                    return virtual;
+                }
+                Log.warn("Virtual threads need Java 21 or newer, using a thread pool instead");
+                return threadPool(config);
+            case "pool":
+                return threadPool(config);
+            default:
+                throw new IllegalArgumentException("Unknown --executor " + mode + " (use virtual, pool or single)");
+        }
+    }
+
+    // --threads workers, twice the cores unless told otherwise
+    private static ExecutorService threadPool(ServerConfig config) {
+        int threads = config.getInt("threads", Runtime.getRuntime().availableProcessors() * 2);
+        if (threads < 1) {
+            throw new IllegalArgumentException("--threads must be at least 1");
+        }
+        Log.info("Handling requests on a pool of %d threads", threads);
+        return Executors.newFixedThreadPool(threads, namedThreads("http-worker"));
+    }
+
+    // a thread-per-task executor on virtual threads, or null when this JVM doesn't have them.
+    // looked up by reflection so the server still compiles and runs on Java 17
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
         }
     }
 
-    // save contacts to file
-    private static void saveContacts() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(CONTACTS_FILE))) {
-            oos.writeObject(contacts); // write the whole list at once
+    // numbered threads so they're easy to spot in a thread dump
+    static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> new Thread(r, prefix + "-" + count.incrementAndGet());
+    }
+
+    // the store the handlers use, with our indexes kept up to date from it.
+    // main() sets it up, the benchmarks use it to run the handlers against their own data
+    static void useContacts(ContactStore store) {
+        contacts = store;
+        store.addListener(searchIndex);
+        store.addListener(fuzzyIndex);
+        store.addListener(suggestIndex);
+        store.addListener(phoneIndex);
+    }
+
+    // load contacts from our saved file (last snapshot plus everything logged since)
+    // false if it went wrong. we keep serving what did load, but nothing can be changed
+    // (whenLoaded turns changes away) until the data files are fixed and the server restarted
+    private static boolean loadContacts() {
+        long start = System.nanoTime();
+        try {
+            contacts.load();
+            Log.info("Loaded %d contacts in %d ms", contacts.size(), (System.nanoTime() - start) / 1_000_000);
+            return true;
         } catch (Exception e) {
-            System.err.println("Error saving contacts: " + e.getMessage());
+            Log.error(e, "Error loading contacts, only reading from now on: %s", e.getMessage());
+            return false;
+        }
+    }
+
+    // a context whose requests are counted and timed under name (see Metrics), and let in only while
+    // budget (null for no admission control) and the endpoint's own --concurrency-<name> have room
+    private static void route(HttpServer server, String path, String name, Admission.Limit budget, HttpHandler handler) {
+        if (budget != null) {
+            int most = settings.getInt("concurrency-" + name, ENDPOINT_CONCURRENCY.getOrDefault(name, 0)); // 0: just the budget
+            Admission.Limit endpoint = most > 0 ? Admission.Limit.fixed(name, most, budget.maxWaitNanos / 1_000_000) : null;
+            handler = Admission.wrap(endpoint, budget, handler);
         }
+        server.createContext(path, Metrics.wrap(name, keepAlive(handler)));
+    }
+
+    // the server only keeps a connection open for the browser's next request if this request's
+    // body was read to the end before the response finished. a response with no body (-1, like our
+    // redirects and 404s) finishes the moment its headers go out, before anything else would get
+    // round to reading the rest, so read what's left first. only a little: for a big upload we're
+    // turning away it's cheaper to let the connection go
+    private static HttpHandler keepAlive(HttpHandler handler) {
+        return exchange -> handler.handle(new ForwardingExchange(exchange) {
+            @Override
+            public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+                if (responseLength == -1 || rCode == 304 || "HEAD".equals(getRequestMethod())) {
+                    InputStream body = getRequestBody();
+                    byte[] skip = new byte[8192];
+                    for (int read = 0; read < KEEP_ALIVE_DRAIN_BYTES; ) {
+                        int n = body.read(skip);
+                        if (n < 0) {
+                            break;
+                        }
+                        read += n;
+                    }
+                }
+                super.sendResponseHeaders(rCode, responseLength);
+            }
+        });
+    }
+
+    // a replica only reads, anything else has to go to the primary. it's turned away with a 403
+    // that says where that is
+    static HttpHandler primaryOnly(HttpHandler handler) {
+        return exchange -> {
+            String method = exchange.getRequestMethod();
+            if (primary == null || "GET".equals(method) || "HEAD".equals(method)) {
+                handler.handle(exchange);
+                return;
+            }
+            byte[] body = ("This server is a read-only replica, send changes to the primary (" + primary + ")")
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            exchange.sendResponseHeaders(403, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        };
+    }
+
+    // hold a request back until the contacts are loaded, so nobody sees half a phone book.
+    // if that takes a while, tell the browser to try again in a moment. if loading failed, changes
+    // are turned away for good (the store would refuse them anyway)
+    static HttpHandler whenLoaded(HttpHandler handler) {
+        return exchange -> {
+            boolean ready;
+            try {
+                ready = contacts.awaitLoaded(LOADING_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ready = false;
+            }
+            if (!ready) {
+                byte[] body = "Still loading the phone book, try again in a moment".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                exchange.sendResponseHeaders(503, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+                return;
+            }
+            String method = exchange.getRequestMethod();
+            if (contacts.loadFailed() && !"GET".equals(method) && !"HEAD".equals(method)) {
+                byte[] body = "The phone book didn't load completely, it can't be changed right now".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                exchange.sendResponseHeaders(503, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+                return;
+            }
+            handler.handle(exchange);
+        };
     }
 
     // process URL parameters into a map
-    private static Map<String, String> parseQueryParams(String query) {
+    static Map<String, String> parseQueryParams(String query) {
         Map<String, String> params = new HashMap<>();
         if (query != null && !query.isEmpty()) {
             String[] pairs = query.split("&"); // parameters are separated by &
@@ -97,120 +357,73 @@ public class PhoneBookServer {
         return parseQueryParams(requestBody.toString()); // reuse our query parser
     }
 
-    // handle the home page
+    // handle the home page, one page of contacts at a time
     static class HomeHandler implements HttpHandler {
+        private final Template page;
+
+        HomeHandler(Template page) {
+            this.page = page;
+        }
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             // grab any URL parameters
             String query = exchange.getRequestURI().getQuery();
             Map<String, String> params = parseQueryParams(query);
             String message = params.getOrDefault("message", "");
+            long after = pageCursor(params);
+            int limit = pageLimit(params);
+            String since = events != null ? events.lastId() : ""; // before the rows, so the page misses no change after them
 
-            // build the HTML for our page
-            StringBuilder response = new StringBuilder();
-            response.append("<!DOCTYPE html><html><head><title>Phone Book</title>");
-            response.append("<style>");
-            response.append("body { font-family: Arial, sans-serif; margin: 20px; background-color: #f8f9fa; }");
-            response.append("h1, h2 { color: #333; }");
-            response.append(".container { display: flex; gap: 20px; margin-bottom: 20px; }");
-            response.append(".section { flex: 1; background: #ffffff; padding: 20px; border-radius: 8px; box-shadow: 0 2px 4px rgba(0,0,0,0.1); }");
-            response.append("input, button { margin: 8px 0; padding: 10px; width: 100%; box-sizing: border-box; border: 1px solid #ddd; border-radius: 4px; }");
-            response.append("button { background-color: #4CAF50; color: white; border: none; cursor: pointer; font-weight: bold; }");
-            response.append("button:hover { background-color: #45a049; }");
-            response.append("table { width: 100%; border-collapse: collapse; margin-top: 20px; background: white; box-shadow: 0 2px 4px rgba(0,0,0,0.1); border-radius: 8px; overflow: hidden; }");
-            response.append("table, th, td { border: 1px solid #ddd; padding: 12px; }");
-            response.append("th { background-color: #f2f2f2; text-align: left; }");
-            response.append("tr:nth-child(even) { background-color: #f9f9f9; }");
-            response.append("tr:hover { background-color: #f1f1f1; }");
-            response.append(".message { color: #4CAF50; font-weight: bold; padding: 10px; background-color: #e8f5e9; border-radius: 4px; margin-bottom: 20px; }");
-            response.append(".contact-image { max-width: 100px; max-height: 100px; border-radius: 4px; object-fit: contain; }");
-            response.append(".small { font-size: 12px; color: #777; margin-top: 4px; }");
-            response.append("</style>");
-            response.append("</head><body>");
-            
-            // show success/error message if we have one
-            if (!message.isEmpty()) {
-                response.append("<div class=\"message\">").append(message).append("</div>");
-            }
-            
-            // page title
-            response.append("<h1>Phone Book Application</h1>");
-            
-            response.append("<div class=\"container\">");
-            
-            // form for adding contacts
-            response.append("<div class=\"section\">");
-            response.append("<h2>Add Contact</h2>");
-            response.append("<form action=\"/add\" method=\"post\" enctype=\"multipart/form-data\">");
-            response.append("Name: <input type=\"text\" name=\"name\" required><br>");
-            response.append("Phone: <input type=\"text\" name=\"phone\" placeholder=\"Home/Office Phone\" required><br>");
-            response.append("Cell Phone: <input type=\"text\" name=\"cellPhone\" placeholder=\"Mobile Number\" required><br>");
-            response.append("Photo: <input type=\"file\" name=\"photo\" accept=\"image/*\"><br>");
-            response.append("<p class=\"small\">Supported formats: JPEG, PNG, GIF</p>");
-            response.append("<button type=\"submit\">Add Contact</button>");
-            response.append("</form>");
-            response.append("</div>");
-            
-            // form for searching contacts
-            response.append("<div class=\"section\">");
-            response.append("<h2>Search Contact</h2>");
-            response.append("<form action=\"/search\" method=\"get\">");
-            response.append("Name: <input type=\"text\" name=\"query\" required><br>");
-            response.append("<button type=\"submit\">Search</button>");
-            response.append("</form>");
-            response.append("</div>");
-            
-            response.append("</div>");
-            
-            // show all contacts in a table
-            response.append("<h2>Contacts</h2>");
-            response.append("<table>");
-            response.append("<tr><th>Name</th><th>Phone</th><th>Cell Phone</th><th>Photo</th><th>Action</th></tr>");
-            
-            for (int i = 0; i < contacts.size(); i++) {
-                Contact contact = contacts.get(i);
-                response.append("<tr>");
-                response.append("<td>").append(contact.getName()).append("</td>");
-                response.append("<td>").append(contact.getPhone()).append("</td>");
-                response.append("<td>").append(contact.getCellPhone()).append("</td>");
-                
-                // show image if available
-                response.append("<td>");
-                if (contact.hasPhoto()) {
-                    // add timestamp to prevent browser caching
-                    String timestamp = String.valueOf(System.currentTimeMillis());
-                    response.append("<div style=\"width: 100px; height: 100px; display: flex; align-items: center; justify-content: center; background-color: #f5f5f5;\">");
-                    response.append("<img src=\"/image?id=").append(i).append("&t=").append(timestamp).append("\" class=\"contact-image\" alt=\"Photo of ").append(contact.getName()).append("\">");
-                    response.append("</div>");
-                } else {
-                    response.append("No image");
+            // this page of contacts, plus one more if there is one so we know to offer a next page
+            List<Contact> rows = new ArrayList<>(limit + 1);
+            for (Contact contact : contacts.after(after)) {
+                rows.add(contact);
+                if (rows.size() > limit) {
+                    break;
                 }
-                response.append("</td>");
-                
-                // delete button for each contact
-                response.append("<td><form action=\"/delete\" method=\"post\">");
-                response.append("<input type=\"hidden\" name=\"id\" value=\"").append(i).append("\">");
-                response.append("<button type=\"submit\">Delete</button>");
-                response.append("</form></td>");
-                
-                response.append("</tr>");
             }
-            
-            response.append("</table>");
-            response.append("</body></html>");
 
-            // send back our HTML page
+            // the rows are written as they're rendered, so we can't know the length up front
             exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
-            exchange.sendResponseHeaders(200, response.length());
-            
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(response.toString().getBytes(StandardCharsets.UTF_8));
+            exchange.sendResponseHeaders(200, 0); // 0 means chunked
+
+            try (HtmlWriter html = new HtmlWriter(exchange.getResponseBody())) {
+                page.write(html, (slot, out) -> {
+                    switch (slot) {
+                        case "message":
+                            // show success/error message if we have one
+                            if (!message.isEmpty()) {
+                                out.raw("<div class=\"message\">").text(message).raw("</div>");
+                            }
+                            break;
+                        case "rows":
+                            writeContactRows(out, rows, limit, true);
+                            break;
+                        case "pages":
+                            writePageLinks(out, "/?", after, rows, limit);
+                            break;
+                        case "since":
+                            out.text(since);
+                            break;
+                        default:
+                            throw new IllegalStateException("Unknown slot " + slot + " in the home page");
+                    }
+                });
             }
         }
     }
 
     // handles adding new contacts
     static class AddContactHandler implements HttpHandler {
+        private static final long MAX_FIELD_BYTES = 4 * 1024; // name and numbers
+        private static final long MAX_PHOTO_BYTES = 10 * 1024 * 1024;
+        private static final long MAX_REQUEST_BYTES = MAX_PHOTO_BYTES + 64 * 1024; // photo plus the rest of the form
+        private static final int SPILL_THRESHOLD = 256 * 1024; // bigger photos go to a temp file while parsing
+
+        private final MultipartParser multipartParser =
+                new MultipartParser(MAX_FIELD_BYTES, MAX_PHOTO_BYTES, MAX_REQUEST_BYTES, SPILL_THRESHOLD);
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             if ("POST".equals(exchange.getRequestMethod())) {
@@ -220,52 +433,44 @@ public class PhoneBookServer {
                     // check if it's a regular form or one with file uploads
                     if (contentType != null && contentType.startsWith("multipart/form-data")) {
                         // handle multipart form data - needed for file uploads
-                        String boundary = extractBoundary(contentType);
+                        String boundary = MultipartParser.extractBoundary(contentType);
                         
                         if (boundary != null) {
-                            // read all the request data
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            byte[] buffer = new byte[4096];
-                            int bytesRead;
-                            InputStream is = exchange.getRequestBody();
-                            while ((bytesRead = is.read(buffer)) != -1) {
-                                baos.write(buffer, 0, bytesRead);
+                            // don't even start reading if the browser already told us it's too big
+                            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+                            if (length != null && Long.parseLong(length.trim()) > MAX_REQUEST_BYTES) {
+                                throw new MultipartParser.LimitExceededException("Request is " + length + " bytes");
                             }
-                            byte[] requestData = baos.toByteArray();
-                            
-                            // parse all the form fields and files
-                            Map<String, Object> formData = parseMultipartForm(requestData, boundary);
-                            
-                            // grab our form values
-                            String name = (String) formData.getOrDefault("name", "");
-                            String phone = (String) formData.getOrDefault("phone", "");
-                            String cellPhone = (String) formData.getOrDefault("cellPhone", "");
-                            byte[] photoData = (byte[]) formData.getOrDefault("photo", null);
-                            
-                            if (!name.isEmpty() && !phone.isEmpty() && !cellPhone.isEmpty()) {
-                                Contact contact = new Contact(name, phone, cellPhone);
+
+                            // parse the form fields and files as they come in
+                            try (MultipartParser.Form formData = multipartParser.parse(exchange.getRequestBody(), boundary)) {
+                                // grab our form values
+                                String name = formData.getValue("name");
+                                String phone = formData.getValue("phone");
+                                String cellPhone = formData.getValue("cellPhone");
+                                MultipartParser.Part photo = formData.getFile("photo");
                                 
-                                // add photo if we have one
-                                if (photoData != null && photoData.length > 0) {
-                                    System.out.println("Adding photo for contact: " + name + " (size: " + photoData.length + " bytes)");
-                                    contact.setPhoto(photoData);
-                                    
-                                    // quick check to make sure photo was saved
-                                    byte[] savedPhoto = contact.getPhoto();
-                                    if (savedPhoto != null) {
-                                        System.out.println("Verified photo storage: " + savedPhoto.length + " bytes");
-                                    } else {
-                                        System.err.println("ERROR: Failed to save photo data!");
+                                if (!name.isEmpty() && !phone.isEmpty() && !cellPhone.isEmpty()) {
+                                    // add photo if we have one - it goes straight from the upload to the photo store
+                                    String photoHash = null;
+                                    String photoType = null;
+                                    if (photo != null) {
+                                        Log.debug("Adding photo for contact: %s (size: %d bytes)", name, photo.getSize());
+                                        try (InputStream in = photo.open()) {
+                                            photoHash = photos.put(in);
+                                        }
+                                        photoType = photos.detectType(photoHash); // worked out once, here
                                     }
+                                    Contact contact = contacts.add(new Contact(name, phone, cellPhone, photoHash, photoType));
+                                    if (photoHash != null) {
+                                        Log.debug("Stored photo %s for contact %d", photoHash, contact.getId());
+                                        thumbnails.prepare(photoHash); // ready before the browser asks for it
+                                    }
+                                    
+                                    // back with success message
+                                    sendResult(exchange, 200, "Contact added successfully");
+                                    return;
                                 }
-                                
-                                contacts.add(contact);
-                                saveContacts();
-                                
-                                // redirect back with success message
-                                exchange.getResponseHeaders().set("Location", "/?message=Contact+added+successfully");
-                                exchange.sendResponseHeaders(302, -1);
-                                return;
                             }
                         }
                     } else {
@@ -278,211 +483,193 @@ public class PhoneBookServer {
                         
                         if (!name.isEmpty() && !phone.isEmpty() && !cellPhone.isEmpty()) {
                             contacts.add(new Contact(name, phone, cellPhone));
-                            saveContacts();
                             
-                            // redirect back with success message
-                            exchange.getResponseHeaders().set("Location", "/?message=Contact+added+successfully");
-                            exchange.sendResponseHeaders(302, -1);
+                            // back with success message
+                            sendResult(exchange, 200, "Contact added successfully");
                             return;
                         }
                     }
+                } catch (MultipartParser.LimitExceededException e) {
+                    Log.warn("Rejected upload: %s", e.getMessage());
+                    sendResult(exchange, 413, "Upload too large (photos up to 10 MB)");
+                    return;
                 } catch (Exception e) {
-                    System.err.println("Error adding contact: " + e.getMessage());
-                    e.printStackTrace();
+                    Log.error(e, "Error adding contact: %s", e.getMessage());
                 }
                 
                 // if we get here, something went wrong
-                exchange.getResponseHeaders().set("Location", "/?message=Error+adding+contact");
-                exchange.sendResponseHeaders(302, -1);
+                sendResult(exchange, 400, "Error adding contact");
             } else {
                 // only POST is allowed
                 exchange.sendResponseHeaders(405, -1);
             }
         }
-        
-        // get the boundary for multipart forms
-        private String extractBoundary(String contentType) {
-            if (contentType != null && contentType.toLowerCase().startsWith("multipart/form-data")) {
-                int boundaryIndex = contentType.indexOf("boundary=");
-                if (boundaryIndex != -1) {
-                    return contentType.substring(boundaryIndex + 9);
-                }
-            }
-            return null;
-        }
-        
-        // this is the tricky part - handling file uploads
-        private Map<String, Object> parseMultipartForm(byte[] data, String boundary) throws IOException {
-            Map<String, Object> formFields = new HashMap<>();
-            
-            try {
-                // multipart forms start with -- and then the boundary
-                String fullBoundary = "--" + boundary;
-                
-                // we need this to process the headers
-                String dataStr = new String(data, StandardCharsets.ISO_8859_1);
-                
-                // find all the boundaries in the data
-                int pos = 0;
-                int boundaryLength = fullBoundary.length();
-                List<Integer> positions = new ArrayList<>();
-                
-                while ((pos = dataStr.indexOf(fullBoundary, pos)) != -1) {
-                    positions.add(pos);
-                    pos += boundaryLength;
-                }
-                
-                // process each part between boundaries
-                for (int i = 0; i < positions.size() - 1; i++) {
-                    int start = positions.get(i) + boundaryLength;
-                    int end = positions.get(i + 1);
-                    
-                    // skip CRLF after boundary
-                    if (start < dataStr.length() && dataStr.charAt(start) == '\r' && start + 1 < dataStr.length() && dataStr.charAt(start + 1) == '\n') {
-                        start += 2;
-                    }
-                    
-                    // find where headers end and content starts (double CRLF)
-                    int headersEnd = dataStr.indexOf("\r\n\r\n", start);
-                    if (headersEnd == -1 || headersEnd >= end) continue;
-                    
-                    String headers = dataStr.substring(start, headersEnd);
-                    int contentStart = headersEnd + 4; // Skip \r\n\r\n
-                    
-                    // remove CRLF before next boundary
-                    int contentEnd = end;
-                    if (contentEnd - 2 >= contentStart && dataStr.charAt(contentEnd - 2) == '\r' && dataStr.charAt(contentEnd - 1) == '\n') {
-                        contentEnd -= 2;
-                    }
-                    
-                    // get the field name and check if it's a file
-                    String fieldName = extractFieldName(headers);
-                    boolean isFile = headers.contains("filename=\"") && !headers.contains("filename=\"\"");
-                    
-                    if (fieldName == null) continue;
-                    
-                    if (isFile) {
-                        // for files, keep the raw bytes
-                        byte[] fileData = new byte[contentEnd - contentStart];
-                        System.arraycopy(data, contentStart, fileData, 0, fileData.length);
-                        formFields.put(fieldName, fileData);
-                        System.out.println("Found file for field: " + fieldName + ", size: " + fileData.length + " bytes");
-                    } else {
-                        // for regular fields, convert to string
-                        String value = dataStr.substring(contentStart, contentEnd);
-                        formFields.put(fieldName, value);
-                    }
-                }
-            } catch (Exception e) {
-                System.err.println("Error parsing multipart form: " + e.getMessage());
-                e.printStackTrace();
-            }
-            
-            return formFields;
-        }
-        
-        // find where the headers end
-        private int findHeaderEnd(byte[] data, int start, int end) {
-            for (int i = start; i < end - 3; i++) {
-                if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
-                    return i + 4;
-                }
-            }
-            return -1;
-        }
-        
-        // get the field name from the headers
-        private String extractFieldName(String headers) {
-            int nameStart = headers.indexOf("name=\"");
-            if (nameStart != -1) {
-                nameStart += 6; // Skip 'name="'
-                int nameEnd = headers.indexOf("\"", nameStart);
-                if (nameEnd != -1) {
-                    return headers.substring(nameStart, nameEnd);
-                }
-            }
-            return null;
-        }
     }
 
-    // handles searching for contacts
+    // handles searching for contacts, a page of results at a time
     static class SearchContactHandler implements HttpHandler {
+        private final Template page;
+
+        SearchContactHandler(Template page) {
+            this.page = page;
+        }
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             // get the search query
             String query = exchange.getRequestURI().getQuery();
             Map<String, String> params = parseQueryParams(query);
             String searchQuery = params.getOrDefault("query", "").toLowerCase();
-            
-            // build HTML for search results
-            StringBuilder response = new StringBuilder();
-            response.append("<!DOCTYPE html><html><head><title>Search Results</title>");
-            response.append("<style>");
-            response.append("body { font-family: Arial, sans-serif; margin: 20px; }");
-            response.append("h1, h2 { color: #333; }");
-            response.append("table { width: 100%; border-collapse: collapse; }");
-            response.append("table, th, td { border: 1px solid #ddd; padding: 8px; }");
-            response.append("th { background-color: #f2f2f2; text-align: left; }");
-            response.append("tr:nth-child(even) { background-color: #f9f9f9; }");
-            response.append(".contact-image { max-width: 100px; max-height: 100px; }");
-            response.append("</style>");
-            response.append("</head><body>");
-            
-            response.append("<h1>Search Results for \"").append(searchQuery).append("\"</h1>");
-            response.append("<a href=\"/\">Back to Home</a>");
-            
-            // show matching contacts in a table
-            response.append("<table>");
-            response.append("<tr><th>Name</th><th>Phone</th><th>Cell Phone</th><th>Photo</th></tr>");
-            
-            boolean foundResults = false;
-            for (int i = 0; i < contacts.size(); i++) {
-                Contact contact = contacts.get(i);
-                if (contact.getName().toLowerCase().contains(searchQuery) || 
-                    contact.getPhone().toLowerCase().contains(searchQuery) || 
-                    contact.getCellPhone().toLowerCase().contains(searchQuery)) {
-                    foundResults = true;
-                    response.append("<tr>");
-                    response.append("<td>").append(contact.getName()).append("</td>");
-                    response.append("<td>").append(contact.getPhone()).append("</td>");
-                    response.append("<td>").append(contact.getCellPhone()).append("</td>");
-                    
-                    // show image if available
-                    response.append("<td>");
-                    if (contact.hasPhoto()) {
-                        // add timestamp to prevent browser caching
-                        String timestamp = String.valueOf(System.currentTimeMillis());
-                        response.append("<div style=\"width: 100px; height: 100px; display: flex; align-items: center; justify-content: center; background-color: #f5f5f5;\">");
-                        response.append("<img src=\"/image?id=").append(i).append("&t=").append(timestamp).append("\" class=\"contact-image\" alt=\"Photo of ").append(contact.getName()).append("\">");
-                        response.append("</div>");
-                    } else {
-                        response.append("No image");
+            long after = pageCursor(params);
+            int limit = pageLimit(params);
+            // ranked: the best matching names first, typos forgiven, just the top page of them.
+            // numbers are matched exactly either way
+            boolean ranked = "ranked".equals(params.get("mode")) && !PhoneNumbers.looksLikeNumber(searchQuery);
+
+            List<Contact> rows = new ArrayList<>(limit + 1);
+            if (ranked) {
+                for (FuzzyIndex.Hit hit : fuzzyIndex.search(searchQuery, limit)) {
+                    Contact contact = contacts.get(hit.id);
+                    if (contact != null) {
+                        rows.add(contact);
+                    }
+                }
+            } else {
+                // anything that looks like a phone number also matches other ways of writing it
+                List<Long> matches = searchIndex.search(searchQuery);
+                if (PhoneNumbers.looksLikeNumber(searchQuery)) {
+                    TreeSet<Long> both = new TreeSet<>(matches);
+                    both.addAll(phoneIndex.startingWith(searchQuery));
+                    matches = new ArrayList<>(both);
+                }
+
+                // matches are in id order, so the cursor is just where to start in the list
+                int start = Collections.binarySearch(matches, after);
+                start = start >= 0 ? start + 1 : -start - 1;
+                for (int i = start; i < matches.size() && rows.size() <= limit; i++) {
+                    Contact contact = contacts.get(matches.get(i));
+                    if (contact != null) { // might have been deleted a moment ago
+                        rows.add(contact);
                     }
-                    response.append("</td>");
-                    
-                    response.append("</tr>");
                 }
             }
-            
-            response.append("</table>");
-            
-            // show message if no results found
-            if (!foundResults) {
-                response.append("<p>No contacts found matching \"").append(searchQuery).append("\"</p>");
-            }
-            
-            response.append("</body></html>");
 
-            // send the response
             exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
-            exchange.sendResponseHeaders(200, response.length());
-            
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(response.toString().getBytes(StandardCharsets.UTF_8));
+            exchange.sendResponseHeaders(200, 0); // chunked
+
+            try (HtmlWriter html = new HtmlWriter(exchange.getResponseBody())) {
+                page.write(html, (slot, out) -> {
+                    switch (slot) {
+                        case "query":
+                            out.text(searchQuery);
+                            break;
+                        case "rows":
+                            writeContactRows(out, rows, limit, false);
+                            break;
+                        case "none":
+                            // show message if no results found
+                            if (rows.isEmpty() && after == 0) {
+                                out.raw("<p>No contacts found matching \"").text(searchQuery).raw("\"</p>");
+                            }
+                            break;
+                        case "pages":
+                            if (!ranked) { // the top matches are all there is
+                                String base = "/search?query=" + URLEncoder.encode(searchQuery, StandardCharsets.UTF_8) + "&";
+                                writePageLinks(out, base, after, rows, limit);
+                            }
+                            break;
+                        default:
+                            throw new IllegalStateException("Unknown slot " + slot + " in the search page");
+                    }
+                });
             }
         }
     }
 
+    // the bits of a table row that are the same for every contact, encoded once
+    private static final Template ROW = Template.compile(
+            "<tr data-id=\"{{id}}\"><td>{{name}}</td><td>{{phone}}</td><td>{{cellPhone}}</td><td>{{photo}}</td>{{delete}}</tr>\n");
+    // small version in the table, the full photo only when clicked
+    private static final Template PHOTO = Template.compile(
+            "<div class=\"photo\"><a href=\"{{full}}\" target=\"_blank\">"
+            + "<img src=\"{{thumb}}\" srcset=\"{{thumb2x}} 2x\" class=\"contact-image\" alt=\"Photo of {{name}}\"></a></div>");
+    private static final Template DELETE = Template.compile(
+            "<td><form action=\"/delete\" method=\"post\"><input type=\"hidden\" name=\"id\" value=\"{{id}}\">"
+            + "<button type=\"submit\">Delete</button></form></td>");
+
+    // the first limit contacts as table rows, with a delete button on the home page
+    private static void writeContactRows(HtmlWriter html, List<Contact> rows, int limit, boolean withDelete)
+            throws IOException {
+        for (Contact contact : rows.subList(0, Math.min(limit, rows.size()))) {
+            ROW.write(html, (slot, out) -> {
+                switch (slot) {
+                    case "id": out.raw(contact.getId()); break;
+                    case "name": out.text(contact.getName()); break;
+                    case "phone": out.text(contact.getPhone()); break;
+                    case "cellPhone": out.text(contact.getCellPhone()); break;
+                    case "photo":
+                        // show image if available
+                        if (contact.hasPhoto()) {
+                            PHOTO.write(out, (photoSlot, photo) -> {
+                                switch (photoSlot) {
+                                    case "full": photo.text(photoUrl(contact, null)); break;
+                                    case "thumb": photo.text(photoUrl(contact, "thumb")); break;
+                                    case "thumb2x": photo.text(photoUrl(contact, "thumb2x")); break;
+                                    case "name": photo.text(contact.getName()); break;
+                                }
+                            });
+                        } else {
+                            out.raw("No image");
+                        }
+                        break;
+                    case "delete":
+                        // delete button for each contact
+                        if (withDelete) {
+                            DELETE.write(out, (idSlot, id) -> id.raw(contact.getId()));
+                        }
+                }
+            });
+        }
+    }
+
+    // links to the first and next page. base is the page's URL up to where the paging parameters go.
+    // rows has one more contact than fits on the page if there's a next page
+    private static void writePageLinks(HtmlWriter html, String base, long after, List<Contact> rows, int limit)
+            throws IOException {
+        boolean more = rows.size() > limit;
+        if (after == 0 && !more) {
+            return; // it all fit on one page
+        }
+        html.raw("<p class=\"pages\">");
+        if (after > 0) {
+            html.raw("<a href=\"").text(base + "limit=" + limit).raw("\">First page</a> ");
+        }
+        if (more) {
+            long lastId = rows.get(limit - 1).getId();
+            html.raw("<a href=\"").text(base + "after=" + lastId + "&limit=" + limit).raw("\" rel=\"next\">Next page</a>");
+        }
+        html.raw("</p>");
+    }
+
+    // the id of the last contact on the previous page, 0 for the first page
+    private static long pageCursor(Map<String, String> params) {
+        try {
+            return Math.max(0, Long.parseLong(params.getOrDefault("after", "0")));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // how many contacts to show on a page, --page-size unless the URL asks for a (sane) number
+    private static int pageLimit(Map<String, String> params) {
+        try {
+            int limit = Integer.parseInt(params.getOrDefault("limit", ""));
+            return Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        } catch (NumberFormatException e) {
+            return pageSize;
+        }
+    }
+
     // handles deleting contacts
     static class DeleteContactHandler implements HttpHandler {
         @Override
@@ -492,23 +679,20 @@ public class PhoneBookServer {
                 String idStr = formData.getOrDefault("id", "");
                 
                 try {
-                    int id = Integer.parseInt(idStr);
-                    if (id >= 0 && id < contacts.size()) {
-                        contacts.remove(id);
-                        saveContacts();
-                        
-                        // redirect with success message
-                        exchange.getResponseHeaders().set("Location", "/?message=Contact+deleted+successfully");
-                        exchange.sendResponseHeaders(302, -1);
+                    long id = Long.parseLong(idStr);
+                    if (contacts.remove(id) != null) {
+                        // back with success message
+                        sendResult(exchange, 200, "Contact deleted successfully");
                         return;
                     }
                 } catch (NumberFormatException e) {
                     // bad ID format - just ignore
+                } catch (IOException e) {
+                    Log.error("Error deleting contact: %s", e.getMessage());
                 }
                 
                 // if we get here, something went wrong
-                exchange.getResponseHeaders().set("Location", "/?message=Error+deleting+contact");
-                exchange.sendResponseHeaders(302, -1);
+                sendResult(exchange, 400, "Error deleting contact");
             } else {
                 // only POST is allowed
                 exchange.sendResponseHeaders(405, -1);
@@ -516,53 +700,437 @@ public class PhoneBookServer {
         }
     }
 
-    // try to figure out what type of image we're dealing with
-    private static String detectImageType(byte[] data) {
-        if (data == null || data.length < 2) {
-            System.out.println("Image data is too short or null");
-            return "image/jpeg"; // just assume JPEG if we can't tell
+    // reverse lookup: who has this number, in whatever format it's given.
+    // answers with a small JSON list, e.g. [{"id":3,"name":"Jan"}]
+    static class LookupHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Map<String, String> params = parseQueryParams(exchange.getRequestURI().getQuery());
+            String number = params.getOrDefault("number", "");
+            if (!PhoneNumbers.looksLikeNumber(number)) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            StringJoiner json = new StringJoiner(",", "[", "]");
+            for (long id : phoneIndex.lookup(number)) {
+                Contact contact = contacts.get(id);
+                if (contact != null) {
+                    json.add("{\"id\":" + id + ",\"name\":" + Json.quote(contact.getName()) + "}");
+                }
+            }
+
+            sendJson(exchange, 200, json.toString());
         }
-        
-        // print the first few bytes for debugging
-        System.out.println("Image signature bytes: " + 
-                           String.format("%02X %02X %02X %02X", 
-                                         data.length > 0 ? data[0] & 0xFF : 0, 
-                                         data.length > 1 ? data[1] & 0xFF : 0,
-                                         data.length > 2 ? data[2] & 0xFF : 0,
-                                         data.length > 3 ? data[3] & 0xFF : 0));
-        
-        // JPEG starts with FF D8
-        if ((data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8) {
-            System.out.println("Detected JPEG image");
-            return "image/jpeg";
+    }
+
+    // typeahead: the names and numbers starting with what's been typed so far, the most common first.
+    // a small JSON list of strings, e.g. ["Thabo Nkosi","Thabo Mokoena"], cheap enough for every keypress
+    static class SuggestHandler implements HttpHandler {
+        private static final int DEFAULT_LIMIT = 8;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Map<String, String> params = parseQueryParams(exchange.getRequestURI().getQuery());
+            int limit;
+            try {
+                limit = Math.max(1, Integer.parseInt(params.getOrDefault("limit", "")));
+            } catch (NumberFormatException e) {
+                limit = DEFAULT_LIMIT;
+            }
+
+            StringJoiner json = new StringJoiner(",", "[", "]");
+            for (String suggestion : suggestIndex.suggest(params.getOrDefault("prefix", ""), limit)) {
+                json.add(Json.quote(suggestion));
+            }
+
+            // the same prefix comes again as they backspace and retype, a few seconds old is fine for that
+            exchange.getResponseHeaders().set("Cache-Control", "private, max-age=5");
+            sendJson(exchange, 200, json.toString());
         }
-        
-        // PNG starts with 89 50 4E 47
-        if (data.length >= 4 && 
-            (data[0] & 0xFF) == 0x89 && 
-            (data[1] & 0xFF) == 0x50 && 
-            (data[2] & 0xFF) == 0x4E && 
-            (data[3] & 0xFF) == 0x47) {
-            System.out.println("Detected PNG image");
-            return "image/png";
+    }
+
+    // JSON version of the phone book for scripts and sync jobs
+    //
+    //   GET    /api/contacts?after=&limit=   a page of contacts, {"contacts":[...],"next":<cursor or null>}
+    //   POST   /api/contacts                 add one, {"name":..,"phone":..,"cellPhone":..}
+    //   GET    /api/contacts/<id>            one contact
+    //   PUT    /api/contacts/<id>            change one (its photo stays)
+    //   DELETE /api/contacts/<id>            delete one
+    //   POST   /api/contacts/batch           {"add":[...],"delete":[ids]} all at once, with one write to disk
+    //
+    // a batch either happens completely or not at all, so a sync job can push thousands of
+    // changes in one round trip and never leave the book half updated
+    static class ApiHandler implements HttpHandler {
+        private static final String PREFIX = "/api/contacts";
+        private static final long MAX_BODY_BYTES = 16 * 1024 * 1024; // plenty for tens of thousands of contacts
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            String rest = path.length() > PREFIX.length() ? path.substring(PREFIX.length() + 1) : "";
+            String method = exchange.getRequestMethod();
+            try {
+                if (rest.isEmpty()) {
+                    if ("GET".equals(method)) {
+                        list(exchange);
+                    } else if ("POST".equals(method)) {
+                        Contact contact = contacts.add(contactFromJson(readJson(exchange)));
+                        exchange.getResponseHeaders().set("Location", PREFIX + "/" + contact.getId());
+                        sendJson(exchange, 201, contactJson(contact, new StringBuilder()).toString());
+                    } else {
+                        exchange.sendResponseHeaders(405, -1);
+                    }
+                } else if (rest.equals("batch")) {
+                    if ("POST".equals(method)) {
+                        batch(exchange);
+                    } else {
+                        exchange.sendResponseHeaders(405, -1);
+                    }
+                } else {
+                    long id = Long.parseLong(rest);
+                    Contact contact;
+                    switch (method) {
+                        case "GET":
+                            contact = contacts.get(id);
+                            break;
+                        case "PUT":
+                            contact = contacts.update(id, contactFromJson(readJson(exchange)));
+                            break;
+                        case "DELETE":
+                            if (contacts.remove(id) == null) {
+                                sendError(exchange, 404, "No contact with id " + id);
+                            } else {
+                                exchange.sendResponseHeaders(204, -1);
+                            }
+                            return;
+                        default:
+                            exchange.sendResponseHeaders(405, -1);
+                            return;
+                    }
+                    if (contact == null) {
+                        sendError(exchange, 404, "No contact with id " + id);
+                    } else {
+                        sendJson(exchange, 200, contactJson(contact, new StringBuilder()).toString());
+                    }
+                }
+            } catch (MultipartParser.LimitExceededException e) {
+                sendError(exchange, 413, e.getMessage());
+            } catch (NumberFormatException e) {
+                sendError(exchange, 404, "No such contact " + rest);
+            } catch (NoSuchElementException e) {
+                sendError(exchange, 409, e.getMessage()); // batch refers to a contact that's gone
+            } catch (IllegalArgumentException | ClassCastException e) {
+                sendError(exchange, 400, e.getMessage());
+            }
         }
-        
-        // GIF starts with 47 49 46
-        if (data.length >= 3 && 
-            (data[0] & 0xFF) == 0x47 && 
-            (data[1] & 0xFF) == 0x49 && 
-            (data[2] & 0xFF) == 0x46) {
-            System.out.println("Detected GIF image");
-            return "image/gif";
+
+        private void list(HttpExchange exchange) throws IOException {
+            Map<String, String> params = parseQueryParams(exchange.getRequestURI().getQuery());
+            long after = pageCursor(params);
+            int limit = pageLimit(params);
+            StringBuilder json = new StringBuilder("{\"contacts\":[");
+            int shown = 0;
+            long lastId = after;
+            boolean more = false;
+            for (Contact contact : contacts.after(after)) {
+                if (shown == limit) {
+                    more = true;
+                    break;
+                }
+                if (shown > 0) json.append(',');
+                contactJson(contact, json);
+                lastId = contact.getId();
+                shown++;
+            }
+            json.append("],\"next\":").append(more ? Long.toString(lastId) : "null").append('}');
+            sendJson(exchange, 200, json.toString());
+        }
+
+        private void batch(HttpExchange exchange) throws IOException {
+            Object body = readJson(exchange);
+            if (!(body instanceof Map)) {
+                throw new IllegalArgumentException("Expected {\"add\":[...],\"delete\":[...]}");
+            }
+            Map<?, ?> request = (Map<?, ?>) body;
+            List<Contact> adds = new ArrayList<>();
+            for (Object item : listField(request, "add")) {
+                adds.add(contactFromJson(item));
+            }
+            List<Long> deletes = new ArrayList<>();
+            for (Object item : listField(request, "delete")) {
+                if (!(item instanceof Long)) {
+                    throw new IllegalArgumentException("Ids to delete must be whole numbers, not " + item);
+                }
+                deletes.add((Long) item);
+            }
+
+            List<Contact> added = contacts.apply(deletes, adds); // all or nothing
+
+            StringBuilder json = new StringBuilder("{\"added\":[");
+            for (int i = 0; i < added.size(); i++) {
+                if (i > 0) json.append(',');
+                contactJson(added.get(i), json);
+            }
+            json.append("],\"deleted\":[");
+            StringJoiner ids = new StringJoiner(",");
+            new LinkedHashSet<>(deletes).forEach(id -> ids.add(Long.toString(id)));
+            json.append(ids).append("]}");
+            sendJson(exchange, 200, json.toString());
+        }
+
+        private static Object readJson(HttpExchange exchange) throws IOException {
+            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (length != null && Long.parseLong(length.trim()) > MAX_BODY_BYTES) {
+                throw new MultipartParser.LimitExceededException("Request is " + length + " bytes");
+            }
+            byte[] body = exchange.getRequestBody().readNBytes((int) MAX_BODY_BYTES + 1);
+            if (body.length > MAX_BODY_BYTES) {
+                throw new MultipartParser.LimitExceededException("Request is over " + MAX_BODY_BYTES + " bytes");
+            }
+            return Json.parse(new String(body, StandardCharsets.UTF_8));
+        }
+
+        private static Contact contactFromJson(Object json) {
+            if (!(json instanceof Map)) {
+                throw new IllegalArgumentException("Expected a contact like {\"name\":..,\"phone\":..,\"cellPhone\":..}");
+            }
+            Map<?, ?> fields = (Map<?, ?>) json;
+            return new Contact(requiredString(fields, "name"), requiredString(fields, "phone"),
+                    requiredString(fields, "cellPhone"));
+        }
+
+        private static List<?> listField(Map<?, ?> fields, String name) {
+            Object value = fields.get(name);
+            if (value == null) {
+                return List.of();
+            }
+            if (!(value instanceof List)) {
+                throw new IllegalArgumentException(name + " must be a list");
+            }
+            return (List<?>) value;
+        }
+
+        private static String requiredString(Map<?, ?> fields, String name) {
+            Object value = fields.get(name);
+            if (!(value instanceof String) || ((String) value).isEmpty()) {
+                throw new IllegalArgumentException("Missing " + name);
+            }
+            return (String) value;
+        }
+
+        static StringBuilder contactJson(Contact contact, StringBuilder json) {
+            json.append("{\"id\":").append(contact.getId()).append(",\"name\":");
+            Json.quote(contact.getName(), json);
+            json.append(",\"phone\":");
+            Json.quote(contact.getPhone(), json);
+            json.append(",\"cellPhone\":");
+            Json.quote(contact.getCellPhone(), json);
+            json.append(",\"photo\":");
+            if (contact.hasPhoto()) {
+                Json.quote(photoUrl(contact, null), json);
+            } else {
+                json.append("null");
+            }
+            return json.append('}');
+        }
+
+        private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
+            sendJson(exchange, code, "{\"error\":" + Json.quote(String.valueOf(message)) + "}");
+        }
+    }
+
+    // bulk import: POST a CSV or vCard file (?format=csv|vcard, or by Content-Type) to add every
+    // contact in it. the file is read as it arrives and saved a batch at a time, so a file with
+    // millions of contacts needs no more memory than one batch. answers with how many were added
+    static class ImportHandler implements HttpHandler {
+        private static final int BATCH_SIZE = 1000; // contacts per log write
+        private static final long PROGRESS_EVERY = 100_000;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String format = ContactFormats.formatOf(parseQueryParams(exchange.getRequestURI().getQuery()).get("format"),
+                    exchange.getRequestHeaders().getFirst("Content-Type"));
+            if (format == null) {
+                sendJson(exchange, 415, "{\"error\":\"Send text/csv or text/vcard, or add ?format=csv or ?format=vcard\"}");
+                return;
+            }
+
+            long start = System.nanoTime();
+            long imported = 0;
+            long skipped = 0;
+            String error = null;
+            List<Contact> batch = new ArrayList<>(BATCH_SIZE);
+            try (ContactFormats.EntryReader reader = ContactFormats.reader(format, exchange.getRequestBody())) {
+                ContactFormats.Entry entry;
+                while ((entry = reader.next()) != null) {
+                    if (entry.name.isEmpty() || entry.phone.isEmpty() || entry.cellPhone.isEmpty()) {
+                        skipped++; // the form wouldn't take it either
+                        continue;
+                    }
+                    String photoHash = null;
+                    String photoType = null;
+                    if (entry.photo != null && entry.photo.length > 0) {
+                        photoHash = photos.put(entry.photo);
+                        photoType = photos.detectType(photoHash);
+                    }
+                    batch.add(new Contact(entry.name, entry.phone, entry.cellPhone, photoHash, photoType));
+                    if (batch.size() == BATCH_SIZE) {
+                        imported += save(batch);
+                        if (imported % PROGRESS_EVERY == 0) {
+                            Log.info("Imported %d contacts so far (%d/s)", imported, perSecond(imported, start));
+                        }
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                error = e.getMessage(); // keep what we got so far, the file is broken after that
+            } finally {
+                imported += save(batch);
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Log.info("Imported %d contacts in %.1fs (%d/s), skipped %d", imported, seconds, perSecond(imported, start), skipped);
+            StringBuilder json = new StringBuilder("{\"imported\":").append(imported)
+                    .append(",\"skipped\":").append(skipped)
+                    .append(",\"seconds\":").append(String.format(Locale.ROOT, "%.3f", seconds))
+                    .append(",\"perSecond\":").append(perSecond(imported, start));
+            if (error != null) {
+                json.append(",\"error\":").append(Json.quote(error));
+            }
+            sendJson(exchange, error != null ? 400 : 200, json.append('}').toString());
+        }
+
+        // one log write for the whole batch
+        private static int save(List<Contact> batch) throws IOException {
+            if (batch.isEmpty()) {
+                return 0;
+            }
+            int n = contacts.apply(List.of(), batch).size();
+            batch.clear();
+            return n;
         }
-        
-        // just guess JPEG if we can't figure it out
-        System.out.println("Unknown image format, defaulting to JPEG");
-        return "image/jpeg";
     }
-    
+
+    // bulk export: GET /api/export?format=csv|vcard streams every contact (vCards with their photos).
+    // written straight into the response a contact at a time, never built up in memory
+    static class ExportHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String format = ContactFormats.formatOf(parseQueryParams(exchange.getRequestURI().getQuery()).getOrDefault("format", "csv"), null);
+            if (format == null) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            boolean csv = format.equals("csv");
+            exchange.getResponseHeaders().set("Content-Type", csv ? "text/csv; charset=UTF-8" : "text/vcard; charset=UTF-8");
+            exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"contacts." + (csv ? "csv" : "vcf") + "\"");
+            exchange.sendResponseHeaders(200, 0); // chunked
+
+            long start = System.nanoTime();
+            long exported = 0;
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 8192)) {
+                if (csv) {
+                    ContactFormats.writeCsvHeader(out);
+                }
+                for (Contact contact : contacts.all()) {
+                    if (csv) {
+                        ContactFormats.writeCsv(contact, out);
+                    } else {
+                        ByteBuffer photo = contact.hasPhoto() ? photos.get(contact.getPhotoHash()) : null;
+                        ContactFormats.writeVCard(contact, photo, out);
+                    }
+                    exported++;
+                }
+            }
+            Log.info("Exported %d contacts as %s in %.1fs (%d/s)", exported, format,
+                    (System.nanoTime() - start) / 1e9, perSecond(exported, start));
+        }
+    }
+
+    private static long perSecond(long count, long startNanos) {
+        long nanos = Math.max(1, System.nanoTime() - startNanos);
+        return count * 1_000_000_000L / nanos;
+    }
+
+    // after a form on the home page: back to it with the message shown. a page that sent the form
+    // itself (with fetch, asking for JSON) gets {"message":..} instead and stays where it is, the
+    // change reaches its table through /events
+    static void sendResult(HttpExchange exchange, int code, String message) throws IOException {
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        if (accept != null && accept.contains("application/json")) {
+            sendJson(exchange, code, "{\"message\":" + Json.quote(message) + "}");
+            return;
+        }
+        exchange.getResponseHeaders().set("Location", "/?message=" + URLEncoder.encode(message, StandardCharsets.UTF_8));
+        exchange.sendResponseHeaders(302, -1);
+    }
+
+    // a contact as an "added" event on /events: what a page needs to draw its row
+    static String eventJson(Contact contact) {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"id\":").append(contact.getId()).append(",\"name\":");
+        Json.quote(contact.getName(), json);
+        json.append(",\"phone\":");
+        Json.quote(contact.getPhone(), json);
+        json.append(",\"cellPhone\":");
+        Json.quote(contact.getCellPhone(), json);
+        json.append(",\"photo\":");
+        if (contact.hasPhoto()) {
+            json.append("{\"full\":");
+            Json.quote(photoUrl(contact, null), json);
+            json.append(",\"thumb\":");
+            Json.quote(photoUrl(contact, "thumb"), json);
+            json.append(",\"thumb2x\":");
+            Json.quote(photoUrl(contact, "thumb2x"), json);
+            json.append('}');
+        } else {
+            json.append("null");
+        }
+        return json.append('}').toString();
+    }
+
+    static void sendJson(HttpExchange exchange, int code, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    // where to get a contact's photo, full size or one of the Thumbnails.SIZES. the hash in the URL
+    // changes whenever the photo does, so the browser can keep the image for as long as it likes
+    static String photoUrl(Contact contact, String size) {
+        String url = "/image?id=" + contact.getId() + "&v=" + contact.getPhotoHash().substring(0, 16);
+        return size != null ? url + "&size=" + size : url;
+    }
+
+    // copy a buffer to a stream a chunk at a time, so a mapped photo is never copied onto the heap whole
+    static void writeBuffer(ByteBuffer buffer, OutputStream os) throws IOException {
+        byte[] chunk = new byte[Math.min(8192, buffer.remaining())];
+        while (buffer.hasRemaining()) {
+            int n = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, n);
+            os.write(chunk, 0, n);
+        }
+    }
+
     // handles serving images for contacts
+    //
+    // a photo never changes once stored (its name is its hash), so the URL carries the hash as a
+    // version and browsers may cache it forever. the hash is also the ETag, so a browser that
+    // asks again gets a 304 with no body, and Range requests get just the bytes they asked for
     static class ImageHandler implements HttpHandler {
+        private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             // get the contact ID from the URL
@@ -571,52 +1139,212 @@ public class PhoneBookServer {
             String idStr = params.getOrDefault("id", "");
             
             try {
-                int id = Integer.parseInt(idStr);
-                if (id >= 0 && id < contacts.size() && contacts.get(id).hasPhoto()) {
-                    Contact contact = contacts.get(id);
-                    byte[] imageData = contact.getPhoto();
-                    
-                    // print some debug info
-                    System.out.println("Serving image for contact: " + contact.getName() + 
-                                       " (ID: " + id + ") with image size: " + 
-                                       (imageData != null ? imageData.length : 0) + " bytes");
-                    
-                    if (imageData == null || imageData.length == 0) {
+                long id = Long.parseLong(idStr);
+                Contact contact = contacts.get(id);
+                if (contact != null && contact.hasPhoto()) {
+                    String hash = contact.getPhotoHash();
+                    String size = params.get("size");
+                    if (size != null && !Thumbnails.SIZES.containsKey(size)) {
+                        exchange.sendResponseHeaders(400, -1);
+                        return;
+                    }
+                    String etag = "\"" + hash + (size != null ? "-" + size : "") + "\"";
+                    exchange.getResponseHeaders().set("ETag", etag);
+                    exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                    // a URL with the right version never changes, anything else should check back
+                    exchange.getResponseHeaders().set("Cache-Control",
+                            hash.startsWith(params.getOrDefault("v", "-")) ? CACHE_FOREVER : "no-cache");
+
+                    // the browser already has this exact photo
+                    if (matchesEtag(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                        exchange.sendResponseHeaders(304, -1);
+                        return;
+                    }
+
+                    // the small version for the table if that's what was asked for and we can make one
+                    ByteBuffer imageData = null;
+                    String contentType = contact.getPhotoType();
+                    if (size != null) {
+                        Thumbnails.Thumbnail thumbnail;
+                        try {
+                            thumbnail = thumbnails.get(hash, size);
+                        } catch (IOException e) {
+                            Log.warn("Can't make thumbnail of %s, sending the original: %s", hash, e.getMessage());
+                            thumbnail = null;
+                        }
+                        if (thumbnail != null) {
+                            imageData = thumbnail.getData();
+                            contentType = thumbnail.getType();
+                        }
+                    }
+                    if (imageData == null) {
+                        imageData = photos.get(hash); // memory-mapped, not on the heap
+                    }
+                    if (imageData == null || !imageData.hasRemaining()) {
                         // no image data
                         exchange.sendResponseHeaders(404, -1);
                         return;
                     }
-                    
-                    // try to figure out what kind of image it is
-                    String contentType = detectImageType(imageData);
-                    
-                    // add timestamp to prevent caching
-                    String cacheBreaker = String.valueOf(System.currentTimeMillis());
-                    
-                    // set headers and send the image
                     exchange.getResponseHeaders().set("Content-Type", contentType);
-                    exchange.getResponseHeaders().set("Cache-Control", "no-cache, no-store, must-revalidate");
-                    exchange.getResponseHeaders().set("Pragma", "no-cache");
-                    exchange.getResponseHeaders().set("Expires", "0");
-                    exchange.sendResponseHeaders(200, imageData.length);
-                    
-                    // send the actual image data
+
+                    // only part of the photo asked for? (If-Range means "only if it's still the same photo")
+                    int length = imageData.remaining();
+                    String range = exchange.getRequestHeaders().getFirst("Range");
+                    String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                    if (range != null && (ifRange == null || ifRange.equals(etag))) {
+                        long[] span = parseRange(range, length);
+                        if (span == null) {
+                            exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                            exchange.sendResponseHeaders(416, -1);
+                            return;
+                        }
+                        if (span.length == 2) {
+                            int start = (int) span[0];
+                            int end = (int) span[1];
+                            imageData.position(start).limit(end + 1);
+                            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+                            exchange.sendResponseHeaders(206, end - start + 1);
+                            try (OutputStream os = exchange.getResponseBody()) {
+                                writeBuffer(imageData, os);
+                            }
+                            return;
+                        }
+                    }
+
+                    // send the whole image
+                    exchange.sendResponseHeaders(200, length);
                     try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(imageData);
+                        writeBuffer(imageData, os);
                     }
                     return;
                 }
             } catch (NumberFormatException e) {
                 // bad ID format
-                System.err.println("Invalid image ID: " + idStr);
+                Log.debug("Invalid image ID: %s", idStr);
             } catch (Exception e) {
                 // other errors
-                System.err.println("Error serving image: " + e.getMessage());
-                e.printStackTrace();
+                Log.error(e, "Error serving image: %s", e.getMessage());
             }
             
             // if we get here, something went wrong
             exchange.sendResponseHeaders(404, -1);
         }
+
+        // If-None-Match can list several tags, or * for anything
+        static boolean matchesEtag(String ifNoneMatch, String etag) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // a single "bytes=start-end" range as {start, end} (inclusive). returns an empty array if we
+        // should just send everything (several ranges, or a header we don't understand) and null if
+        // the range is outside the photo
+        private static long[] parseRange(String header, long length) {
+            Matcher m = RANGE.matcher(header.trim());
+            if (!m.matches() || (m.group(1).isEmpty() && m.group(2).isEmpty())) {
+                return new long[0];
+            }
+            try {
+                long start;
+                long end;
+                if (m.group(1).isEmpty()) {
+                    // "bytes=-500" is the last 500 bytes
+                    long suffix = Long.parseLong(m.group(2));
+                    if (suffix == 0) return null;
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(m.group(1));
+                    end = m.group(2).isEmpty() ? length - 1 : Math.min(Long.parseLong(m.group(2)), length - 1);
+                }
+                return start < length && start <= end ? new long[] { start, end } : null;
+            } catch (NumberFormatException e) {
+                return new long[0]; // too big to be a real range
+            }
+        }
+    }
+    // files from static/ (the stylesheet), read once at startup and kept in memory
+    //
+    // pages link to them as /static/style.css?v=<version>, the version being the start of the
+    // file's hash, so browsers can keep them forever and still see a changed file straight away.
+    // the hash is also the ETag, for anyone who asks without the version
+    static class StaticHandler implements HttpHandler {
+        private static final Map<String, String> TYPES = Map.of(
+                "css", "text/css; charset=UTF-8",
+                "js", "application/javascript; charset=UTF-8",
+                "png", "image/png",
+                "svg", "image/svg+xml",
+                "ico", "image/x-icon");
+        private final Map<String, StaticFile> files = new HashMap<>();
+
+        private static class StaticFile {
+            final byte[] data;
+            final String type;
+            final String hash;
+
+            StaticFile(byte[] data, String type, String hash) {
+                this.data = data;
+                this.type = type;
+                this.hash = hash;
+            }
+        }
+
+        StaticHandler(String dir) throws IOException {
+            try (DirectoryStream<Path> listing = Files.newDirectoryStream(Paths.get(dir))) {
+                for (Path file : listing) {
+                    if (Files.isRegularFile(file)) {
+                        String name = file.getFileName().toString();
+                        String extension = name.substring(name.lastIndexOf('.') + 1);
+                        byte[] data = Files.readAllBytes(file);
+                        files.put(name, new StaticFile(data, TYPES.getOrDefault(extension, "application/octet-stream"),
+                                PhotoStore.hash(data)));
+                    }
+                }
+            }
+        }
+
+        // the URL to link to a file with, changes whenever the file does
+        String url(String name) {
+            StaticFile file = files.get(name);
+            if (file == null) {
+                throw new IllegalArgumentException("No static file " + name);
+            }
+            return "/static/" + name + "?v=" + file.hash.substring(0, 16);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String name = exchange.getRequestURI().getPath().substring("/static/".length());
+            StaticFile file = files.get(name);
+            if (file == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            String version = parseQueryParams(exchange.getRequestURI().getQuery()).getOrDefault("v", "-");
+            String etag = "\"" + file.hash + "\"";
+            exchange.getResponseHeaders().set("Content-Type", file.type);
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Cache-Control", file.hash.startsWith(version) ? CACHE_FOREVER : "public, max-age=86400");
+            if (ImageHandler.matchesEtag(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, file.data.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(file.data);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,175 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// a digit trie over the normalized phone and cell phone numbers
+//
+// finding a number, or every number starting with some digits, walks one node per digit no matter
+// how many contacts there are. the trie is kept in flat int arrays (ten child slots per node)
+// rather than node objects, so a million numbers don't mean tens of millions of small objects.
+public class PhoneIndex implements ContactStore.Listener {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int[] children = new int[10 * 1024]; // node * 10 + digit -> child node, 0 = none (node 0 is the root)
+    private long[][] idsAt = new long[1024][]; // contacts whose number ends at a node
+    private int nodes = 1;
+
+    @Override
+    public void contactAdded(Contact contact) {
+        lock.writeLock().lock();
+        try {
+            add(contact.getNormalizedPhone(), contact.getId());
+            if (!contact.getNormalizedCellPhone().equals(contact.getNormalizedPhone())) {
+                add(contact.getNormalizedCellPhone(), contact.getId());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void contactRemoved(Contact contact) {
+        lock.writeLock().lock();
+        try {
+            remove(contact.getNormalizedPhone(), contact.getId());
+            remove(contact.getNormalizedCellPhone(), contact.getId());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // who has exactly this number (any format), e.g. to see who is calling
+    public List<Long> lookup(String number) {
+        String digits = PhoneNumbers.normalize(number);
+        List<Long> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            int node = find(digits);
+            if (node >= 0 && idsAt[node] != null) {
+                for (long id : idsAt[node]) {
+                    result.add(id);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    // every contact with a number starting with these digits (after normalizing), in id order
+    public List<Long> startingWith(String prefix) {
+        String digits = PhoneNumbers.normalize(prefix);
+        List<Long> result = new ArrayList<>();
+        if (digits.isEmpty()) {
+            return result;
+        }
+        lock.readLock().lock();
+        try {
+            int start = find(digits);
+            if (start >= 0) {
+                collect(start, result);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        result.sort(null);
+        // a contact whose phone and cell both match shows up twice
+        List<Long> distinct = new ArrayList<>(result.size());
+        for (Long id : result) {
+            if (distinct.isEmpty() || !distinct.get(distinct.size() - 1).equals(id)) {
+                distinct.add(id);
+            }
+        }
+        return distinct;
+    }
+
+    // everything under a node, without recursion so long numbers can't blow the stack
+    private void collect(int start, List<Long> result) {
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top++] = start;
+        while (top > 0) {
+            int node = stack[--top];
+            if (idsAt[node] != null) {
+                for (long id : idsAt[node]) {
+                    result.add(id);
+                }
+            }
+            for (int d = 9; d >= 0; d--) {
+                int child = children[node * 10 + d];
+                if (child != 0) {
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, top * 2);
+                    }
+                    stack[top++] = child;
+                }
+            }
+        }
+    }
+
+    // the node for these digits, or -1 if no number has them as a prefix
+    private int find(String digits) {
+        int node = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            node = children[node * 10 + (digits.charAt(i) - '0')];
+            if (node == 0) {
+                return -1;
+            }
+        }
+        return node;
+    }
+
+    private void add(String digits, long id) {
+        if (digits.isEmpty()) {
+            return;
+        }
+        int node = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            int slot = node * 10 + (digits.charAt(i) - '0');
+            if (children[slot] == 0) {
+                children[slot] = newNode();
+            }
+            node = children[slot];
+        }
+        long[] ids = idsAt[node];
+        if (ids == null) {
+            idsAt[node] = new long[] { id };
+        } else if (!contains(ids, id)) {
+            ids = Arrays.copyOf(ids, ids.length + 1); // almost always tiny, one number one person
+            ids[ids.length - 1] = id;
+            idsAt[node] = ids;
+        }
+    }
+
+    private void remove(String digits, long id) {
+        int node = digits.isEmpty() ? -1 : find(digits);
+        if (node < 0 || idsAt[node] == null) {
+            return;
+        }
+        long[] ids = idsAt[node];
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id) {
+                long[] smaller = new long[ids.length - 1];
+                System.arraycopy(ids, 0, smaller, 0, i);
+                System.arraycopy(ids, i + 1, smaller, i, ids.length - i - 1);
+                idsAt[node] = smaller.length == 0 ? null : smaller;
+                return;
+            }
+        }
+    }
+
+    private int newNode() {
+        if (nodes == idsAt.length) {
+            idsAt = Arrays.copyOf(idsAt, nodes * 2);
+            children = Arrays.copyOf(children, nodes * 2 * 10);
+        }
+        return nodes++;
+    }
+
+    private static boolean contains(long[] ids, long id) {
+        for (long existing : ids) {
+            if (existing == id) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,59 @@
+// turns phone numbers as people type them into one canonical string of digits
+//
+// "012 345 6789", "(012) 345-6789", "+27 12 345 6789" and "0027123456789" are all the same number.
+// with a country code set (--country-code=27) a leading 0 is the local trunk prefix and is swapped
+// for the country code, so local and international forms come out the same: 27123456789.
+// without one, international forms just lose their + or 00 and local numbers keep their 0.
+public final class PhoneNumbers {
+    private static volatile String countryCode = ""; // digits only, "" if not set
+
+    private PhoneNumbers() {
+    }
+
+    // set once at startup, before any contacts are loaded
+    public static void setCountryCode(String code) {
+        String digits = code == null ? "" : code.replaceAll("[^0-9]", "");
+        countryCode = digits;
+    }
+
+    public static String normalize(String raw) {
+        if (raw == null) {
+            return "";
+        }
+        StringBuilder digits = new StringBuilder(raw.length());
+        boolean plus = false;
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            } else if (c == '+' && digits.length() == 0) {
+                plus = true;
+            }
+        }
+        if (plus) {
+            return digits.toString(); // already international
+        }
+        if (digits.length() >= 2 && digits.charAt(0) == '0' && digits.charAt(1) == '0') {
+            return digits.substring(2); // 00 is the international prefix
+        }
+        String code = countryCode;
+        if (!code.isEmpty() && digits.length() > 0 && digits.charAt(0) == '0') {
+            return code + digits.substring(1); // local number, swap the trunk 0 for the country code
+        }
+        return digits.toString();
+    }
+
+    // does this look like someone typed (part of) a phone number rather than a name?
+    public static boolean looksLikeNumber(String s) {
+        boolean sawDigit = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sawDigit = true;
+            } else if (" +-().".indexOf(c) < 0) {
+                return false;
+            }
+        }
+        return sawDigit;
+    }
+}
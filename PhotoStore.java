@@ -0,0 +1,202 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+// photos live here on disk instead of inside the contacts
+//
+// each photo is a file named after the SHA-256 of its bytes, so the same picture uploaded twice
+// is only stored once and a contact just keeps the hash. reads memory-map the file, and the most
+// recently used mappings are kept in a small LRU cache so hot photos don't touch the disk again.
+// mapped files live outside the Java heap, so the heap only grows with the number of contacts.
+public class PhotoStore {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Path dir;
+    private final long cacheLimitBytes;
+    private final LinkedHashMap<String, MappedByteBuffer> cache = new LinkedHashMap<>(16, 0.75f, true); // access order
+    private long cachedBytes;
+
+    public PhotoStore(String dir, long cacheLimitBytes) throws IOException {
+        this.dir = Paths.get(dir);
+        this.cacheLimitBytes = cacheLimitBytes;
+        Files.createDirectories(this.dir);
+    }
+
+    // store a photo and return its hash. the stream is copied straight to disk, never held in memory
+    public String put(InputStream in) throws IOException {
+        Path tmp = Files.createTempFile(dir, "upload", ".tmp");
+        try {
+            MessageDigest sha = sha256();
+            try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE), sha)) {
+                in.transferTo(out);
+            }
+            String hash = toHex(sha.digest());
+            Path target = pathFor(hash);
+            if (Files.exists(target)) {
+                return hash; // we already have this exact photo
+            }
+            Files.createDirectories(target.getParent());
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ch.force(true); // contents on disk before the name points at them
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // someone stored the same photo at the same moment, theirs is just as good
+            }
+            return hash;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    public String put(byte[] photo) throws IOException {
+        return put(new ByteArrayInputStream(photo));
+    }
+
+    // the photo's bytes as a read-only buffer, or null if we don't have it.
+    // each caller gets its own buffer position, the contents are shared
+    public ByteBuffer get(String hash) throws IOException {
+        synchronized (cache) {
+            MappedByteBuffer cached = cache.get(hash);
+            if (cached != null) {
+                return cached.asReadOnlyBuffer();
+            }
+        }
+        Path file = pathFor(hash);
+        MappedByteBuffer mapped;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()); // stays valid after the channel closes
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        synchronized (cache) {
+            if (mapped.capacity() <= cacheLimitBytes && !cache.containsKey(hash)) {
+                cache.put(hash, mapped);
+                cachedBytes += mapped.capacity();
+                // drop the least recently used photos until we fit again
+                var it = cache.entrySet().iterator();
+                while (cachedBytes > cacheLimitBytes && it.hasNext()) {
+                    Map.Entry<String, MappedByteBuffer> eldest = it.next();
+                    cachedBytes -= eldest.getValue().capacity();
+                    it.remove();
+                }
+            }
+        }
+        return mapped.asReadOnlyBuffer();
+    }
+
+    public boolean has(String hash) {
+        return Files.exists(pathFor(hash));
+    }
+
+    // the MIME type of a stored photo, from its first few bytes
+    public String detectType(String hash) throws IOException {
+        ByteBuffer data = get(hash);
+        if (data == null) {
+            return null;
+        }
+        byte[] signature = new byte[Math.min(4, data.remaining())];
+        data.get(signature);
+        return detectImageType(signature);
+    }
+
+    // try to figure out what type of image we're dealing with
+    static String detectImageType(byte[] data) {
+        if (data == null || data.length < 2) {
+            Log.debug("Image data is too short or null");
+            return "image/jpeg"; // just assume JPEG if we can't tell
+        }
+        
+        // the first few bytes, for debugging
+        if (Log.enabled(Log.Level.DEBUG)) {
+            Log.debug("Image signature bytes: %02X %02X %02X %02X",
+                      data.length > 0 ? data[0] & 0xFF : 0,
+                      data.length > 1 ? data[1] & 0xFF : 0,
+                      data.length > 2 ? data[2] & 0xFF : 0,
+                      data.length > 3 ? data[3] & 0xFF : 0);
+        }
+        
+        // JPEG starts with FF D8
+        if ((data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8) {
+            Log.debug("Detected JPEG image");
+            return "image/jpeg";
+        }
+        
+        // PNG starts with 89 50 4E 47
+        if (data.length >= 4 && 
+            (data[0] & 0xFF) == 0x89 && 
+            (data[1] & 0xFF) == 0x50 && 
+            (data[2] & 0xFF) == 0x4E && 
+            (data[3] & 0xFF) == 0x47) {
+            Log.debug("Detected PNG image");
+            return "image/png";
+        }
+        
+        // GIF starts with 47 49 46
+        if (data.length >= 3 && 
+            (data[0] & 0xFF) == 0x47 && 
+            (data[1] & 0xFF) == 0x49 && 
+            (data[2] & 0xFF) == 0x46) {
+            Log.debug("Detected GIF image");
+            return "image/gif";
+        }
+        
+        // just guess JPEG if we can't figure it out
+        Log.debug("Unknown image format, defaulting to JPEG");
+        return "image/jpeg";
+    }
+
+    // remove every photo that isn't in the given set of hashes. only safe while nothing else
+    // is adding photos, so we do it once at startup
+    public int removeUnused(Set<String> inUse) throws IOException {
+        int removed = 0;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file) && !inUse.contains(file.getFileName().toString())) {
+                    Files.delete(file);
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    // the hash put() would give these bytes
+    static String hash(byte[] data) {
+        return toHex(sha256().digest(data));
+    }
+
+    // photos/ab/abcdef... so no single directory gets too big
+    private Path pathFor(String hash) {
+        if (hash.length() != 64 || !hash.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+            throw new IllegalArgumentException("Not a photo hash: " + hash);
+        }
+        return dir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
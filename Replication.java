@@ -0,0 +1,430 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// copies of the phone book in other server processes, kept up to date from one primary
+//
+// the primary (--replication-port) takes every change. it numbers them in the order the store
+// makes them, the offset, keeps the latest ones in memory and streams them over TCP to any number
+// of replicas (--replicate-from=host:port). a replica keeps its contacts in memory only, serves the
+// pages from them and turns changes away, they go to the primary.
+//
+// a replica that's new, whose primary has restarted since (offsets start again, under a new epoch)
+// or that fell further behind than the primary remembers gets a snapshot first: every contact as
+// of one offset, photos included. one that just lost its connection for a moment carries on from
+// the last offset it applied. after that changes arrive as they happen, and when there are none a
+// heartbeat every second says where the primary is, so the replica knows how far behind it is.
+public final class Replication {
+    private static final int MAGIC = 0x50425250; // "PBRP"
+    private static final int VERSION = 1;
+    private static final byte SNAPSHOT = 1; // epoch, offset, count, then that many contacts
+    private static final byte RESUME = 2; // epoch, offset: changes follow from right after it
+    private static final byte ADDED = 3; // offset, primary's offset, contact
+    private static final byte REMOVED = 4; // offset, primary's offset, id
+    private static final byte HEARTBEAT = 5; // primary's offset
+    private static final int HEARTBEAT_MILLIS = 1000;
+    private static final int TIMEOUT_MILLIS = 5000; // nothing from the primary for this long and we reconnect
+    private static final int RETRY_MILLIS = 1000;
+    private static final int MAX_BATCH = 1000; // changes sent before looking at the feed again
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Replication() {
+    }
+
+    // ---- primary ----
+
+    // the change feed, and the socket replicas connect to
+    public static final class Primary implements ContactStore.Listener {
+        private final ContactStore contacts;
+        private final PhotoStore photos;
+        private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE); // this run of the primary
+        private final Change[] recent; // the latest changes, by offset modulo its length
+        private long head; // offset of the last change, guarded by this
+        private final AtomicInteger replicas = new AtomicInteger();
+        private final AtomicInteger senders = new AtomicInteger();
+
+        // one change: a contact added (or replaced, it's an add under an id we already had) or removed
+        private static final class Change {
+            final long offset;
+            final Contact added;
+            final long removed;
+
+            Change(long offset, Contact added, long removed) {
+                this.offset = offset;
+                this.added = added;
+                this.removed = removed;
+            }
+        }
+
+        // backlog is how many changes to remember for replicas that reconnect
+        public Primary(ContactStore contacts, PhotoStore photos, int backlog) {
+            if (backlog < 1) {
+                throw new IllegalArgumentException("--replication-backlog must be at least 1");
+            }
+            this.contacts = contacts;
+            this.photos = photos;
+            this.recent = new Change[backlog];
+        }
+
+        // follow the store and take replicas on port. call once the contacts are loaded
+        public void start(int port) throws IOException {
+            contacts.addListener(this, false); // what's already there goes out in snapshots
+            ServerSocket server = new ServerSocket();
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(port));
+            Metrics.gauge("phonebook_replication_replicas", "Replicas connected to this primary", replicas::get);
+            Metrics.gauge("phonebook_replication_offset", "Changes made since this primary started", this::head);
+            Thread acceptor = new Thread(() -> accept(server), "replication-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            Log.info("Replicas can follow this server on port %d", port);
+        }
+
+        @Override
+        public void contactAdded(Contact contact) {
+            record(contact, 0);
+        }
+
+        @Override
+        public void contactRemoved(Contact contact) {
+            record(null, contact.getId());
+        }
+
+        // called by the store under its write lock, so offsets are in the order changes happened
+        private synchronized void record(Contact added, long removed) {
+            head++;
+            recent[(int) (head % recent.length)] = new Change(head, added, removed);
+            notifyAll();
+        }
+
+        private synchronized long head() {
+            return head;
+        }
+
+        // can a replica that has everything up to offset carry on from there?
+        private synchronized boolean remembers(long offset) {
+            return offset >= 0 && offset <= head && head - offset <= recent.length;
+        }
+
+        // the changes after offset, waiting up to wait ms for one. empty if nothing happened,
+        // null if they're so old we don't have them any more
+        private synchronized List<Change> changesAfter(long offset, long wait) throws InterruptedException {
+            if (head == offset) {
+                wait(wait);
+            }
+            if (!remembers(offset)) {
+                return null;
+            }
+            int count = (int) Math.min(head - offset, MAX_BATCH);
+            List<Change> changes = new ArrayList<>(count);
+            for (long o = offset + 1; o <= offset + count; o++) {
+                changes.add(recent[(int) (o % recent.length)]);
+            }
+            return changes;
+        }
+
+        private void accept(ServerSocket server) {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    Thread sender = new Thread(() -> serve(socket), "replication-sender-" + senders.incrementAndGet());
+                    sender.setDaemon(true);
+                    sender.start();
+                } catch (IOException e) {
+                    Log.error("Error accepting a replica: %s", e.getMessage());
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            String replica = socket.getRemoteSocketAddress().toString();
+            replicas.incrementAndGet();
+            try (socket) {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("not a replica, or a version we don't speak");
+                }
+                long theirEpoch = in.readLong();
+                long theirOffset = in.readLong();
+                long position;
+                if (theirEpoch == epoch && remembers(theirOffset)) {
+                    out.writeByte(RESUME);
+                    out.writeLong(epoch);
+                    out.writeLong(theirOffset);
+                    position = theirOffset;
+                    Log.info("Replica %s carries on from offset %d", replica, position);
+                } else {
+                    position = sendSnapshot(out, replica);
+                }
+                out.flush();
+                while (true) {
+                    List<Change> changes = changesAfter(position, HEARTBEAT_MILLIS);
+                    if (changes == null) {
+                        Log.warn("Replica %s fell too far behind, sending it a new snapshot", replica);
+                        position = sendSnapshot(out, replica);
+                    } else if (changes.isEmpty()) {
+                        out.writeByte(HEARTBEAT);
+                        out.writeLong(head());
+                    } else {
+                        long now = head();
+                        for (Change change : changes) {
+                            if (change.added != null) {
+                                out.writeByte(ADDED);
+                                out.writeLong(change.offset);
+                                out.writeLong(now);
+                                writeContact(out, change.added);
+                            } else {
+                                out.writeByte(REMOVED);
+                                out.writeLong(change.offset);
+                                out.writeLong(now);
+                                out.writeLong(change.removed);
+                            }
+                            position = change.offset;
+                        }
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                Log.info("Replica %s disconnected: %s", replica, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                replicas.decrementAndGet();
+            }
+        }
+
+        // every contact as of one offset, returns that offset
+        private long sendSnapshot(DataOutputStream out, String replica) throws IOException {
+            long[] at = new long[1];
+            List<Contact> all = contacts.copyAll(() -> at[0] = head());
+            out.writeByte(SNAPSHOT);
+            out.writeLong(epoch);
+            out.writeLong(at[0]);
+            out.writeInt(all.size());
+            for (Contact contact : all) {
+                writeContact(out, contact);
+            }
+            Log.info("Sent replica %s a snapshot of %d contacts at offset %d", replica, all.size(), at[0]);
+            return at[0];
+        }
+
+        // the contact as the log stores it, then its photo's bytes (-1 for none), so the replica
+        // can serve /image without coming back to us
+        private void writeContact(DataOutputStream out, Contact contact) throws IOException {
+            ContactLog.writeContact(out, contact);
+            ByteBuffer photo = contact.hasPhoto() ? photos.get(contact.getPhotoHash()) : null;
+            if (photo == null) {
+                out.writeInt(-1);
+                return;
+            }
+            out.writeInt(photo.remaining());
+            byte[] chunk = new byte[Math.min(photo.remaining(), BUFFER_SIZE)];
+            while (photo.hasRemaining()) {
+                int n = Math.min(chunk.length, photo.remaining());
+                photo.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+    }
+
+    // ---- replica ----
+
+    // follows a primary forever, reconnecting whenever the connection drops
+    public static final class Replica {
+        private final String host;
+        private final int port;
+        private final ContactStore contacts;
+        private final PhotoStore photos;
+        private long epoch; // of the primary we copied from, 0 before the first snapshot
+        private volatile long applied = -1; // offset of the last change we have
+        private volatile long primaryOffset = -1; // the primary's, as of the last thing it sent
+        private volatile boolean connected;
+        private volatile long caughtUpAt = System.currentTimeMillis(); // last time we had everything
+        private boolean bootstrapped;
+
+        // primary is host:port
+        public Replica(String primary, ContactStore contacts, PhotoStore photos) {
+            int colon = primary.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("--replicate-from must be host:port, got: " + primary);
+            }
+            this.host = primary.substring(0, colon);
+            try {
+                this.port = Integer.parseInt(primary.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("--replicate-from must be host:port, got: " + primary);
+            }
+            this.contacts = contacts;
+            this.photos = photos;
+        }
+
+        public void start() {
+            Metrics.gauge("phonebook_replication_connected", "1 while this replica is connected to its primary",
+                    () -> connected ? 1 : 0);
+            Metrics.gauge("phonebook_replication_offset", "Last change from the primary this replica has applied",
+                    () -> applied);
+            Metrics.gauge("phonebook_replication_lag_changes", "Changes the primary has made that this replica hasn't applied yet",
+                    () -> Math.max(0, primaryOffset - applied));
+            Metrics.gauge("phonebook_replication_lag_milliseconds",
+                    "How long it's been since this replica last had every change the primary made (0 when up to date)",
+                    this::lagMillis);
+            Thread follower = new Thread(this::followForever, "replication-follower");
+            follower.setDaemon(true);
+            follower.start();
+        }
+
+        private long lagMillis() {
+            if (connected && applied >= primaryOffset) {
+                return 0;
+            }
+            return System.currentTimeMillis() - caughtUpAt;
+        }
+
+        private void followForever() {
+            while (true) {
+                try {
+                    follow();
+                } catch (IOException e) {
+                    if (connected) {
+                        Log.warn("Lost the primary at %s:%d (%s), reconnecting", host, port, e.toString());
+                    } else {
+                        Log.debug("Can't reach the primary at %s:%d: %s", host, port, e.getMessage());
+                    }
+                } catch (RuntimeException e) {
+                    Log.error(e, "Error following the primary at %s:%d", host, port);
+                }
+                connected = false;
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void follow() throws IOException {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), TIMEOUT_MILLIS);
+                socket.setSoTimeout(TIMEOUT_MILLIS); // the primary sends a heartbeat well within this
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(epoch);
+                out.writeLong(applied);
+                out.flush();
+
+                byte first = in.readByte();
+                if (first == SNAPSHOT) {
+                    applySnapshot(in);
+                } else if (first == RESUME) {
+                    if (in.readLong() != epoch || in.readLong() != applied) {
+                        throw new IOException("the primary resumed us somewhere we aren't");
+                    }
+                    Log.info("Following the primary at %s:%d from offset %d", host, port, applied);
+                } else {
+                    throw new IOException("unexpected message " + first);
+                }
+                connected = true;
+
+                while (true) {
+                    byte kind = in.readByte();
+                    switch (kind) {
+                        case ADDED: {
+                            long offset = next(in.readLong());
+                            primaryOffset = in.readLong();
+                            contacts.put(readContact(in));
+                            applied = offset;
+                            break;
+                        }
+                        case REMOVED: {
+                            long offset = next(in.readLong());
+                            primaryOffset = in.readLong();
+                            contacts.remove(in.readLong());
+                            applied = offset;
+                            break;
+                        }
+                        case HEARTBEAT:
+                            primaryOffset = in.readLong();
+                            break;
+                        case SNAPSHOT:
+                            applySnapshot(in); // we fell behind
+                            break;
+                        default:
+                            throw new IOException("unexpected message " + kind);
+                    }
+                    if (applied >= primaryOffset) {
+                        caughtUpAt = System.currentTimeMillis();
+                    }
+                }
+            }
+        }
+
+        // changes come in order, one after another. anything else means we've lost track
+        private long next(long offset) throws IOException {
+            if (offset != applied + 1) {
+                throw new IOException("expected change " + (applied + 1) + ", got " + offset);
+            }
+            return offset;
+        }
+
+        // replace our contacts with the primary's
+        private void applySnapshot(DataInputStream in) throws IOException {
+            long start = System.nanoTime();
+            epoch = in.readLong();
+            long offset = in.readLong();
+            int count = in.readInt();
+            Set<Long> ids = new HashSet<>();
+            for (int i = 0; i < count; i++) {
+                Contact contact = readContact(in);
+                ids.add(contact.getId());
+                contacts.put(contact);
+            }
+            List<Long> gone = new ArrayList<>();
+            for (Contact contact : contacts.all()) {
+                if (!ids.contains(contact.getId())) {
+                    gone.add(contact.getId());
+                }
+            }
+            for (long id : gone) {
+                contacts.remove(id);
+            }
+            applied = offset;
+            primaryOffset = offset;
+            Log.info("Copied %d contacts from the primary at %s:%d (offset %d) in %d ms", count, host, port, offset,
+                    (System.nanoTime() - start) / 1_000_000);
+            if (!bootstrapped) {
+                bootstrapped = true;
+                contacts.load(); // no log, this just lets the requests waiting in whenLoaded through
+            }
+        }
+
+        private Contact readContact(DataInputStream in) throws IOException {
+            Contact contact = ContactLog.readContact(in, true);
+            int length = in.readInt();
+            if (length >= 0) {
+                byte[] photo = new byte[length];
+                in.readFully(photo);
+                if (!photos.has(contact.getPhotoHash())) {
+                    photos.put(photo);
+                }
+            }
+            return contact;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+import java.util.Random;
+
+// made-up contacts for the benchmarks, the load test and the tests: South African names and
+// numbers in the usual formats, the same ones for the same Random
+public class SampleContacts {
+    private static final String[] FIRST_NAMES = {
+            "Thabo", "Anna", "Pieter", "Lerato", "Johan", "Naledi", "Sipho", "Marie", "Kabelo", "Elsa",
+            "Andile", "Ruan", "Zanele", "Francois", "Ayanda", "Chloe", "Tshepo", "Lindiwe", "Werner", "Nomvula"};
+    private static final String[] LAST_NAMES = {
+            "Nkosi", "van der Merwe", "Botha", "Dlamini", "Pretorius", "Mokoena", "du Plessis", "Khumalo",
+            "Venter", "Naidoo", "Smith", "Mahlangu", "Coetzee", "Ndlovu", "O'Brien", "Zulu", "Steyn", "Molefe"};
+
+    private SampleContacts() {
+    }
+
+    // "Thabo Nkosi"
+    public static String name(Random random) {
+        return FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " " + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+    }
+
+    // a landline, "012 345 6789"
+    public static String phone(Random random) {
+        return String.format("0%02d %03d %04d", 10 + random.nextInt(80), random.nextInt(1000), random.nextInt(10000));
+    }
+
+    // a cellphone, "082 345 6789"
+    public static String cellPhone(Random random) {
+        return String.format("08%d %03d %04d", random.nextInt(10), random.nextInt(1000), random.nextInt(10000));
+    }
+}
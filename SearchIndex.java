@@ -0,0 +1,209 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// substring search over name, phone and cell phone without looking at every contact
+//
+// every 2 and 3 character piece (n-gram) of the lowercased fields points at a sorted list of the
+// ids of the contacts that contain it. a query is split into its own n-grams, the lists are
+// intersected starting from the shortest, and only the few contacts left are checked for the real
+// substring. the index is kept up to date as contacts are added and removed.
+//
+// removing a contact only forgets its fields; its id stays in the lists until there are enough
+// stale ids to be worth cleaning out, so a delete doesn't have to touch every list it's in.
+public class SearchIndex implements ContactStore.Listener {
+    private static final int GRAM = 3; // queries this long or longer use trigrams
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Postings> postings = new HashMap<>(); // n-gram -> ids, guarded by lock
+    private final ConcurrentHashMap<Long, String[]> fields = new ConcurrentHashMap<>(); // id -> lowercased fields
+    private long staleIds; // ids still in postings whose contact is gone
+
+    // a growable sorted array of ids (FuzzyIndex keeps its words' contacts in these too)
+    static class Postings {
+        long[] ids = new long[4];
+        int size;
+
+        void add(long id) {
+            if (size > 0 && ids[size - 1] >= id) {
+                // out of order (only happens if ids ever come from elsewhere), insert in place
+                int at = Arrays.binarySearch(ids, 0, size, id);
+                if (at >= 0) return;
+                insertAt(-at - 1, id);
+                return;
+            }
+            insertAt(size, id);
+        }
+
+        private void insertAt(int at, long id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            size++;
+        }
+
+        boolean contains(long id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+    }
+
+    @Override
+    public void contactAdded(Contact contact) {
+        String[] lowered = lowercase(contact);
+        lock.writeLock().lock();
+        try {
+            long id = contact.getId();
+            for (long gram : gramsOf(lowered)) {
+                postings.computeIfAbsent(gram, g -> new Postings()).add(id);
+            }
+            fields.put(id, lowered);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void contactRemoved(Contact contact) {
+        lock.writeLock().lock();
+        try {
+            if (fields.remove(contact.getId()) != null) {
+                staleIds += gramsOf(lowercase(contact)).length;
+                if (staleIds > 1024 && staleIds > liveIds()) {
+                    purgeStale();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ids of the contacts whose name, phone or cell phone contains the query (ignoring case), in id order
+    public List<Long> search(String query) {
+        String q = query.toLowerCase(Locale.ROOT);
+        List<Long> results = new ArrayList<>();
+        if (q.length() < 2) {
+            // a single character matches most of the book anyway, the index can't help
+            for (Map.Entry<Long, String[]> entry : fields.entrySet()) {
+                if (matches(entry.getValue(), q)) {
+                    results.add(entry.getKey());
+                }
+            }
+            Collections.sort(results);
+            return results;
+        }
+
+        lock.readLock().lock();
+        try {
+            // every n-gram of the query, shortest list first
+            int n = Math.min(GRAM, q.length());
+            List<Postings> lists = new ArrayList<>();
+            for (int i = 0; i + n <= q.length(); i++) {
+                Postings p = postings.get(gram(q, i, n));
+                if (p == null) {
+                    return results; // some piece of the query isn't anywhere in the book
+                }
+                lists.add(p);
+            }
+            lists.sort((a, b) -> Integer.compare(a.size, b.size));
+
+            Postings shortest = lists.get(0);
+            candidates:
+            for (int i = 0; i < shortest.size; i++) {
+                long id = shortest.ids[i];
+                for (int j = 1; j < lists.size(); j++) {
+                    if (!lists.get(j).contains(id)) {
+                        continue candidates;
+                    }
+                }
+                // having all the pieces doesn't mean they're next to each other, check for real
+                String[] lowered = fields.get(id);
+                if (lowered != null && matches(lowered, q)) {
+                    results.add(id);
+                }
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static boolean matches(String[] lowered, String q) {
+        for (String field : lowered) {
+            if (field.contains(q)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long liveIds() {
+        long live = 0;
+        for (Postings p : postings.values()) {
+            live += p.size;
+        }
+        return live - staleIds;
+    }
+
+    // drop the ids of removed contacts from every list, called with the write lock held
+    private void purgeStale() {
+        var it = postings.values().iterator();
+        while (it.hasNext()) {
+            Postings p = it.next();
+            int kept = 0;
+            for (int i = 0; i < p.size; i++) {
+                if (fields.containsKey(p.ids[i])) {
+                    p.ids[kept++] = p.ids[i];
+                }
+            }
+            p.size = kept;
+            if (kept == 0) {
+                it.remove();
+            }
+        }
+        staleIds = 0;
+    }
+
+    private static String[] lowercase(Contact contact) {
+        return new String[] {
+            contact.getName().toLowerCase(Locale.ROOT),
+            contact.getPhone().toLowerCase(Locale.ROOT),
+            contact.getCellPhone().toLowerCase(Locale.ROOT)
+        };
+    }
+
+    // the distinct 2 and 3 character pieces of all the fields
+    private static long[] gramsOf(String[] lowered) {
+        HashSet<Long> grams = new HashSet<>();
+        for (String field : lowered) {
+            for (int n = 2; n <= GRAM; n++) {
+                for (int i = 0; i + n <= field.length(); i++) {
+                    grams.add(gram(field, i, n));
+                }
+            }
+        }
+        long[] result = new long[grams.size()];
+        int i = 0;
+        for (long g : grams) {
+            result[i++] = g;
+        }
+        return result;
+    }
+
+    // up to 3 chars packed into a long, with the length on top so "ab" and "ab\0" differ
+    private static long gram(String s, int start, int n) {
+        long g = n;
+        for (int i = 0; i < n; i++) {
+            g = (g << 16) | s.charAt(start + i);
+        }
+        return g;
+    }
+}
@@ -0,0 +1,50 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// settings for the server, from --name=value flags on the command line or
+// -Dphonebook.name=value system properties (the flag wins if both are given)
+public class ServerConfig {
+    private static final String PROPERTY_PREFIX = "phonebook.";
+
+    private final Map<String, String> flags;
+
+    private ServerConfig(Map<String, String> flags) {
+        this.flags = flags;
+    }
+
+    public static ServerConfig fromArgs(String[] args) {
+        Map<String, String> flags = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            int eq = arg.indexOf('=');
+            if (eq > 2) {
+                flags.put(arg.substring(2, eq), arg.substring(eq + 1));
+            } else {
+                flags.put(arg.substring(2), "true"); // plain --flag means switched on
+            }
+        }
+        return new ServerConfig(flags);
+    }
+
+    public String get(String name, String defaultValue) {
+        String value = flags.get(name);
+        if (value == null) {
+            value = System.getProperty(PROPERTY_PREFIX + name);
+        }
+        return value != null ? value : defaultValue;
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = get(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " must be a number, got: " + value);
+        }
+    }
+}
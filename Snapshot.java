@@ -0,0 +1,213 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+// the contacts.dat file: every contact at one point in time
+//
+//   header   int magic "PBSN", int version, long covered generation, long highest id,
+//            int contact count, int segment count
+//   table    per segment: long offset, int length in bytes, int contacts, int CRC32
+//   segments the contacts, a few thousand per segment, each one
+//            long id, name, phone, cell phone, byte has photo, [photo hash, photo type]
+//            with every string as an int length and then its UTF-8 bytes
+//
+// the table says where every segment starts, so the segments are decoded side by side on all
+// cores straight out of a memory-mapped file. files from before this format (a Java serialized
+// List<Contact>) are still read, and the next compaction writes them out again in this one.
+public class Snapshot {
+    private static final int MAGIC = 0x5042534E; // "PBSN"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int TABLE_ENTRY_BYTES = 20;
+    private static final int SEGMENT_CONTACTS = 4096;
+
+    final long covered; // the last log generation this snapshot already has
+    final long highestId;
+    final List<Contact> contacts;
+    final boolean legacy; // read from a Java serialization file, should be written again
+
+    private Snapshot(long covered, long highestId, List<Contact> contacts, boolean legacy) {
+        this.covered = covered;
+        this.highestId = highestId;
+        this.contacts = contacts;
+        this.legacy = legacy;
+    }
+
+    public static Snapshot read(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            if (ch.size() < HEADER_BYTES || ch.read(magic, 0) < 4 || magic.getInt(0) != MAGIC) {
+                return readLegacy(file); // Java serialization starts with AC ED
+            }
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too big to map");
+            }
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            int version = map.getInt(4);
+            if (version > VERSION) {
+                throw new IOException(file + " was written by a newer version of the server (format " + version + ")");
+            }
+            long covered = map.getLong(8);
+            long highestId = map.getLong(16);
+            int count = map.getInt(24);
+            int segments = map.getInt(28);
+
+            // each segment on its own, all at once
+            List<List<Contact>> decoded = new ArrayList<>(segments);
+            for (int i = 0; i < segments; i++) {
+                decoded.add(null);
+            }
+            try {
+                IntStream.range(0, segments).parallel().forEach(i -> {
+                    int entry = HEADER_BYTES + i * TABLE_ENTRY_BYTES;
+                    long offset = map.getLong(entry);
+                    int length = map.getInt(entry + 8);
+                    int contacts = map.getInt(entry + 12);
+                    int crc = map.getInt(entry + 16);
+                    if (offset < 0 || offset + length > map.capacity()) {
+                        throw new UncheckedIOException(new IOException("Segment " + i + " is outside " + file));
+                    }
+                    ByteBuffer segment = map.slice((int) offset, length);
+                    CRC32 check = new CRC32();
+                    check.update(segment.duplicate());
+                    if ((int) check.getValue() != crc) {
+                        throw new UncheckedIOException(new IOException("Segment " + i + " of " + file + " is corrupt"));
+                    }
+                    decoded.set(i, decodeSegment(segment, contacts));
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            List<Contact> contacts = new ArrayList<>(count);
+            for (List<Contact> segment : decoded) {
+                contacts.addAll(segment);
+            }
+            return new Snapshot(covered, highestId, contacts, false);
+        }
+    }
+
+    // write the file. the caller syncs and moves it into place
+    public static void write(Path file, long covered, long highestId, List<Contact> contacts) throws IOException {
+        int segments = (contacts.size() + SEGMENT_CONTACTS - 1) / SEGMENT_CONTACTS;
+
+        // encoding is the slow part, so that's done side by side too
+        byte[][] encoded = new byte[segments][];
+        IntStream.range(0, segments).parallel().forEach(i -> {
+            List<Contact> part = contacts.subList(i * SEGMENT_CONTACTS, Math.min(contacts.size(), (i + 1) * SEGMENT_CONTACTS));
+            encoded[i] = encodeSegment(part);
+        });
+
+        ByteBuffer head = ByteBuffer.allocate(HEADER_BYTES + segments * TABLE_ENTRY_BYTES);
+        head.putInt(MAGIC).putInt(VERSION).putLong(covered).putLong(highestId).putInt(contacts.size()).putInt(segments);
+        long offset = head.capacity();
+        for (int i = 0; i < segments; i++) {
+            CRC32 crc = new CRC32();
+            crc.update(encoded[i]);
+            int inSegment = Math.min(SEGMENT_CONTACTS, contacts.size() - i * SEGMENT_CONTACTS);
+            head.putLong(offset).putInt(encoded[i].length).putInt(inSegment).putInt((int) crc.getValue());
+            offset += encoded[i].length;
+        }
+        head.flip();
+
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (head.hasRemaining()) {
+                ch.write(head);
+            }
+            for (byte[] segment : encoded) {
+                ByteBuffer buffer = ByteBuffer.wrap(segment);
+                while (buffer.hasRemaining()) {
+                    ch.write(buffer);
+                }
+            }
+            ch.force(true);
+        }
+    }
+
+    private static byte[] encodeSegment(List<Contact> contacts) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(contacts.size() * 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (Contact contact : contacts) {
+                out.writeLong(contact.getId());
+                writeString(out, contact.getName());
+                writeString(out, contact.getPhone());
+                writeString(out, contact.getCellPhone());
+                out.writeBoolean(contact.hasPhoto());
+                if (contact.hasPhoto()) {
+                    writeString(out, contact.getPhotoHash());
+                    writeString(out, contact.getPhotoType() != null ? contact.getPhotoType() : "");
+                }
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // can't happen, it's all in memory
+        }
+    }
+
+    private static List<Contact> decodeSegment(ByteBuffer in, int count) {
+        List<Contact> contacts = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                long id = in.getLong();
+                String name = readString(in);
+                String phone = readString(in);
+                String cellPhone = readString(in);
+                String photoHash = null;
+                String photoType = null;
+                if (in.get() != 0) {
+                    photoHash = readString(in);
+                    photoType = readString(in);
+                    if (photoType.isEmpty()) photoType = null; // the store works it out again
+                }
+                contacts.add(new Contact(name, phone, cellPhone, photoHash, photoType).withId(id));
+            }
+        } catch (RuntimeException e) {
+            // ran off the end of the segment or a silly length, the CRC matched so it's a bug
+            throw new UncheckedIOException(new IOException("Unreadable segment: " + e, e));
+        }
+        return contacts;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // the old contacts.dat: Java serialization of (covered, highestId, List<Contact>), or in the
+    // very first version just the list
+    private static Snapshot readLegacy(Path file) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file.toFile())))) {
+            Object first = ois.readObject();
+            if (first instanceof Long) {
+                long covered = (Long) first;
+                long highestId = (Long) ois.readObject();
+                return new Snapshot(covered, highestId, castList(ois.readObject()), true);
+            }
+            return new Snapshot(0, 0, castList(first), true); // old style file, just the list
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unreadable snapshot " + file, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Contact> castList(Object o) {
+        return new ArrayList<>((List<Contact>) o);
+    }
+}
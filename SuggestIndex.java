@@ -0,0 +1,194 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// what to suggest as someone types into the search box, for /suggest
+//
+// every name is filed under itself and under each of its later words (so "nko" finds Thabo Nkosi
+// too), and every number under its digits, in one sorted map. a name many contacts share is filed
+// once with a count, so a prefix is one range of the map, and the most common names in it come
+// first. short prefixes are most of the typing and have the biggest ranges, so once one has been
+// asked for its answer is kept, and kept up to date as contacts come and go rather than worked out
+// again. longer ones only look at the start of their range, a few hundred entries, which is all of
+// it for nearly every five letters anyone types.
+public class SuggestIndex implements ContactStore.Listener {
+    public static final int MAX_SUGGESTIONS = 20;
+    private static final int CACHED_PREFIX = 4; // prefixes this short have their answers kept
+    private static final int SCAN_LIMIT = 256; // entries looked at for a longer prefix
+
+    // most contacts first, then alphabetically
+    private static final Comparator<Suggestion> BEST_FIRST = Comparator.comparingInt((Suggestion s) -> -s.count)
+            .thenComparing(s -> s.text);
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // match key + "\0" + what's shown -> how many contacts have it
+    private final ConcurrentSkipListMap<String, Integer> entries = new ConcurrentSkipListMap<>();
+    // short prefix -> its best MAX_SUGGESTIONS, never changed once in here, only replaced
+    private final ConcurrentHashMap<String, List<Suggestion>> cached = new ConcurrentHashMap<>();
+
+    private static final class Suggestion {
+        final String text;
+        final int count;
+
+        Suggestion(String text, int count) {
+            this.text = text;
+            this.count = count;
+        }
+    }
+
+    @Override
+    public void contactAdded(Contact contact) {
+        change(contact, 1);
+    }
+
+    @Override
+    public void contactRemoved(Contact contact) {
+        change(contact, -1);
+    }
+
+    private void change(Contact contact, int delta) {
+        lock.writeLock().lock();
+        try {
+            for (String key : keysOf(contact)) {
+                Integer count = entries.merge(key, delta, (a, b) -> a + b == 0 ? null : a + b);
+                int split = key.indexOf('\0');
+                Suggestion changed = new Suggestion(key.substring(split + 1), count == null ? 0 : count);
+                for (int n = 1; n <= Math.min(CACHED_PREFIX, split); n++) {
+                    String prefix = key.substring(0, n);
+                    List<Suggestion> answer = cached.get(prefix);
+                    if (answer != null) {
+                        answer = delta > 0 ? withMore(answer, changed) : withFewer(answer, changed);
+                        if (answer != null) {
+                            cached.put(prefix, answer);
+                        } else {
+                            cached.remove(prefix);
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // a kept answer after one more contact for changed: it may move up, or come in at the bottom
+    private static List<Suggestion> withMore(List<Suggestion> answer, Suggestion changed) {
+        List<Suggestion> updated = new ArrayList<>(answer.size() + 1);
+        for (Suggestion suggestion : answer) {
+            if (!suggestion.text.equals(changed.text)) {
+                updated.add(suggestion);
+            } else if (suggestion.count >= changed.count) {
+                return answer; // counted more under another key with this start (say "Anna Anna")
+            }
+        }
+        int at = 0;
+        while (at < updated.size() && BEST_FIRST.compare(updated.get(at), changed) < 0) {
+            at++;
+        }
+        updated.add(at, changed);
+        return List.copyOf(updated.size() > MAX_SUGGESTIONS ? updated.subList(0, MAX_SUGGESTIONS) : updated);
+    }
+
+    // and after one fewer. null when it has to be worked out again: something we never kept may now
+    // belong in it
+    private static List<Suggestion> withFewer(List<Suggestion> answer, Suggestion changed) {
+        for (Suggestion suggestion : answer) {
+            if (suggestion.text.equals(changed.text)) {
+                return null;
+            }
+        }
+        return answer; // it wasn't among the best, fewer won't put it there
+    }
+
+    // up to limit names and numbers starting with prefix, the most common first
+    public List<String> suggest(String prefix, int limit) {
+        String key = matchKey(prefix);
+        if (key.isEmpty()) {
+            return List.of();
+        }
+        limit = Math.min(limit, MAX_SUGGESTIONS);
+        List<Suggestion> answer;
+        if (key.length() > CACHED_PREFIX) {
+            answer = best(key, limit, SCAN_LIMIT);
+        } else if ((answer = cached.get(key)) == null) {
+            lock.readLock().lock(); // so a change can't come between working it out and keeping it
+            try {
+                answer = cached.computeIfAbsent(key, k -> best(k, MAX_SUGGESTIONS, Integer.MAX_VALUE));
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        List<String> texts = new ArrayList<>(Math.min(limit, answer.size()));
+        for (int i = 0; i < answer.size() && i < limit; i++) {
+            texts.add(answer.get(i).text);
+        }
+        return texts;
+    }
+
+    // the limit best of (at most scan) entries under key
+    private List<Suggestion> best(String key, int limit, int scan) {
+        Map<String, Integer> counts = new HashMap<>(); // a name can be under two keys with the same start
+        for (Map.Entry<String, Integer> entry : entries.subMap(key, key + Character.MAX_VALUE).entrySet()) {
+            if (--scan < 0) {
+                break;
+            }
+            String text = entry.getKey().substring(entry.getKey().indexOf('\0') + 1);
+            counts.merge(text, entry.getValue(), Math::max);
+        }
+        PriorityQueue<Suggestion> best = new PriorityQueue<>(limit + 1, BEST_FIRST.reversed()); // worst on top
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            best.add(new Suggestion(entry.getKey(), entry.getValue()));
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+        Suggestion[] sorted = best.toArray(new Suggestion[0]);
+        Arrays.sort(sorted, BEST_FIRST);
+        return List.of(sorted);
+    }
+
+    // numbers by their digits (in the same form PhoneNumbers makes of them), anything else lowercased
+    // with its spaces tidied up
+    static String matchKey(String text) {
+        if (PhoneNumbers.looksLikeNumber(text)) {
+            return PhoneNumbers.normalize(text);
+        }
+        return text.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    private static List<String> keysOf(Contact contact) {
+        List<String> keys = new ArrayList<>(6);
+        String name = contact.getName().trim().replaceAll("\\s+", " ");
+        String lowered = name.toLowerCase(Locale.ROOT);
+        if (!name.isEmpty()) {
+            keys.add(lowered + '\0' + name);
+            // and from each later word on, though not from one like "2", that would come up for numbers
+            String[] words = lowered.split(" ");
+            for (int i = 1, at = words[0].length() + 1; i < words.length; at += words[i].length() + 1, i++) {
+                if (!PhoneNumbers.looksLikeNumber(words[i])) {
+                    keys.add(lowered.substring(at) + '\0' + name);
+                }
+            }
+        }
+        // once per number: a phone and cell phone that are the same (a vCard with one number fills
+        // both) would otherwise count the contact twice
+        Set<String> numbers = new HashSet<>(2);
+        for (String number : new String[] {contact.getPhone(), contact.getCellPhone()}) {
+            String digits = PhoneNumbers.normalize(number);
+            if (!digits.isEmpty() && numbers.add(digits)) {
+                keys.add(digits + '\0' + number.trim());
+            }
+        }
+        return keys;
+    }
+}
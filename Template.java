@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// a page with holes in it, like <h1>{{title}}</h1>
+//
+// the text between the holes never changes, so it's turned into UTF-8 bytes once when the template
+// is compiled and written out as is on every request. only what goes into the holes is escaped and
+// encoded per request. holes can also be filled once at compile time with constants, e.g. the URL
+// of the stylesheet.
+public class Template {
+    private final byte[][] text; // text[i] comes before slots[i], the last one after the last slot
+    private final String[] slots;
+
+    // fills in the holes while a template is being written
+    public interface Slots {
+        void write(String slot, HtmlWriter html) throws IOException;
+    }
+
+    private Template(byte[][] text, String[] slots) {
+        this.text = text;
+        this.slots = slots;
+    }
+
+    public static Template load(Path file, Map<String, String> constants) throws IOException {
+        return compile(Files.readString(file), constants);
+    }
+
+    public static Template compile(String source) {
+        return compile(source, Map.of());
+    }
+
+    // constants are put in as is, they're our own markup
+    public static Template compile(String source, Map<String, String> constants) {
+        List<byte[]> text = new ArrayList<>();
+        List<String> slots = new ArrayList<>();
+        StringBuilder pending = new StringBuilder();
+        int at = 0;
+        while (true) {
+            int open = source.indexOf("{{", at);
+            if (open < 0) {
+                break;
+            }
+            int close = source.indexOf("}}", open + 2);
+            if (close < 0) {
+                throw new IllegalArgumentException("Unclosed {{ in template at " + open);
+            }
+            pending.append(source, at, open);
+            String name = source.substring(open + 2, close).trim();
+            String constant = constants.get(name);
+            if (constant != null) {
+                pending.append(constant);
+            } else {
+                text.add(pending.toString().getBytes(StandardCharsets.UTF_8));
+                slots.add(name);
+                pending.setLength(0);
+            }
+            at = close + 2;
+        }
+        pending.append(source, at, source.length());
+        text.add(pending.toString().getBytes(StandardCharsets.UTF_8));
+        return new Template(text.toArray(new byte[0][]), slots.toArray(new String[0]));
+    }
+
+    public void write(HtmlWriter html, Slots fill) throws IOException {
+        for (int i = 0; i < slots.length; i++) {
+            html.bytes(text[i]);
+            fill.write(slots[i], html);
+        }
+        html.bytes(text[slots.length]);
+    }
+}
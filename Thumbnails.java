@@ -0,0 +1,299 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// small versions of the photos for the contacts table
+//
+// the table never shows a photo bigger than 100x100, so sending the original upload is a waste.
+// thumbnails are made by decoding the photo, scaling it down and encoding it again. each one is
+// kept on disk (thumbnails/<hash>-<size>.jpg) and the recently used ones in memory too, so a
+// photo is only ever scaled once per size. they're made in the background right after an upload,
+// or the first time someone asks for one.
+//
+// a photo's size is read from its header before anything is decoded: a small file can say it's
+// 20000x20000, which would be more than a gigabyte of pixels. ones over MAX_PIXELS aren't scaled
+// at all, and the rest are decoded skipping rows and columns we'd only throw away when scaling.
+public class Thumbnails {
+    // the sizes we make, by the name used in the URL (?size=thumb). 2x is for high-DPI screens
+    public static final Map<String, Integer> SIZES = Map.of("thumb", 100, "thumb2x", 200);
+    private static final float JPEG_QUALITY = 0.85f;
+    private static final long MAX_PIXELS = 50_000_000; // a 50 megapixel camera's photos, bigger ones are sent as they are
+
+    private final PhotoStore photos;
+    private final Path dir;
+    private final long cacheLimitBytes;
+    private final LinkedHashMap<String, Thumbnail> cache = new LinkedHashMap<>(16, 0.75f, true); // access order
+    private long cachedBytes;
+    private final Set<String> failed = ConcurrentHashMap.newKeySet(); // photos ImageIO can't read
+    private final ConcurrentHashMap<String, CompletableFuture<Thumbnail>> inProgress = new ConcurrentHashMap<>();
+    private final ExecutorService background = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "thumbnailer");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY); // requests come first
+        return t;
+    });
+
+    // an encoded thumbnail
+    public static class Thumbnail {
+        private final byte[] data;
+        private final String type;
+
+        Thumbnail(byte[] data, String type) {
+            this.data = data;
+            this.type = type;
+        }
+
+        public ByteBuffer getData() {
+            return ByteBuffer.wrap(data).asReadOnlyBuffer();
+        }
+
+        public String getType() {
+            return type;
+        }
+    }
+
+    public Thumbnails(PhotoStore photos, String dir, long cacheLimitBytes) throws IOException {
+        this.photos = photos;
+        this.dir = Paths.get(dir);
+        this.cacheLimitBytes = cacheLimitBytes;
+        Files.createDirectories(this.dir);
+    }
+
+    // make every size for a photo in the background, e.g. right after it was uploaded
+    public void prepare(String hash) {
+        background.execute(() -> {
+            for (String size : SIZES.keySet()) {
+                try {
+                    get(hash, size);
+                } catch (IOException e) {
+                    Log.error("Error making thumbnail for %s: %s", hash, e.getMessage());
+                }
+            }
+        });
+    }
+
+    // the thumbnail of a photo at one of the SIZES, or null if the photo can't be scaled
+    // (in which case the caller should just send the original)
+    public Thumbnail get(String hash, String size) throws IOException {
+        Integer pixels = SIZES.get(size);
+        if (pixels == null) {
+            throw new IllegalArgumentException("Unknown thumbnail size " + size);
+        }
+        String key = hash + "-" + size;
+        if (failed.contains(hash)) {
+            return null;
+        }
+        synchronized (cache) {
+            Thumbnail cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        // only one thread makes any given thumbnail, the others wait for it
+        CompletableFuture<Thumbnail> mine = new CompletableFuture<>();
+        CompletableFuture<Thumbnail> running = inProgress.putIfAbsent(key, mine);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                // fail the way the thread making it did, not with join's unchecked wrapper
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw e;
+            }
+        }
+        try {
+            Thumbnail thumbnail = load(key);
+            if (thumbnail == null) {
+                thumbnail = create(hash, pixels, key);
+            }
+            if (thumbnail != null) {
+                remember(key, thumbnail);
+            }
+            mine.complete(thumbnail);
+            return thumbnail;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inProgress.remove(key);
+        }
+    }
+
+    // one we made earlier, from disk
+    private Thumbnail load(String key) throws IOException {
+        for (String[] format : new String[][] { { "jpg", "image/jpeg" }, { "png", "image/png" } }) {
+            Path file = dir.resolve(key + "." + format[0]);
+            if (Files.exists(file)) {
+                return new Thumbnail(Files.readAllBytes(file), format[1]);
+            }
+        }
+        return null;
+    }
+
+    private Thumbnail create(String hash, int pixels, String key) throws IOException {
+        ByteBuffer original = photos.get(hash);
+        if (original == null) {
+            return null;
+        }
+        BufferedImage image;
+        try {
+            image = decode(original, pixels);
+        } catch (IOException | RuntimeException e) {
+            // corrupt, or a kind of JPEG ImageIO doesn't handle (some of which it throws for)
+            Log.warn("Can't read photo %s: %s", hash, e.toString());
+            image = null;
+        }
+        if (image == null) {
+            failed.add(hash); // not a format ImageIO knows or too big, don't keep trying
+            return null;
+        }
+
+        // scale to fit in pixels x pixels, keeping the shape. never make it bigger
+        double scale = Math.min(1.0, Math.min((double) pixels / image.getWidth(), (double) pixels / image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        boolean transparent = image.getColorModel().hasAlpha();
+        BufferedImage scaled = new BufferedImage(width, height, transparent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+
+        // JPEG is much smaller, but only PNG keeps transparency
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String type;
+        String extension;
+        if (transparent) {
+            ImageIO.write(scaled, "png", out);
+            type = "image/png";
+            extension = "png";
+        } else {
+            writeJpeg(scaled, out);
+            type = "image/jpeg";
+            extension = "jpg";
+        }
+        byte[] data = out.toByteArray();
+
+        // write it to disk under a temp name first so a half-written file is never picked up
+        Path tmp = Files.createTempFile(dir, key, ".tmp");
+        try {
+            Files.write(tmp, data);
+            Files.move(tmp, dir.resolve(key + "." + extension), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return new Thumbnail(data, type);
+    }
+
+    // the photo, at no more than about twice the size it's being scaled to. null if ImageIO doesn't
+    // know the format or it has more than MAX_PIXELS
+    private static BufferedImage decode(ByteBuffer original, int pixels) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteBufferInputStream(original))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0); // from the header, nothing decoded yet
+                int height = reader.getHeight(0);
+                if ((long) width * height > MAX_PIXELS) {
+                    Log.warn("Not scaling a %dx%d photo, over %d pixels", width, height, MAX_PIXELS);
+                    return null;
+                }
+                // every step-th pixel across and down still leaves twice what scaling keeps, for
+                // it to smooth over
+                int step = Math.max(1, Math.max(width, height) / (2 * pixels));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static void writeJpeg(BufferedImage image, OutputStream out) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private void remember(String key, Thumbnail thumbnail) {
+        synchronized (cache) {
+            if (cache.put(key, thumbnail) == null) {
+                cachedBytes += thumbnail.data.length;
+            }
+            // drop the least recently used thumbnails until we fit again
+            var it = cache.entrySet().iterator();
+            while (cachedBytes > cacheLimitBytes && it.hasNext()) {
+                cachedBytes -= it.next().getValue().data.length;
+                it.remove();
+            }
+        }
+    }
+
+    // lets ImageIO read a mapped photo without copying it onto the heap first
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,596 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Stream;
+
+// micro benchmarks for the hot paths: parsing requests, searching, building pages and the data file
+//
+//   javac -d out *.java benchmarks/*.java
+//   java -cp out Benchmarks [--only=search,homePage] [--sizes=10,1000,100000,1000000]
+//                           [--warmup=3] [--iterations=5] [--time=1000] [--out=results.csv] [--baseline=old.csv]
+//
+// run it from the project folder (the pages come from templates/). every benchmark runs in a JVM of
+// its own so one can't warm up or fill the heap for the next. each one gets some warmup rounds, then
+// timed rounds, and reports ops/second, the bytes it allocates per op and how many GCs it caused.
+// --out saves the results as CSV, --baseline compares against a CSV from an earlier run.
+public class Benchmarks {
+    private static final long SEED = 20240601;
+
+    static volatile Object sink; // so the JIT can't throw the work away
+
+    // one thing to time. setup happens once per JVM, op runs over and over
+    interface Op {
+        Object run(int n) throws Exception;
+    }
+
+    interface Setup {
+        Op create(int size, boolean photos, Path scratch) throws Exception;
+    }
+
+    private static class Benchmark {
+        final String name;
+        final boolean sized; // runs once per --sizes entry
+        final boolean photos; // runs with and without photos
+        final Setup setup;
+
+        Benchmark(String name, boolean sized, boolean photos, Setup setup) {
+            this.name = name;
+            this.sized = sized;
+            this.photos = photos;
+            this.setup = setup;
+        }
+    }
+
+    private static final Map<String, Benchmark> BENCHMARKS = new LinkedHashMap<>();
+
+    static {
+        add(new Benchmark("queryParams", false, false, (size, photos, scratch) -> {
+            String[] queries = {
+                    "query=van+der+merwe&after=1200&limit=50",
+                    "message=Contact+added+successfully",
+                    "query=%2B27+82+555+0100",
+                    "size=thumb2x&hash=" + "ab".repeat(32)};
+            return n -> PhoneBookServer.parseQueryParams(queries[n & 3]);
+        }));
+
+        add(new Benchmark("multipart", false, true, (size, photos, scratch) -> {
+            // the same limits the add form uses
+            MultipartParser parser = new MultipartParser(4 * 1024, 10 * 1024 * 1024, 10 * 1024 * 1024 + 64 * 1024, 256 * 1024);
+            String boundary = "----BenchBoundary7MA4YWxkTrZu0gW";
+            byte[] body = multipartBody(boundary, photos ? fakeJpeg(new Random(SEED), 48 * 1024) : null);
+            return n -> {
+                try (MultipartParser.Form form = parser.parse(new ByteArrayInputStream(body), boundary)) {
+                    return form.getFile("photo") != null ? form.getFile("photo") : form.getValue("name");
+                }
+            };
+        }));
+
+        add(new Benchmark("detectImageType", false, false, (size, photos, scratch) -> {
+            Random random = new Random(SEED);
+            byte[][] images = {
+                    fakeJpeg(random, 256),
+                    withHeader(random, new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'}),
+                    withHeader(random, "GIF89a".getBytes(StandardCharsets.US_ASCII)),
+                    withHeader(random, "RIFF\0\0\0\0WEBPVP8 ".getBytes(StandardCharsets.US_ASCII))};
+            return n -> PhotoStore.detectImageType(images[n & 3]);
+        }));
+
+        add(new Benchmark("search", true, false, (size, photos, scratch) -> {
+            SearchIndex index = new SearchIndex();
+            for (Contact contact : dataset(size, false)) {
+                index.contactAdded(contact);
+            }
+            String[] queries = {"an", "van der merwe", "thabo nk", "082", "zzqx"};
+            return n -> index.search(queries[n % queries.length]);
+        }));
+
+        add(new Benchmark("fuzzySearch", true, false, (size, photos, scratch) -> {
+            FuzzyIndex index = new FuzzyIndex();
+            for (Contact contact : dataset(size, false)) {
+                index.contactAdded(contact);
+            }
+            String[] queries = {"thabo", "tabo nkosi", "mokoena", "mokeona", "van der merwe", "zzqx"};
+            return n -> index.search(queries[n % queries.length], 50);
+        }));
+
+        add(new Benchmark("suggest", true, false, (size, photos, scratch) -> {
+            SuggestIndex index = new SuggestIndex();
+            for (Contact contact : dataset(size, false)) {
+                index.contactAdded(contact);
+            }
+            // a name and a number typed a key at a time
+            String[] prefixes = {"t", "th", "tha", "thab", "thabo", "0", "08", "082", "0825", "08255"};
+            return n -> index.suggest(prefixes[n % prefixes.length], 8);
+        }));
+
+        add(new Benchmark("searchPage", true, true, (size, photos, scratch) -> {
+            PhoneBookServer.useContacts(filledStore(size, photos));
+            Template page = Template.load(Paths.get("templates", "search.html"), Map.of("stylesheet", "/static/style.css"));
+            PhoneBookServer.SearchContactHandler handler = new PhoneBookServer.SearchContactHandler(page);
+            URI[] uris = {
+                    URI.create("/search?query=an"),
+                    URI.create("/search?query=van+der+merwe"),
+                    URI.create("/search?query=082"),
+                    URI.create("/search?query=zzqx")};
+            return n -> handle(handler, uris[n & 3]);
+        }));
+
+        add(new Benchmark("homePage", true, true, (size, photos, scratch) -> {
+            PhoneBookServer.useContacts(filledStore(size, photos));
+            Template page = Template.load(Paths.get("templates", "home.html"), Map.of("stylesheet", "/static/style.css"));
+            PhoneBookServer.HomeHandler handler = new PhoneBookServer.HomeHandler(page);
+            // the first page and a few from further in
+            URI[] uris = new URI[4];
+            for (int i = 0; i < uris.length; i++) {
+                uris[i] = URI.create("/?after=" + (long) size * i / uris.length);
+            }
+            return n -> handle(handler, uris[n & 3]);
+        }));
+
+        add(new Benchmark("cachedHomePage", true, true, (size, photos, scratch) -> {
+            ContactStore store = filledStore(size, photos);
+            PhoneBookServer.useContacts(store);
+            Template page = Template.load(Paths.get("templates", "home.html"), Map.of("stylesheet", "/static/style.css"));
+            // the same pages as homePage, rendered the first time round and sent from the cache after
+            com.sun.net.httpserver.HttpHandler handler = new PageCache(store::version, 16 * 1024 * 1024)
+                    .wrap("bench", new PhoneBookServer.HomeHandler(page));
+            URI[] uris = new URI[4];
+            for (int i = 0; i < uris.length; i++) {
+                uris[i] = URI.create("/?after=" + (long) size * i / uris.length);
+            }
+            return n -> handle(handler, uris[n & 3]);
+        }));
+
+        add(new Benchmark("snapshotWrite", true, true, (size, photos, scratch) -> {
+            List<Contact> contacts = dataset(size, photos);
+            Path file = scratch.resolve("contacts.dat");
+            return n -> {
+                Snapshot.write(file, n, size, contacts);
+                return file;
+            };
+        }));
+
+        add(new Benchmark("snapshotRead", true, true, (size, photos, scratch) -> {
+            Path file = scratch.resolve("contacts.dat");
+            Snapshot.write(file, 1, size, dataset(size, photos));
+            return n -> Snapshot.read(file).contacts;
+        }));
+
+        add(new Benchmark("storeLoad", true, true, (size, photos, scratch) -> {
+            // what happens at startup: read the file, then fill the store and both indexes
+            Path file = scratch.resolve("contacts.dat");
+            Snapshot.write(file, 0, size, dataset(size, photos));
+            PhotoStore photoStore = new PhotoStore(scratch.resolve("photos").toString(), 0);
+            return n -> {
+                ContactStore store = new ContactStore(new ContactLog(file.toString()), photoStore);
+                store.addListener(new SearchIndex());
+                store.addListener(new PhoneIndex());
+                store.load();
+                return store.size();
+            };
+        }));
+
+        add(new Benchmark("logAppend", false, true, (size, photos, scratch) -> {
+            // adding a contact the way the server does: through the log, synced to disk
+            PhotoStore photoStore = new PhotoStore(scratch.resolve("photos").toString(), 0);
+            ContactStore store = new ContactStore(new ContactLog(scratch.resolve("contacts.dat").toString()), photoStore);
+            store.load();
+            List<Contact> contacts = dataset(1000, photos);
+            return n -> store.add(contacts.get(n % contacts.size()).withId(0));
+        }));
+    }
+
+    private static void add(Benchmark benchmark) {
+        BENCHMARKS.put(benchmark.name, benchmark);
+    }
+
+    public static void main(String[] args) throws Exception {
+        ServerConfig options = ServerConfig.fromArgs(args);
+        int warmup = options.getInt("warmup", 3);
+        int iterations = options.getInt("iterations", 5);
+        long millis = options.getInt("time", 1000);
+
+        String run = options.get("run", null);
+        if (run != null) {
+            // we're the forked JVM for one benchmark
+            Benchmark benchmark = BENCHMARKS.get(run);
+            Result result = runHere(benchmark, options.getInt("size", 0),
+                    Boolean.parseBoolean(options.get("photos", "false")), warmup, iterations, millis);
+            System.out.println(result.toCsv());
+            return;
+        }
+
+        List<Benchmark> selected = new ArrayList<>();
+        String only = options.get("only", null);
+        if (only != null) {
+            for (String name : only.split(",")) {
+                Benchmark benchmark = BENCHMARKS.get(name.trim());
+                if (benchmark == null) {
+                    throw new IllegalArgumentException("No benchmark called " + name + ", there's " + BENCHMARKS.keySet());
+                }
+                selected.add(benchmark);
+            }
+        } else {
+            selected.addAll(BENCHMARKS.values());
+        }
+        List<Integer> sizes = new ArrayList<>();
+        for (String size : options.get("sizes", "10,1000,100000,1000000").split(",")) {
+            sizes.add(Integer.parseInt(size.trim()));
+        }
+        String baselineFile = options.get("baseline", null);
+        Map<String, Result> baseline = baselineFile != null ? readCsv(Paths.get(baselineFile)) : Map.of();
+
+        List<Result> results = new ArrayList<>();
+        System.out.printf("%-16s %9s %6s %21s %16s %8s %9s%s%n", "benchmark", "size", "photos",
+                "ops/s", "bytes/op", "gc", "gc ms", baseline.isEmpty() ? "" : "   vs baseline");
+        for (Benchmark benchmark : selected) {
+            for (int size : benchmark.sized ? sizes : List.of(0)) {
+                for (boolean photos : benchmark.photos ? List.of(false, true) : List.of(false)) {
+                    Result result = fork(benchmark, size, photos, warmup, iterations, millis);
+                    results.add(result);
+                    Result old = baseline.get(result.key());
+                    String change = old == null ? "" : String.format("   %+.1f%%", (result.opsPerSecond / old.opsPerSecond - 1) * 100);
+                    System.out.printf("%-16s %9d %6s %,12.1f +-%5.1f%% %,16.0f %8d %9d%s%n", result.name, result.size, result.photos,
+                            result.opsPerSecond, result.errorPercent, result.bytesPerOp, result.gcCount, result.gcMillis, change);
+                }
+            }
+        }
+
+        String outFile = options.get("out", null);
+        if (outFile != null) {
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(outFile)))) {
+                out.println(Result.CSV_HEADER);
+                for (Result result : results) {
+                    out.println(result.toCsv());
+                }
+            }
+        }
+    }
+
+    // starts a fresh JVM for one benchmark and reads back its result line
+    private static Result fork(Benchmark benchmark, int size, boolean photos, int warmup, int iterations, long millis)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments()); // -Xmx and friends
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), "Benchmarks",
+                "--run=" + benchmark.name, "--size=" + size, "--photos=" + photos,
+                "--warmup=" + warmup, "--iterations=" + iterations, "--time=" + millis));
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String last = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                last = line;
+            }
+        }
+        if (process.waitFor() != 0 || last == null) {
+            throw new IOException(benchmark.name + " (size " + size + ", photos " + photos + ") failed");
+        }
+        return Result.fromCsv(last);
+    }
+
+    private static Result runHere(Benchmark benchmark, int size, boolean photos, int warmup, int iterations, long millis)
+            throws Exception {
+        // the server code prints as it goes, that would only get in the way of the result line
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Path scratch = Files.createTempDirectory("phonebook-bench");
+        try {
+            Op op = benchmark.setup.create(size, photos, scratch);
+            int n = 0;
+            for (int i = 0; i < warmup; i++) {
+                n = timed(op, n, millis).next;
+            }
+            System.gc();
+
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+            long[] gcBefore = gcTotals();
+            double[] rates = new double[iterations];
+            long ops = 0;
+            for (int i = 0; i < iterations; i++) {
+                Round round = timed(op, n, millis);
+                rates[i] = round.ops * 1e9 / round.nanos;
+                ops += round.ops;
+                n = round.next;
+            }
+            long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            long[] gcAfter = gcTotals();
+
+            double mean = Arrays.stream(rates).average().orElse(0);
+            double variance = Arrays.stream(rates).map(r -> (r - mean) * (r - mean)).sum() / Math.max(1, iterations - 1);
+            Result result = new Result(benchmark.name, size, photos, mean, mean == 0 ? 0 : Math.sqrt(variance) / mean * 100,
+                    (double) allocated / ops, gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+            System.setOut(out);
+            return result;
+        } finally {
+            System.setOut(out);
+            try (Stream<Path> files = Files.walk(scratch)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static class Round {
+        long ops;
+        long nanos;
+        int next;
+    }
+
+    // runs op for about millis, always at least once (a million contact snapshot takes a while)
+    private static Round timed(Op op, int n, long millis) throws Exception {
+        Round round = new Round();
+        long start = System.nanoTime();
+        long end = start + millis * 1_000_000;
+        long now;
+        do {
+            sink = op.run(n++);
+            round.ops++;
+            now = System.nanoTime();
+        } while (now < end);
+        round.nanos = now - start;
+        round.next = n;
+        return round;
+    }
+
+    // collections so far and the milliseconds they took, over all collectors
+    private static long[] gcTotals() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[]{count, millis};
+    }
+
+    private static class Result {
+        static final String CSV_HEADER = "benchmark,size,photos,ops_per_second,error_percent,bytes_per_op,gc_count,gc_millis";
+
+        final String name;
+        final int size;
+        final boolean photos;
+        final double opsPerSecond;
+        final double errorPercent; // standard deviation of the timed rounds
+        final double bytesPerOp;
+        final long gcCount;
+        final long gcMillis;
+
+        Result(String name, int size, boolean photos, double opsPerSecond, double errorPercent, double bytesPerOp,
+               long gcCount, long gcMillis) {
+            this.name = name;
+            this.size = size;
+            this.photos = photos;
+            this.opsPerSecond = opsPerSecond;
+            this.errorPercent = errorPercent;
+            this.bytesPerOp = bytesPerOp;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        String key() {
+            return name + "," + size + "," + photos;
+        }
+
+        String toCsv() {
+            return String.format(Locale.ROOT, "%s,%.3f,%.2f,%.1f,%d,%d", key(), opsPerSecond, errorPercent, bytesPerOp, gcCount, gcMillis);
+        }
+
+        static Result fromCsv(String line) {
+            String[] f = line.split(",");
+            if (f.length != 8) {
+                throw new IllegalArgumentException("Not a result line: " + line);
+            }
+            return new Result(f[0], Integer.parseInt(f[1]), Boolean.parseBoolean(f[2]), Double.parseDouble(f[3]),
+                    Double.parseDouble(f[4]), Double.parseDouble(f[5]), Long.parseLong(f[6]), Long.parseLong(f[7]));
+        }
+    }
+
+    private static Map<String, Result> readCsv(Path file) throws IOException {
+        Map<String, Result> results = new HashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            if (!line.isEmpty() && !line.equals(Result.CSV_HEADER)) {
+                Result result = Result.fromCsv(line);
+                results.put(result.key(), result);
+            }
+        }
+        return results;
+    }
+
+    // ---- test data ----
+
+    // the same contacts every time for a given size, ids 1 to size
+    static List<Contact> dataset(int size, boolean photos) {
+        Random random = new Random(SEED);
+        List<Contact> contacts = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String name = SampleContacts.name(random);
+            String phone = SampleContacts.phone(random);
+            String cell = SampleContacts.cellPhone(random);
+            String hash = null;
+            String type = null;
+            // most people have a photo, not everyone
+            if (photos && random.nextInt(4) != 0) {
+                hash = String.format("%016x%016x%016x%016x", random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+                type = "image/jpeg";
+            }
+            contacts.add(new Contact(name, phone, cell, hash, type).withId(i + 1));
+        }
+        return contacts;
+    }
+
+    // a store without a file behind it, so filling it doesn't touch the disk
+    private static ContactStore filledStore(int size, boolean photos) throws IOException {
+        ContactStore store = new ContactStore(null, null);
+        store.load();
+        for (Contact contact : dataset(size, photos)) {
+            store.add(contact.withId(0));
+        }
+        return store;
+    }
+
+    private static byte[] fakeJpeg(Random random, int length) {
+        return withHeader(random, new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0}, length);
+    }
+
+    private static byte[] withHeader(Random random, byte[] header) {
+        return withHeader(random, header, 256);
+    }
+
+    private static byte[] withHeader(Random random, byte[] header, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        System.arraycopy(header, 0, data, 0, header.length);
+        return data;
+    }
+
+    // what a browser sends from the add form
+    private static byte[] multipartBody(String boundary, byte[] photo) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Writer text = new OutputStreamWriter(body, StandardCharsets.UTF_8);
+        String[][] fields = {{"name", "Lerato van der Merwe"}, {"phone", "012 555 0100"}, {"cellPhone", "082 555 0199"}};
+        for (String[] field : fields) {
+            text.write("--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + field[0] + "\"\r\n\r\n" + field[1] + "\r\n");
+        }
+        if (photo != null) {
+            text.write("--" + boundary + "\r\nContent-Disposition: form-data; name=\"photo\"; filename=\"me.jpg\"\r\n"
+                    + "Content-Type: image/jpeg\r\n\r\n");
+            text.flush();
+            body.write(photo);
+            text.write("\r\n");
+        }
+        text.write("--" + boundary + "--\r\n");
+        text.flush();
+        return body.toByteArray();
+    }
+
+    // runs a page handler against a request that never touches the network
+    private static Object handle(com.sun.net.httpserver.HttpHandler handler, URI uri) throws IOException {
+        BenchExchange exchange = new BenchExchange(uri);
+        handler.handle(exchange);
+        return exchange.body.count;
+    }
+
+    private static class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private static class BenchExchange extends HttpExchange {
+        private final URI uri;
+        private final Headers requestHeaders = new Headers();
+        private final Headers responseHeaders = new Headers();
+        final CountingStream body = new CountingStream();
+        private int code = -1;
+        private final Map<String, Object> attributes = new HashMap<>();
+
+        BenchExchange(URI uri) {
+            this.uri = uri;
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return uri;
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return "GET";
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return InputStream.nullInputStream();
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return body;
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) {
+            code = rCode;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return InetSocketAddress.createUnresolved("localhost", 0);
+        }
+
+        @Override
+        public int getResponseCode() {
+            return code;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return InetSocketAddress.createUnresolved("localhost", 8080);
+        }
+
+        @Override
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+}
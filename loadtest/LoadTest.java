@@ -0,0 +1,469 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// drives a running PhoneBookServer with a mix of page views, searches, photos, adds and deletes,
+// and reports how many it handled and how long they took
+//
+//   javac -d out *.java loadtest/*.java
+//   java -cp out LoadTest [--url=http://localhost:8080] [--mix=home:50,search:30,image:15,add:3,delete:2]
+//                         [--mode=closed] [--clients=16]           every client sends its next request
+//                                                                   as soon as the last one is answered
+//                         [--mode=open] [--rate=200]                requests arrive at this rate per second
+//                                                                   whether the server keeps up or not
+//                         [--duration=30] [--warmup=5] [--seed=1] [--preload=200] [--photo-size=256]
+//                         [--max-in-flight=2000] [--out=report.csv]
+//
+// before it starts it adds --preload contacts of its own (most with a photo) through /add, so there
+// are photos to fetch and contacts it's allowed to delete. the same --seed sends the same requests
+// with the same photos, so two runs (say before and after a change) are comparable. in open loop
+// mode a request's time counts from when it should have been sent, so a server that falls behind
+// shows up in the percentiles instead of just slowing the test down.
+public class LoadTest {
+    private static final List<String> ENDPOINTS = List.of("home", "search", "image", "add", "delete");
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999, 1.0};
+    private static final int PHOTOS = 16; // distinct synthetic photos, reused round robin
+
+    private final String base;
+    private final long seed;
+    private final HttpClient client;
+    private final Map<String, Integer> mix = new LinkedHashMap<>();
+    private final int totalWeight;
+    private final List<byte[]> photos = new ArrayList<>();
+    private final AtomicLong added = new AtomicLong();
+
+    // what the server has, found out after preloading
+    private final List<Long> ids = new ArrayList<>();
+    private final List<String> photoUrls = new ArrayList<>();
+    private final List<String> searchTerms = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Long> deletable = new ConcurrentLinkedQueue<>(); // ours, each deleted once
+
+    private Stats stats;
+
+    // one run's numbers for one endpoint
+    private static class EndpointStats {
+        final Metrics.Histogram latency = new Metrics.Histogram(); // of the requests the server let in
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder shed = new LongAdder(); // turned away with a 503 (the server's admission control)
+        final Map<String, LongAdder> failures = new ConcurrentHashMap<>(); // status code or exception -> count
+    }
+
+    private static class Stats {
+        final Map<String, EndpointStats> byEndpoint = new LinkedHashMap<>();
+        final LongAdder dropped = new LongAdder(); // open loop: too many in flight, never sent
+        long startNanos;
+        long endNanos;
+
+        Stats() {
+            for (String endpoint : ENDPOINTS) {
+                byEndpoint.put(endpoint, new EndpointStats());
+            }
+        }
+    }
+
+    // a request picked ahead of time, so the random choices don't depend on thread timing
+    private static class Planned {
+        final String endpoint;
+        final HttpRequest request;
+
+        Planned(String endpoint, HttpRequest request) {
+            this.endpoint = endpoint;
+            this.request = request;
+        }
+    }
+
+    LoadTest(String base, long seed, String mixSpec, int photoSize) throws IOException {
+        this.base = base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+        this.seed = seed;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NEVER) // /add and /delete answer with a redirect, that's the response we time
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+
+        int total = 0;
+        for (String part : mixSpec.split(",")) {
+            String[] fields = part.trim().split(":");
+            if (fields.length != 2 || !ENDPOINTS.contains(fields[0])) {
+                throw new IllegalArgumentException("Bad --mix entry " + part + " (use name:weight with names " + ENDPOINTS + ")");
+            }
+            int weight = Integer.parseInt(fields[1]);
+            if (weight < 0) {
+                throw new IllegalArgumentException("--mix weights can't be negative");
+            }
+            mix.put(fields[0], weight);
+            total += weight;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("--mix has nothing to send");
+        }
+        this.totalWeight = total;
+
+        Random random = new Random(seed);
+        for (int i = 0; i < PHOTOS; i++) {
+            photos.add(syntheticPhoto(random, photoSize));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        ServerConfig config = ServerConfig.fromArgs(args);
+        String mode = config.get("mode", "closed");
+        if (!mode.equals("closed") && !mode.equals("open")) {
+            throw new IllegalArgumentException("Unknown --mode " + mode + " (use closed or open)");
+        }
+        int clients = config.getInt("clients", 16);
+        int rate = config.getInt("rate", 200);
+        int duration = config.getInt("duration", 30);
+        int warmup = config.getInt("warmup", 5);
+        int maxInFlight = config.getInt("max-in-flight", 2000);
+
+        LoadTest test = new LoadTest(config.get("url", "http://localhost:8080"), config.getInt("seed", 1),
+                config.get("mix", "home:50,search:30,image:15,add:3,delete:2"), config.getInt("photo-size", 256));
+
+        int preload = config.getInt("preload", 200);
+        System.out.println("Adding " + preload + " contacts to test with...");
+        test.preload(preload);
+        test.discover();
+        System.out.println("Server has " + test.ids.size() + " contacts, " + test.photoUrls.size() + " with photos");
+
+        // virtual threads when there are any, so thousands of waiting requests cost next to nothing
+        ExecutorService executor = PhoneBookServer.newVirtualThreadExecutor();
+        String threads = "virtual threads";
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(PhoneBookServer.namedThreads("load"));
+            threads = "platform threads (virtual threads need Java 21+)";
+        }
+        String shape = mode.equals("closed") ? clients + " clients" : rate + " requests/s";
+        System.out.println("Running " + mode + " loop, " + shape + ", on " + threads);
+
+        try {
+            if (warmup > 0) {
+                System.out.println("Warming up for " + warmup + "s...");
+                test.run(mode, clients, rate, warmup, maxInFlight, executor, new Random(test.seed - 1));
+            }
+            System.out.println("Measuring for " + duration + "s...");
+            Stats stats = test.run(mode, clients, rate, duration, maxInFlight, executor, new Random(test.seed));
+            test.report(stats, mode, rate);
+            if (config.get("out", null) != null) {
+                test.writeCsv(stats, config.get("out", null));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // ---- setup ----
+
+    private void preload(int count) throws IOException, InterruptedException {
+        Random random = new Random(seed + 1);
+        for (int i = 0; i < count; i++) {
+            HttpResponse<Void> response = client.send(addRequest(random), HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() != 302) {
+                throw new IOException("Adding a contact gave " + response.statusCode() + ", is the server running at " + base + "?");
+            }
+        }
+    }
+
+    // page through the API for ids, photos and names to search for. half of our own contacts
+    // (picked by the seed) are set aside for /delete, the photos of the rest are what /image asks for,
+    // so a delete never turns a later photo request into a 404
+    private void discover() throws IOException, InterruptedException {
+        String ours = "Loadtest " + seed + " ";
+        Set<String> terms = new LinkedHashSet<>();
+        List<Long> own = new ArrayList<>();
+        Map<Long, String> photoById = new LinkedHashMap<>();
+        String next = "0";
+        while (next != null) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/api/contacts?limit=500&after=" + next)).build();
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IOException("/api/contacts gave " + response.statusCode());
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> page = (Map<String, Object>) Json.parse(response.body());
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> contacts = (List<Map<String, Object>>) page.get("contacts");
+            for (Map<String, Object> contact : contacts) {
+                long id = (Long) contact.get("id");
+                String name = (String) contact.get("name");
+                ids.add(id);
+                if (contact.get("photo") != null) {
+                    photoById.put(id, (String) contact.get("photo"));
+                }
+                if (name.startsWith(ours)) {
+                    own.add(id);
+                    name = name.substring(ours.length());
+                }
+                // whole names, and just the start of them like someone still typing
+                terms.add(name.toLowerCase(Locale.ROOT));
+                terms.add(name.substring(0, Math.min(3, name.length())).toLowerCase(Locale.ROOT));
+            }
+            next = page.get("next") != null ? page.get("next").toString() : null;
+        }
+        Collections.shuffle(own, new Random(seed + 2));
+        for (Long id : own.subList(0, own.size() / 2)) {
+            deletable.add(id);
+            photoById.remove(id);
+        }
+        photoUrls.addAll(photoById.values());
+        searchTerms.addAll(terms);
+        searchTerms.add("zzqx"); // and one that finds nothing
+    }
+
+    // ---- running ----
+
+    private Stats run(String mode, int clients, int rate, int seconds, int maxInFlight, ExecutorService executor, Random random)
+            throws InterruptedException {
+        stats = new Stats();
+        stats.startNanos = System.nanoTime();
+        long end = stats.startNanos + TimeUnit.SECONDS.toNanos(seconds);
+        if (mode.equals("closed")) {
+            List<Future<?>> running = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                Random own = new Random(random.nextLong()); // each client its own sequence
+                running.add(executor.submit(() -> {
+                    while (System.nanoTime() < end) {
+                        Planned planned = plan(own);
+                        send(planned, System.nanoTime());
+                    }
+                }));
+            }
+            for (Future<?> f : running) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("A client failed", e.getCause());
+                }
+            }
+        } else {
+            // arrivals as a Poisson process at the given rate, each sent on its own thread
+            Semaphore inFlight = new Semaphore(maxInFlight);
+            long due = stats.startNanos;
+            while (due < end) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                Planned planned = plan(random);
+                long intended = due;
+                if (inFlight.tryAcquire()) {
+                    executor.execute(() -> {
+                        try {
+                            send(planned, intended);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                } else {
+                    stats.dropped.increment();
+                }
+                due += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+            }
+            // let what's still out there finish
+            inFlight.tryAcquire(maxInFlight, 30, TimeUnit.SECONDS);
+        }
+        stats.endNanos = System.nanoTime();
+        return stats;
+    }
+
+    private Planned plan(Random random) {
+        int pick = random.nextInt(totalWeight);
+        String endpoint = null;
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) {
+                endpoint = entry.getKey();
+                break;
+            }
+        }
+        switch (endpoint) {
+            case "home": {
+                // mostly the first page, sometimes further in
+                long after = random.nextInt(4) == 0 && !ids.isEmpty() ? ids.get(random.nextInt(ids.size())) : 0;
+                return new Planned(endpoint, get("/?after=" + after));
+            }
+            case "search":
+                return new Planned(endpoint, get("/search?query=" + encode(searchTerms.get(random.nextInt(searchTerms.size())))));
+            case "image": {
+                if (photoUrls.isEmpty()) {
+                    return new Planned(endpoint, get("/image?id=0"));
+                }
+                String url = photoUrls.get(random.nextInt(photoUrls.size()));
+                // the page shows thumbnails, only sometimes does someone open the full photo
+                int size = random.nextInt(10);
+                return new Planned(endpoint, get(url + (size < 6 ? "&size=thumb" : size < 8 ? "&size=thumb2x" : "")));
+            }
+            case "add":
+                return new Planned(endpoint, addRequest(random));
+            case "delete": {
+                Long id = deletable.poll();
+                String form = "id=" + (id != null ? id : 0); // ran out of our own: a miss, still a full request
+                return new Planned(endpoint, HttpRequest.newBuilder(URI.create(base + "/delete"))
+                        .header("Content-Type", "application/x-www-form-urlencoded")
+                        .POST(HttpRequest.BodyPublishers.ofString(form)).build());
+            }
+            default:
+                throw new IllegalStateException(endpoint);
+        }
+    }
+
+    private void send(Planned planned, long startNanos) {
+        EndpointStats endpoint = stats.byEndpoint.get(planned.endpoint);
+        String failure = null;
+        try {
+            HttpResponse<Void> response = client.send(planned.request, HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() == 503) {
+                // shed, not failed: its (quick) latency would make the admitted requests look faster
+                endpoint.requests.increment();
+                endpoint.shed.increment();
+                return;
+            }
+            if (response.statusCode() >= 400) {
+                failure = Integer.toString(response.statusCode());
+            }
+        } catch (IOException e) {
+            failure = e.getClass().getSimpleName();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        endpoint.latency.recordSince(startNanos);
+        endpoint.requests.increment();
+        if (failure != null) {
+            endpoint.errors.increment();
+            endpoint.failures.computeIfAbsent(failure, f -> new LongAdder()).increment();
+        }
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(URI.create(base + path)).header("Accept-Encoding", "gzip").GET().build();
+    }
+
+    // the add form as a browser sends it, three quarters of the time with a photo
+    private HttpRequest addRequest(Random random) {
+        String boundary = "----LoadTestBoundary" + Long.toHexString(random.nextLong());
+        String name = "Loadtest " + seed + " " + SampleContacts.name(random) + " " + added.incrementAndGet();
+        String phone = SampleContacts.phone(random);
+        String cell = SampleContacts.cellPhone(random);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String[][] fields = {{"name", name}, {"phone", phone}, {"cellPhone", cell}};
+        for (String[] field : fields) {
+            body.writeBytes(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + field[0] + "\"\r\n\r\n"
+                    + field[1] + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+        if (random.nextInt(4) != 0) {
+            body.writeBytes(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"photo\"; filename=\"photo.jpg\"\r\n"
+                    + "Content-Type: image/jpeg\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            body.writeBytes(photos.get(random.nextInt(photos.size())));
+            body.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+        body.writeBytes(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return HttpRequest.newBuilder(URI.create(base + "/add"))
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray())).build();
+    }
+
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+
+    // a real JPEG of smooth colour plus noise (so it doesn't compress to nothing), the same for the same seed
+    private static byte[] syntheticPhoto(Random random, int size) throws IOException {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        int r = random.nextInt(256);
+        int g = random.nextInt(256);
+        int b = random.nextInt(256);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int noise = random.nextInt(64) - 32;
+                int red = clamp(r + x * 128 / size + noise);
+                int green = clamp(g + y * 128 / size + noise);
+                int blue = clamp(b + noise);
+                image.setRGB(x, y, (red << 16) | (green << 8) | blue);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    private static int clamp(int v) {
+        return Math.max(0, Math.min(255, v));
+    }
+
+    // ---- results ----
+
+    private void report(Stats stats, String mode, int rate) {
+        double seconds = (stats.endNanos - stats.startNanos) / 1e9;
+        System.out.println();
+        System.out.printf("%-8s %10s %8s %8s %10s %10s %10s %10s %10s %10s%n",
+                "endpoint", "requests", "errors", "shed", "req/s", "mean", "p50", "p99", "p999", "max");
+        long total = 0;
+        long errors = 0;
+        long shed = 0;
+        for (Map.Entry<String, EndpointStats> entry : stats.byEndpoint.entrySet()) {
+            EndpointStats endpoint = entry.getValue();
+            long requests = endpoint.requests.sum();
+            if (requests == 0) {
+                continue;
+            }
+            long[] snapshot = endpoint.latency.snapshot(QUANTILES);
+            System.out.printf("%-8s %10d %8d %8d %10.1f %10s %10s %10s %10s %10s%n", entry.getKey(), requests,
+                    endpoint.errors.sum(), endpoint.shed.sum(), requests / seconds, millis(snapshot[1] / Math.max(1, snapshot[0])),
+                    millis(snapshot[2]), millis(snapshot[3]), millis(snapshot[4]), millis(snapshot[5]));
+            if (!endpoint.failures.isEmpty()) {
+                System.out.println("         failures: " + endpoint.failures);
+            }
+            total += requests;
+            errors += endpoint.errors.sum();
+            shed += endpoint.shed.sum();
+        }
+        System.out.printf("%-8s %10d %8d %8d %10.1f%n", "total", total, errors, shed, total / seconds);
+        if (mode.equals("open")) {
+            System.out.printf("target %d req/s, %d never sent (more than --max-in-flight waiting)%n", rate, stats.dropped.sum());
+        }
+    }
+
+    private void writeCsv(Stats stats, String file) throws IOException {
+        double seconds = (stats.endNanos - stats.startNanos) / 1e9;
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(file)))) {
+            out.println("endpoint,requests,errors,shed,per_second,mean_ms,p50_ms,p99_ms,p999_ms,max_ms");
+            for (Map.Entry<String, EndpointStats> entry : stats.byEndpoint.entrySet()) {
+                EndpointStats endpoint = entry.getValue();
+                long[] snapshot = endpoint.latency.snapshot(QUANTILES);
+                out.printf(Locale.ROOT, "%s,%d,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f%n", entry.getKey(), endpoint.requests.sum(),
+                        endpoint.errors.sum(), endpoint.shed.sum(), endpoint.requests.sum() / seconds, snapshot[1] / Math.max(1, snapshot[0]) / 1e6,
+                        snapshot[2] / 1e6, snapshot[3] / 1e6, snapshot[4] / 1e6, snapshot[5] / 1e6);
+            }
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2fms", nanos / 1e6);
+    }
+}
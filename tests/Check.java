@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+// all there is to the tests: each check is a name and a bit of code that throws if something's
+// wrong. they run one after another, print ok or FAIL, and the JVM exits with 1 if any failed
+//
+//   javac -d out *.java tests/*.java
+//   java -cp out RunTests                 everything
+//   java -cp out ContactLogTest           just one class
+public class Check {
+    interface Body {
+        void run() throws Exception;
+    }
+
+    private static int passed;
+    private static final List<String> failed = new ArrayList<>();
+    private static final List<Path> scratch = new ArrayList<>();
+
+    static {
+        Log.setLevel("error"); // the code under test warns about the broken files we give it on purpose
+    }
+
+    private Check() {
+    }
+
+    static void test(String name, Body body) {
+        try {
+            body.run();
+            passed++;
+            System.out.println("ok   " + name);
+        } catch (Throwable e) {
+            failed.add(name);
+            System.out.println("FAIL " + name + ": " + e);
+            for (StackTraceElement frame : e.getStackTrace()) {
+                if (frame.getClassName().endsWith("Test")) {
+                    System.out.println("       at " + frame); // where in the test, the rest is noise
+                }
+            }
+        }
+    }
+
+    static void equal(Object expected, Object actual) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError("expected " + expected + ", got " + actual);
+        }
+    }
+
+    static void that(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    // fails unless body throws an exception of this type, which it returns
+    static <T extends Throwable> T throwsA(Class<T> type, Body body) {
+        try {
+            body.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e)) {
+                return type.cast(e);
+            }
+            throw new AssertionError("expected " + type.getSimpleName() + ", got " + e, e);
+        }
+        throw new AssertionError("expected " + type.getSimpleName() + ", nothing was thrown");
+    }
+
+    // an empty folder for one test, removed when we're done
+    static Path tempDir() throws IOException {
+        Path dir = Files.createTempDirectory("phonebook-test");
+        scratch.add(dir);
+        return dir;
+    }
+
+    // print the totals, clean up and exit, 1 if anything failed
+    static void done() {
+        for (Path dir : scratch) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            } catch (IOException e) {
+                // only temp files
+            }
+        }
+        System.out.println();
+        System.out.println(passed + " passed, " + failed.size() + " failed" + (failed.isEmpty() ? "" : ": " + failed));
+        System.exit(failed.isEmpty() ? 0 : 1);
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// ContactLog: what's appended comes back on the next start, in order, and a crash half way through
+// a write loses only that write. and ContactStore, which refuses changes if loading went wrong
+public class ContactLogTest {
+    public static void main(String[] args) {
+        run();
+        Check.done();
+    }
+
+    static void run() {
+        Check.test("log: adds, changes and deletes are replayed in order", () -> {
+            Path dir = Check.tempDir();
+            ContactLog log = open(dir);
+            log.appendAdd(contact(1, "Thabo Nkosi"));
+            log.appendAdd(contact(2, "Anna Botha"));
+            log.appendAdd(contact(3, "Pieter Venter"));
+            log.appendDelete(2);
+            log.appendAdd(contact(1, "Thabo Dlamini")); // an add for an id we have is a change
+
+            ContactLog again = new ContactLog(dir.resolve("contacts.dat").toString());
+            Map<Long, Contact> contacts = again.load();
+            Check.equal(List.of("1 Thabo Dlamini", "3 Pieter Venter"), describe(contacts));
+            Check.equal(3L, again.getHighestId()); // ids of deleted contacts are never handed out again
+        });
+
+        Check.test("log: a batch is replayed like its parts", () -> {
+            Path dir = Check.tempDir();
+            ContactLog log = open(dir);
+            log.appendAdd(contact(1, "Thabo Nkosi"));
+            log.appendBatch(List.of(1L), List.of(contact(2, "Anna Botha"), contact(3, "Lerato Zulu")));
+
+            Check.equal(List.of("2 Anna Botha", "3 Lerato Zulu"), describe(reopen(dir)));
+        });
+
+        Check.test("log: a half written record at the end is cut off, the ones before it kept", () -> {
+            Path dir = Check.tempDir();
+            ContactLog log = open(dir);
+            log.appendAdd(contact(1, "Thabo Nkosi"));
+            log.appendAdd(contact(2, "Anna Botha"));
+            Path file = dir.resolve("contacts.log");
+            long good = Files.size(file);
+            log.appendAdd(contact(3, "Pieter Venter"));
+            truncate(file, Files.size(file) - 5); // the crash came before the last bytes
+
+            Check.equal(List.of("1 Thabo Nkosi", "2 Anna Botha"), describe(reopen(dir)));
+            Check.equal(good, Files.size(file));
+        });
+
+        Check.test("log: a record whose checksum is wrong ends the replay", () -> {
+            Path dir = Check.tempDir();
+            ContactLog log = open(dir);
+            log.appendAdd(contact(1, "Thabo Nkosi"));
+            log.appendAdd(contact(2, "Anna Botha"));
+            Path file = dir.resolve("contacts.log");
+            flipLastByte(file);
+
+            Check.equal(List.of("1 Thabo Nkosi"), describe(reopen(dir)));
+        });
+
+        Check.test("log: writes after a torn tail was cut off are replayed", () -> {
+            Path dir = Check.tempDir();
+            ContactLog log = open(dir);
+            log.appendAdd(contact(1, "Thabo Nkosi"));
+            Path file = dir.resolve("contacts.log");
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ch.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 100, 1, 2})); // a record header, then nothing
+            }
+
+            ContactLog again = new ContactLog(dir.resolve("contacts.dat").toString());
+            again.load();
+            again.appendAdd(contact(2, "Anna Botha"));
+            Check.equal(List.of("1 Thabo Nkosi", "2 Anna Botha"), describe(reopen(dir)));
+        });
+
+        Check.test("log: after compacting, the snapshot and the new log give the same contacts", () -> {
+            Path dir = Check.tempDir();
+            ContactLog log = open(dir);
+            List<Contact> contacts = new ArrayList<>();
+            for (int i = 1; i <= 50; i++) {
+                Contact contact = contact(i, "Contact " + i);
+                log.appendAdd(contact);
+                contacts.add(contact);
+            }
+            log.compact(contacts, 50);
+            log.appendDelete(7); // goes to the new log, while the snapshot's being written
+            waitFor(() -> Files.exists(dir.resolve("contacts.dat")) && !Files.exists(dir.resolve("contacts.log.1")));
+
+            Map<Long, Contact> loaded = reopen(dir);
+            Check.equal(49, loaded.size());
+            Check.that(!loaded.containsKey(7L), "the delete after the compaction is lost");
+            Check.equal("Contact 50", loaded.get(50L).getName());
+        });
+
+        Check.test("store: a load that fails leaves the store refusing changes", () -> {
+            Path dir = Check.tempDir();
+            Files.write(dir.resolve("contacts.dat"), "not a snapshot at all".getBytes());
+            ContactStore store = new ContactStore(new ContactLog(dir.resolve("contacts.dat").toString()),
+                    new PhotoStore(dir.resolve("photos").toString(), 1024 * 1024));
+            Check.throwsA(IOException.class, store::load);
+            Check.that(store.loadFailed(), "loadFailed() should say so");
+            Check.throwsA(IOException.class, () -> store.add(new Contact("Thabo Nkosi", "012 345 6789", "082 345 6789")));
+            Check.throwsA(IOException.class, () -> store.remove(1));
+            Check.equal("not a snapshot at all", Files.readString(dir.resolve("contacts.dat"))); // and nothing was written over it
+        });
+
+        Check.test("store: a good load takes changes, and they're there next time", () -> {
+            Path dir = Check.tempDir();
+            ContactStore store = newStore(dir);
+            store.load();
+            Check.that(!store.loadFailed(), "nothing went wrong");
+            Contact added = store.add(new Contact("Thabo Nkosi", "012 345 6789", "082 345 6789"));
+            store.add(new Contact("Anna Botha", "021 345 6789", "083 345 6789"));
+            store.update(added.getId(), new Contact("Thabo Dlamini", "012 345 6789", "082 345 6789"));
+
+            ContactStore again = newStore(dir);
+            again.load();
+            Check.equal(List.of("1 Thabo Dlamini", "2 Anna Botha"), describe(again.all()));
+        });
+    }
+
+    private static ContactLog open(Path dir) throws IOException {
+        ContactLog log = new ContactLog(dir.resolve("contacts.dat").toString());
+        log.load(); // also opens the log for appending
+        return log;
+    }
+
+    private static Map<Long, Contact> reopen(Path dir) throws IOException {
+        return new ContactLog(dir.resolve("contacts.dat").toString()).load();
+    }
+
+    private static ContactStore newStore(Path dir) throws IOException {
+        return new ContactStore(new ContactLog(dir.resolve("contacts.dat").toString()),
+                new PhotoStore(dir.resolve("photos").toString(), 1024 * 1024));
+    }
+
+    private static Contact contact(long id, String name) {
+        return new Contact(name, "012 345 " + (1000 + id), "082 345 " + (1000 + id)).withId(id);
+    }
+
+    private static List<String> describe(Map<Long, Contact> contacts) {
+        return describe(contacts.values());
+    }
+
+    private static List<String> describe(Iterable<Contact> contacts) {
+        List<String> described = new ArrayList<>();
+        for (Contact contact : contacts) {
+            described.add(contact.getId() + " " + contact.getName());
+        }
+        return described;
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.truncate(size);
+        }
+    }
+
+    private static void flipLastByte(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(file, bytes);
+    }
+
+    interface Condition {
+        boolean holds() throws IOException;
+    }
+
+    private static void waitFor(Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("gave up waiting for the compaction");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BooleanSupplier;
+
+// Events: pages get the changes, and pages that stopped reading are cut off without holding up
+// the ones that didn't
+public class EventsTest {
+    private static final int WRITERS = 4; // Events.WRITERS
+
+    public static void main(String[] args) {
+        run();
+        Check.done();
+    }
+
+    static void run() {
+        Check.test("events: a page gets adds and removes", () -> {
+            Events events = new Events(c -> "{\"name\":\"" + c.getName() + "\"}", 500);
+            Page page = new Page(false);
+            events.handle(page);
+            events.contactAdded(new Contact("Thabo Nkosi", "", "").withId(7));
+            events.contactRemoved(new Contact("Thabo Nkosi", "", "").withId(7));
+            page.waitFor("event: removed");
+            String text = page.text();
+            Check.that(text.startsWith("retry: "), "says how soon to reconnect: " + text);
+            Check.that(text.contains("event: added\ndata: {\"name\":\"Thabo Nkosi\"}\n\n"), "the add: " + text);
+            Check.that(text.contains("event: removed\ndata: {\"id\":7}\n\n"), "the remove: " + text);
+        });
+
+        Check.test("events: pages that stopped reading don't stop the others", () -> {
+            Events events = new Events(c -> "{}", 500);
+            Page[] stalled = new Page[WRITERS];
+            for (int i = 0; i < WRITERS; i++) {
+                stalled[i] = new Page(true);
+                events.handle(stalled[i]);
+            }
+            for (Page page : stalled) {
+                page.waitForWrite(); // every writer is now stuck in one of these
+            }
+            Page reading = new Page(false);
+            events.handle(reading);
+            events.contactAdded(new Contact("Anna Botha", "", "").withId(1));
+            reading.waitFor("event: added");
+            for (Page page : stalled) {
+                page.waitForClose(); // cut off, not left hanging
+            }
+        });
+    }
+
+    // an open /events response. a stalled one blocks in write until the writer is interrupted,
+    // like a socket whose reader went away
+    private static class Page extends HttpExchange {
+        private final boolean stalled;
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private boolean writing;
+        private boolean closed;
+        private final OutputStream body = new OutputStream() {
+            @Override
+            public void write(int b) throws InterruptedIOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws InterruptedIOException {
+                synchronized (Page.this) {
+                    writing = true;
+                    Page.this.notifyAll();
+                    if (stalled) {
+                        try {
+                            while (true) {
+                                Page.this.wait();
+                            }
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException("stalled page interrupted");
+                        }
+                    }
+                    written.write(b, off, len);
+                    Page.this.notifyAll();
+                }
+            }
+        };
+
+        Page(boolean stalled) {
+            this.stalled = stalled;
+        }
+
+        synchronized String text() {
+            return written.toString(StandardCharsets.UTF_8);
+        }
+
+        synchronized void waitFor(String text) throws InterruptedException {
+            waitUntil(() -> text().contains(text), "\"" + text + "\" in " + text());
+        }
+
+        synchronized void waitForWrite() throws InterruptedException {
+            waitUntil(() -> writing, "a write");
+        }
+
+        synchronized void waitForClose() throws InterruptedException {
+            waitUntil(() -> closed, "the page closed");
+        }
+
+        private void waitUntil(BooleanSupplier condition, String what) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (!condition.getAsBoolean()) {
+                long left = end - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new AssertionError("gave up waiting for " + what);
+                }
+                wait(left);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return new Headers();
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return new Headers();
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return URI.create("/events");
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return "GET";
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return body;
+        }
+
+        @Override
+        public void sendResponseHeaders(int code, long length) {
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return new InetSocketAddress("127.0.0.1", 50000);
+        }
+
+        @Override
+        public int getResponseCode() {
+            return 200;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return new InetSocketAddress("127.0.0.1", 8080);
+        }
+
+        @Override
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return null;
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+        }
+
+        @Override
+        public void setStreams(InputStream in, OutputStream out) {
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// FuzzyIndex: the best matches first, typos and sound-alikes still found, only the k best kept,
+// and a contact found by the name it has now, not one it used to have
+public class FuzzyIndexTest {
+    public static void main(String[] args) {
+        run();
+        Check.done();
+    }
+
+    static void run() {
+        Check.test("fuzzy: exact beats prefix beats typo beats sounds like", () -> {
+            FuzzyIndex index = new FuzzyIndex();
+            add(index, 1, "Jon Smyth"); // only sounds like smith
+            add(index, 2, "John Smit"); // one letter off
+            add(index, 3, "John Smithers"); // starts with it
+            add(index, 4, "John Smith");
+            Check.equal(List.of(4L, 3L, 2L, 1L), ids(index.search("john smith", 10)));
+            Check.equal(1.0, index.search("john smith", 1).get(0).score);
+        });
+
+        Check.test("fuzzy: typos and swapped letters", () -> {
+            FuzzyIndex index = new FuzzyIndex();
+            add(index, 1, "John Smith");
+            add(index, 2, "Anna Botha");
+            Check.equal(List.of(1L), ids(index.search("jonh smit", 10)));
+            Check.equal(List.of(2L), ids(index.search("ANNA btoha", 10)));
+            Check.equal(List.of(), ids(index.search("xyz", 10)));
+        });
+
+        Check.test("fuzzy: every query word has to match something", () -> {
+            FuzzyIndex index = new FuzzyIndex();
+            add(index, 1, "Thabo Nkosi");
+            add(index, 2, "Thabo Botha");
+            Check.equal(List.of(1L), ids(index.search("thabo nkosi", 10)));
+            Check.equal(List.of(), ids(index.search("thabo venter", 10)));
+        });
+
+        Check.test("fuzzy: only the k best, ties in id order", () -> {
+            FuzzyIndex index = new FuzzyIndex();
+            for (long id = 1; id <= 50; id++) {
+                add(index, id, "Lerato Mokoena");
+            }
+            add(index, 51, "Lerato Mokoen");
+            Check.equal(List.of(1L, 2L, 3L), ids(index.search("mokoena", 3)));
+            List<FuzzyIndex.Hit> all = index.search("mokoena", 100);
+            Check.equal(51, all.size());
+            Check.equal(51L, all.get(50).id); // the typo comes last
+        });
+
+        Check.test("fuzzy: a renamed contact isn't found by its old name", () -> {
+            FuzzyIndex index = new FuzzyIndex();
+            Contact before = contact(1, "Thabo Nkosi");
+            index.contactAdded(before);
+            Contact after = contact(1, "Sipho Dlamini");
+            index.contactRemoved(before); // what the store does for an update
+            index.contactAdded(after);
+            Check.equal(List.of(), ids(index.search("thabo", 10)));
+            Check.equal(List.of(), ids(index.search("nkosi", 10)));
+            Check.equal(List.of(), ids(index.search("thabo nkosi", 10)));
+            Check.equal(List.of(1L), ids(index.search("sipho", 10)));
+            Check.equal(1.0, index.search("sipho dlamini", 1).get(0).score);
+        });
+
+        Check.test("fuzzy: right through deletes, renames and the clean out after them", () -> {
+            FuzzyIndex index = new FuzzyIndex();
+            Random random = new Random(22);
+            List<Contact> book = new ArrayList<>();
+            for (long id = 1; id <= 3000; id++) {
+                Contact contact = contact(id, SampleContacts.name(random));
+                book.add(contact);
+                index.contactAdded(contact);
+            }
+            // rename every third one to a name nobody else has, and delete every third after it,
+            // enough stale ids to be cleaned out
+            for (int i = 0; i + 1 < book.size(); i += 3) {
+                Contact old = book.get(i);
+                Contact renamed = contact(old.getId(), "Renamed Person" + i);
+                index.contactRemoved(old);
+                index.contactAdded(renamed);
+                book.set(i, renamed);
+                index.contactRemoved(book.get(i + 1));
+                book.set(i + 1, null);
+            }
+            int expected = 0;
+            for (Contact contact : book) {
+                if (contact != null && contact.getName().startsWith("Thabo ")) {
+                    expected++;
+                }
+            }
+            List<FuzzyIndex.Hit> hits = index.search("thabo", 10_000);
+            for (FuzzyIndex.Hit hit : hits) {
+                Contact contact = book.get((int) hit.id - 1);
+                Check.that(contact != null, hit.id + " was deleted");
+                Check.that(hit.score < 1.0 || contact.getName().startsWith("Thabo "), hit.id + " is " + contact.getName());
+            }
+            long exact = hits.stream().filter(h -> h.score == 1.0).count();
+            Check.equal((long) expected, exact);
+            Check.equal("Renamed Person0", book.get((int) index.search("person0", 1).get(0).id - 1).getName());
+        });
+
+        Check.test("fuzzy: soundex and edit distance", () -> {
+            Check.equal("S530", FuzzyIndex.soundex("smith"));
+            Check.equal("S530", FuzzyIndex.soundex("smyth"));
+            Check.equal("A261", FuzzyIndex.soundex("ashcraft")); // h doesn't split the two c-like sounds
+            Check.equal("T000", FuzzyIndex.soundex("t"));
+            Check.equal(null, FuzzyIndex.soundex("o'brien"));
+            Check.equal(3, FuzzyIndex.levenshtein("kitten", "sitting"));
+            Check.equal(0, FuzzyIndex.levenshtein("", ""));
+            Check.equal(4, FuzzyIndex.levenshtein("", "abcd"));
+        });
+    }
+
+    private static Contact contact(long id, String name) {
+        return new Contact(name, "012 345 6789", "082 345 6789").withId(id);
+    }
+
+    private static void add(FuzzyIndex index, long id, String name) {
+        index.contactAdded(contact(id, name));
+    }
+
+    private static List<Long> ids(List<FuzzyIndex.Hit> hits) {
+        List<Long> ids = new ArrayList<>(hits.size());
+        for (FuzzyIndex.Hit hit : hits) {
+            ids.add(hit.id);
+        }
+        return ids;
+    }
+}
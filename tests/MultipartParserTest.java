@@ -0,0 +1,221 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// MultipartParser: boundaries wherever the reads happen to split them, things that only look like
+// a boundary, every limit, and no temp files or open files left behind when an upload is refused
+public class MultipartParserTest {
+    private static final String BOUNDARY = "----FormBoundary7MA4YWxkTrZu0gW";
+
+    public static void main(String[] args) {
+        run();
+        Check.done();
+    }
+
+    static void run() {
+        Check.test("multipart: fields and a file", () -> {
+            byte[] photo = bytes(3000, 1);
+            byte[] body = new Body().field("name", "Thabo Nkosi").field("phone", "012 345 6789").file("photo", photo).end();
+            try (MultipartParser.Form form = parser().parse(new ByteArrayInputStream(body), BOUNDARY)) {
+                Check.equal("Thabo Nkosi", form.getValue("name"));
+                Check.equal("012 345 6789", form.getValue("phone"));
+                Check.equal("", form.getValue("cellPhone"));
+                MultipartParser.Part file = form.getFile("photo");
+                Check.equal((long) photo.length, file.getSize());
+                Check.that(Arrays.equals(photo, file.getBytes()), "the file comes back as it was sent");
+            }
+        });
+
+        Check.test("multipart: the same, read a few bytes at a time", () -> {
+            byte[] photo = bytes(20_000, 2);
+            byte[] body = new Body().field("name", "Anna Botha").file("photo", photo).end();
+            for (int most : new int[] {1, 2, 3, 7, 41}) {
+                try (MultipartParser.Form form = parser().parse(new Trickle(body, most), BOUNDARY)) {
+                    Check.equal("Anna Botha", form.getValue("name"));
+                    Check.that(Arrays.equals(photo, form.getFile("photo").getBytes()), "file read " + most + " at a time");
+                }
+            }
+        });
+
+        Check.test("multipart: content that starts like the boundary is kept", () -> {
+            // every prefix of CRLF--boundary, each followed by something that breaks it off
+            StringBuilder value = new StringBuilder();
+            String delimiter = "\r\n--" + BOUNDARY;
+            for (int i = 1; i < delimiter.length(); i++) {
+                value.append(delimiter, 0, i).append('x');
+            }
+            value.append("\r\n--").append(BOUNDARY, 0, BOUNDARY.length() - 1).append("\r\n"); // one short, at the end
+            byte[] body = new Body().field("notes", value.toString()).field("name", "Lerato Zulu").end();
+            MultipartParser parser = new MultipartParser(64 * 1024, 1024 * 1024, 4 * 1024 * 1024, 4096);
+            try (MultipartParser.Form form = parser.parse(new Trickle(body, 5), BOUNDARY)) {
+                Check.equal(value.toString(), form.getValue("notes"));
+                Check.equal("Lerato Zulu", form.getValue("name"));
+            }
+        });
+
+        Check.test("multipart: preamble and epilogue are skipped", () -> {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            body.writeBytes("This is a multipart message.\r\n".getBytes(StandardCharsets.UTF_8));
+            body.writeBytes(new Body().field("name", "Sipho Dlamini").end());
+            body.writeBytes("and some trailing junk".getBytes(StandardCharsets.UTF_8));
+            try (MultipartParser.Form form = parser().parse(new ByteArrayInputStream(body.toByteArray()), BOUNDARY)) {
+                Check.equal("Sipho Dlamini", form.getValue("name"));
+            }
+        });
+
+        Check.test("multipart: a big file goes to disk and is deleted on close", () -> {
+            byte[] photo = bytes(100_000, 3);
+            byte[] body = new Body().file("photo", photo).end();
+            long before = uploads();
+            MultipartParser.Form form = parser().parse(new ByteArrayInputStream(body), BOUNDARY);
+            Check.equal(before + 1, uploads());
+            Check.that(Arrays.equals(photo, form.getFile("photo").getBytes()), "the spilled file is what was sent");
+            form.close();
+            Check.equal(before, uploads());
+        });
+
+        Check.test("multipart: limits on fields, files and the whole request", () -> {
+            MultipartParser parser = new MultipartParser(100, 10_000, 50_000, 1024);
+            Check.throwsA(MultipartParser.LimitExceededException.class,
+                    () -> parser.parse(new ByteArrayInputStream(new Body().field("name", "x".repeat(101)).end()), BOUNDARY));
+            Check.throwsA(MultipartParser.LimitExceededException.class,
+                    () -> parser.parse(new ByteArrayInputStream(new Body().file("photo", bytes(10_001, 4)).end()), BOUNDARY));
+            Body many = new Body();
+            for (int i = 0; i < 10; i++) {
+                many.file("photo" + i, bytes(9_000, i));
+            }
+            Check.throwsA(MultipartParser.LimitExceededException.class,
+                    () -> parser.parse(new ByteArrayInputStream(many.end()), BOUNDARY));
+            // right at the limits is fine
+            try (MultipartParser.Form form = parser.parse(new ByteArrayInputStream(
+                    new Body().field("name", "x".repeat(100)).file("photo", bytes(10_000, 5)).end()), BOUNDARY)) {
+                Check.equal(100, form.getValue("name").length());
+                Check.equal(10_000L, form.getFile("photo").getSize());
+            }
+        });
+
+        Check.test("multipart: a refused or cut short upload leaves no files, open or on disk", () -> {
+            MultipartParser parser = new MultipartParser(100, 50_000, 1024 * 1024, 1024);
+            byte[] tooBig = new Body().file("photo", bytes(60_000, 6)).end();
+            byte[] whole = new Body().file("photo", bytes(40_000, 7)).end();
+            byte[] cutShort = Arrays.copyOf(whole, 30_000);
+            long files = uploads();
+            long open = openFiles();
+            for (int i = 0; i < 20; i++) {
+                Check.throwsA(MultipartParser.LimitExceededException.class, () -> parser.parse(new ByteArrayInputStream(tooBig), BOUNDARY));
+                Check.throwsA(EOFException.class, () -> parser.parse(new ByteArrayInputStream(cutShort), BOUNDARY));
+            }
+            Check.equal(files, uploads());
+            long nowOpen = openFiles();
+            Check.that(nowOpen <= open, (nowOpen - open) + " more files open than before"); // a leak would be one per upload
+        });
+
+        Check.test("multipart: bodies that aren't multipart", () -> {
+            Check.throwsA(EOFException.class, () -> parser().parse(new ByteArrayInputStream("name=Thabo".getBytes()), BOUNDARY));
+            byte[] bad = ("--" + BOUNDARY + "xx").getBytes(StandardCharsets.ISO_8859_1);
+            Check.throwsA(IOException.class, () -> parser().parse(new ByteArrayInputStream(bad), BOUNDARY));
+        });
+
+        Check.test("multipart: the boundary from Content-Type", () -> {
+            Check.equal("abc", MultipartParser.extractBoundary("multipart/form-data; boundary=abc"));
+            Check.equal("a b;c", MultipartParser.extractBoundary("multipart/form-data; boundary=\"a b;c\"; charset=utf-8"));
+            Check.equal("abc", MultipartParser.extractBoundary("Multipart/Form-Data; boundary=abc; charset=utf-8"));
+            Check.equal(null, MultipartParser.extractBoundary("application/x-www-form-urlencoded"));
+            Check.equal(null, MultipartParser.extractBoundary("multipart/form-data"));
+            Check.equal(null, MultipartParser.extractBoundary(null));
+        });
+    }
+
+    private static MultipartParser parser() {
+        return new MultipartParser(64 * 1024, 10 * 1024 * 1024, 20 * 1024 * 1024, 16 * 1024);
+    }
+
+    // a form body, built up the way a browser sends it
+    private static class Body {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Body field(String name, String value) {
+            text("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n" + value + "\r\n");
+            return this;
+        }
+
+        Body file(String name, byte[] data) {
+            text("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"; filename=\"me.jpg\"\r\n"
+                    + "Content-Type: image/jpeg\r\n\r\n");
+            out.writeBytes(data);
+            text("\r\n");
+            return this;
+        }
+
+        byte[] end() {
+            text("--" + BOUNDARY + "--\r\n");
+            return out.toByteArray();
+        }
+
+        private void text(String s) {
+            out.writeBytes(s.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // hands out at most a few bytes per read, so boundaries land across reads
+    private static class Trickle extends InputStream {
+        private final byte[] data;
+        private final int most;
+        private int pos;
+
+        Trickle(byte[] data, int most) {
+            this.data = data;
+            this.most = most;
+        }
+
+        @Override
+        public int read() {
+            return pos < data.length ? data[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos == data.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(len, most), data.length - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    // random, so nothing in it looks like a boundary by accident more than it would in a real photo
+    private static byte[] bytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    // temp files the parser has made and not deleted
+    private static long uploads() throws IOException {
+        try (Stream<Path> files = Files.list(Paths.get(System.getProperty("java.io.tmpdir")))) {
+            return files.filter(p -> p.getFileName().toString().startsWith("phonebook-upload")).count();
+        }
+    }
+
+    // files this JVM has open, where the OS tells us (Linux), else 0 so the check is skipped
+    private static long openFiles() throws IOException {
+        Path fds = Paths.get("/proc/self/fd");
+        if (!Files.isDirectory(fds)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.list(fds)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+// every test class, one after another
+public class RunTests {
+    public static void main(String[] args) {
+        ContactLogTest.run();
+        MultipartParserTest.run();
+        SearchIndexTest.run();
+        SnapshotTest.run();
+        FuzzyIndexTest.run();
+        SuggestIndexTest.run();
+        EventsTest.run();
+        Check.done();
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+// SearchIndex: its sorted id lists, and searches that find exactly what looking at every contact
+// would, through adds, changes, deletes and the clean out of deleted ids
+public class SearchIndexTest {
+    public static void main(String[] args) {
+        run();
+        Check.done();
+    }
+
+    static void run() {
+        Check.test("postings: ids in order, duplicates once, however they arrive", () -> {
+            SearchIndex.Postings postings = new SearchIndex.Postings();
+            for (long id : new long[] {5, 9, 12, 3, 9, 7, 100, 1, 12}) {
+                postings.add(id);
+            }
+            Check.equal("[1, 3, 5, 7, 9, 12, 100]", Arrays.toString(Arrays.copyOf(postings.ids, postings.size)));
+            Check.that(postings.contains(7) && postings.contains(100) && postings.contains(1), "has what was added");
+            Check.that(!postings.contains(2) && !postings.contains(101) && !postings.contains(0), "and nothing else");
+        });
+
+        Check.test("postings: grow past their first array", () -> {
+            SearchIndex.Postings postings = new SearchIndex.Postings();
+            for (long id = 1; id <= 1000; id++) {
+                postings.add(id * 2);
+            }
+            Check.equal(1000, postings.size);
+            Check.that(postings.contains(2000) && !postings.contains(1999), "looked up after growing");
+        });
+
+        Check.test("search: short, long, missing and mixed case queries", () -> {
+            SearchIndex index = new SearchIndex();
+            index.contactAdded(contact(1, "Thabo Nkosi", "012 345 6789"));
+            index.contactAdded(contact(2, "Anna Botha", "021 555 1234"));
+            index.contactAdded(contact(3, "Nkosinathi Zulu", "031 345 0000"));
+            Check.equal(List.of(1L, 3L), index.search("NKOSI"));
+            Check.equal(List.of(1L, 3L), index.search("345"));
+            Check.equal(List.of(2L), index.search("a b"));
+            Check.equal(List.of(1L, 2L, 3L), index.search("o")); // one character, no index
+            Check.equal(List.of(), index.search("nkosa"));
+            Check.equal(List.of(), index.search("qq"));
+            // has every trigram of the query, but not next to each other
+            index.contactAdded(contact(4, "abc xbcd", "000"));
+            Check.equal(List.of(), index.search("abcd"));
+        });
+
+        Check.test("search: matches looking at every contact, through changes and deletes", () -> {
+            SearchIndex index = new SearchIndex();
+            Map<Long, Contact> book = new LinkedHashMap<>();
+            Random random = new Random(8);
+            long nextId = 1;
+            // enough deletes that the stale ids get cleaned out more than once
+            for (int round = 0; round < 6000; round++) {
+                int what = random.nextInt(10);
+                if (what < 5 || book.isEmpty()) {
+                    Contact contact = sample(nextId++, random);
+                    book.put(contact.getId(), contact);
+                    index.contactAdded(contact);
+                } else {
+                    List<Long> ids = new ArrayList<>(book.keySet());
+                    long id = ids.get(random.nextInt(ids.size()));
+                    Contact old = book.remove(id);
+                    index.contactRemoved(old);
+                    if (what < 7) {
+                        Contact changed = sample(id, random); // the store's update: removed, then added again
+                        book.put(id, changed);
+                        index.contactAdded(changed);
+                    }
+                }
+                if (round % 500 == 0) {
+                    for (String query : new String[] {"nkosi", "an", "van der", "082", "o'b", "du p", "molefe", "x"}) {
+                        Check.equal(everyContact(book, query), index.search(query));
+                    }
+                }
+            }
+        });
+    }
+
+    private static Contact contact(long id, String name, String phone) {
+        return new Contact(name, phone, "").withId(id);
+    }
+
+    private static Contact sample(long id, Random random) {
+        return new Contact(SampleContacts.name(random), SampleContacts.phone(random), SampleContacts.cellPhone(random)).withId(id);
+    }
+
+    // the answer without an index
+    private static List<Long> everyContact(Map<Long, Contact> book, String query) {
+        String q = query.toLowerCase(Locale.ROOT);
+        List<Long> ids = new ArrayList<>();
+        for (Contact contact : book.values()) {
+            if (contact.getName().toLowerCase(Locale.ROOT).contains(q) || contact.getPhone().contains(q)
+                    || contact.getCellPhone().contains(q)) {
+                ids.add(contact.getId());
+            }
+        }
+        ids.sort(null);
+        return ids;
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Snapshot: what's written is what's read back, over many segments and with awkward contacts, a
+// damaged file is refused rather than half read, and the old Java serialization files still load
+public class SnapshotTest {
+    public static void main(String[] args) {
+        run();
+        Check.done();
+    }
+
+    static void run() {
+        Check.test("snapshot: an empty book", () -> {
+            Path file = Check.tempDir().resolve("contacts.dat");
+            Snapshot.write(file, 3, 17, List.of());
+            Snapshot read = Snapshot.read(file);
+            Check.equal(0, read.contacts.size());
+            Check.equal(3L, read.covered);
+            Check.equal(17L, read.highestId);
+            Check.that(!read.legacy, "it's the current format");
+        });
+
+        Check.test("snapshot: many segments come back whole and in order", () -> {
+            Path file = Check.tempDir().resolve("contacts.dat");
+            List<Contact> contacts = sample(10_000); // a few segments, the last one part full
+            Snapshot.write(file, 42, 12_345, contacts);
+            Snapshot read = Snapshot.read(file);
+            Check.equal(42L, read.covered);
+            Check.equal(12_345L, read.highestId);
+            Check.equal(describe(contacts), describe(read.contacts));
+        });
+
+        Check.test("snapshot: odd contacts", () -> {
+            Path file = Check.tempDir().resolve("contacts.dat");
+            List<Contact> contacts = List.of(
+                    new Contact("Zo\u00eb Ndlovu-M\u00fcller \ud83d\ude00", "+27 (12) 345-6789", "").withId(1),
+                    new Contact("", "", "", "ab".repeat(32), null).withId(2), // a photo the store hasn't typed yet
+                    new Contact("x".repeat(100_000), "1", "2", "cd".repeat(32), "image/png").withId(Long.MAX_VALUE));
+            Snapshot.write(file, 0, Long.MAX_VALUE, contacts);
+            Check.equal(describe(contacts), describe(Snapshot.read(file).contacts));
+        });
+
+        Check.test("snapshot: a damaged segment is an error, not fewer contacts", () -> {
+            Path file = Check.tempDir().resolve("contacts.dat");
+            Snapshot.write(file, 1, 10_000, sample(10_000));
+            byte[] bytes = Files.readAllBytes(file);
+            bytes[bytes.length / 2] ^= 0x40;
+            Files.write(file, bytes);
+            IOException e = Check.throwsA(IOException.class, () -> Snapshot.read(file));
+            Check.that(e.getMessage().contains("corrupt"), "says it's corrupt: " + e.getMessage());
+        });
+
+        Check.test("snapshot: a file from a newer server is refused", () -> {
+            Path file = Check.tempDir().resolve("contacts.dat");
+            Snapshot.write(file, 1, 1, sample(1));
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.write(ByteBuffer.allocate(4).putInt(0, 99), 4); // the format version
+            }
+            IOException e = Check.throwsA(IOException.class, () -> Snapshot.read(file));
+            Check.that(e.getMessage().contains("newer"), "says why: " + e.getMessage());
+        });
+
+        Check.test("snapshot: old serialized files, with and without the generation", () -> {
+            Path dir = Check.tempDir();
+            List<Contact> contacts = sample(100);
+
+            Path withGeneration = dir.resolve("new-style.dat");
+            try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(withGeneration))) {
+                out.writeObject(7L);
+                out.writeObject(100L);
+                out.writeObject(new ArrayList<>(contacts));
+            }
+            Snapshot read = Snapshot.read(withGeneration);
+            Check.that(read.legacy, "it's marked to be written again");
+            Check.equal(7L, read.covered);
+            Check.equal(100L, read.highestId);
+            Check.equal(describe(contacts), describe(read.contacts));
+
+            Path justTheList = dir.resolve("old-style.dat");
+            try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(justTheList))) {
+                out.writeObject(new ArrayList<>(contacts));
+            }
+            read = Snapshot.read(justTheList);
+            Check.that(read.legacy, "it's marked to be written again");
+            Check.equal(0L, read.covered);
+            Check.equal(describe(contacts), describe(read.contacts));
+        });
+    }
+
+    // ids 1 to size, most with a photo
+    private static List<Contact> sample(int size) {
+        Random random = new Random(15);
+        List<Contact> contacts = new ArrayList<>(size);
+        for (int i = 1; i <= size; i++) {
+            Contact contact = new Contact(SampleContacts.name(random), SampleContacts.phone(random), SampleContacts.cellPhone(random));
+            if (random.nextInt(4) != 0) {
+                contact = contact.withPhoto(Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()), "image/jpeg");
+            }
+            contacts.add(contact.withId(i));
+        }
+        return contacts;
+    }
+
+    // everything a contact is, as text to compare
+    private static List<String> describe(List<Contact> contacts) {
+        List<String> described = new ArrayList<>(contacts.size());
+        for (Contact c : contacts) {
+            described.add(c.getId() + "|" + c.getName() + "|" + c.getPhone() + "|" + c.getCellPhone() + "|"
+                    + c.getPhotoHash() + "|" + c.getPhotoType());
+        }
+        return described;
+    }
+}
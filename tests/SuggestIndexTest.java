@@ -0,0 +1,125 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// SuggestIndex: the most common names first, later words and numbers found too, and the answers it
+// keeps for short prefixes staying right as contacts come and go
+public class SuggestIndexTest {
+    public static void main(String[] args) {
+        run();
+        Check.done();
+    }
+
+    static void run() {
+        Check.test("suggest: most contacts first, then alphabetically", () -> {
+            SuggestIndex index = new SuggestIndex();
+            add(index, 1, "Anna Botha", "");
+            add(index, 2, "Andile Zulu", "");
+            add(index, 3, "Andile Zulu", "");
+            add(index, 4, "Anna Anderson", "");
+            Check.equal(List.of("Andile Zulu", "Anna Anderson", "Anna Botha"), index.suggest("an", 10));
+            Check.equal(List.of("Andile Zulu"), index.suggest("an", 1));
+            Check.equal(List.of("Anna Anderson", "Anna Botha"), index.suggest("ANNA", 10));
+            Check.equal(List.of(), index.suggest("  ", 10));
+            Check.equal(List.of(), index.suggest("q", 10));
+        });
+
+        Check.test("suggest: later words and numbers", () -> {
+            SuggestIndex index = new SuggestIndex();
+            add(index, 1, "Thabo  Nkosi", "012 345 6789");
+            add(index, 2, "Flat 2 Jansen", "");
+            Check.equal(List.of("Thabo Nkosi"), index.suggest("nko", 10));
+            Check.equal(List.of("Thabo Nkosi"), index.suggest("thabo nk", 10));
+            Check.equal(List.of("012 345 6789"), index.suggest("0123", 10));
+            Check.equal(List.of("012 345 6789"), index.suggest("012-345", 10));
+            Check.equal(List.of("Flat 2 Jansen"), index.suggest("jan", 10));
+            Check.equal(List.of(), index.suggest("2 j", 10)); // not filed under "2 ...", numbers would find it
+        });
+
+        Check.test("suggest: the same number as phone and cell phone counts once", () -> {
+            SuggestIndex index = new SuggestIndex();
+            Contact both = new Contact("Anna Botha", "082 111 2222", "082 111 2222").withId(1); // as a one-number vCard comes in
+            index.contactAdded(both);
+            index.contactAdded(new Contact("Thabo Nkosi", "082 111 2223", "").withId(2));
+            index.contactAdded(new Contact("Sipho Dlamini", "", "082 111 2223").withId(3));
+            Check.equal(List.of("082 111 2223", "082 111 2222"), index.suggest("08211", 10));
+            Check.equal(List.of("082 111 2223", "082 111 2222"), index.suggest("0", 10)); // a kept answer too
+            index.contactRemoved(both);
+            Check.equal(List.of("082 111 2223"), index.suggest("08211", 10));
+            Check.equal(List.of("082 111 2223"), index.suggest("0", 10));
+            index.contactAdded(new Contact("Lerato Zulu", "031 555 0000", "0315550000").withId(4)); // written two ways
+            Check.equal(List.of("031 555 0000"), index.suggest("0315", 10));
+        });
+
+        Check.test("suggest: a kept answer follows adds and removes", () -> {
+            SuggestIndex index = new SuggestIndex();
+            Contact anna = add(index, 1, "Anna Botha", "");
+            Check.equal(List.of("Anna Botha"), index.suggest("a", 10)); // now kept
+            add(index, 2, "Andile Zulu", "");
+            add(index, 3, "Andile Zulu", "");
+            Check.equal(List.of("Andile Zulu", "Anna Botha"), index.suggest("a", 10));
+            index.contactRemoved(anna);
+            Check.equal(List.of("Andile Zulu"), index.suggest("a", 10));
+            index.contactRemoved(new Contact("Andile Zulu", "", "").withId(2));
+            index.contactRemoved(new Contact("Andile Zulu", "", "").withId(3));
+            Check.equal(List.of(), index.suggest("a", 10));
+        });
+
+        Check.test("suggest: a name pushed out of a kept answer comes back when another goes", () -> {
+            SuggestIndex index = new SuggestIndex();
+            List<Contact> added = new ArrayList<>();
+            for (int i = 0; i < SuggestIndex.MAX_SUGGESTIONS + 5; i++) {
+                added.add(add(index, i + 1, String.format("Name%02d", i), ""));
+            }
+            List<String> first = index.suggest("n", 100);
+            Check.equal(SuggestIndex.MAX_SUGGESTIONS, first.size());
+            Check.equal("Name19", first.get(first.size() - 1));
+            index.contactRemoved(added.get(0));
+            List<String> after = index.suggest("n", 100);
+            Check.equal("Name01", after.get(0));
+            Check.equal("Name20", after.get(after.size() - 1)); // wasn't in the kept answer, is now
+        });
+
+        Check.test("suggest: kept answers match a fresh index, through random adds and removes", () -> {
+            SuggestIndex kept = new SuggestIndex();
+            Map<Long, Contact> book = new LinkedHashMap<>();
+            Random random = new Random(23);
+            String[] prefixes = {"a", "an", "ann", "anna", "t", "th", "n", "nk", "v", "van ", "d", "du", "o'", "0", "08", "082", "01"};
+            long nextId = 1;
+            for (int round = 0; round < 3000; round++) {
+                if (random.nextInt(3) != 0 || book.isEmpty()) {
+                    // a small pool of names, so counts go up and down and the order changes
+                    Contact contact = new Contact(SampleContacts.name(random), random.nextInt(5) == 0 ? SampleContacts.phone(random) : "",
+                            random.nextInt(5) == 0 ? SampleContacts.cellPhone(random) : "").withId(nextId++);
+                    book.put(contact.getId(), contact);
+                    kept.contactAdded(contact);
+                } else {
+                    List<Long> ids = new ArrayList<>(book.keySet());
+                    kept.contactRemoved(book.remove(ids.get(random.nextInt(ids.size()))));
+                }
+                if (round % 10 == 0) {
+                    for (String prefix : prefixes) {
+                        kept.suggest(prefix, 5); // keep the answers warm, so they have to be maintained
+                    }
+                }
+                if (round % 250 == 0) {
+                    SuggestIndex fresh = new SuggestIndex();
+                    for (Contact contact : book.values()) {
+                        fresh.contactAdded(contact);
+                    }
+                    for (String prefix : prefixes) {
+                        Check.equal(fresh.suggest(prefix, SuggestIndex.MAX_SUGGESTIONS), kept.suggest(prefix, SuggestIndex.MAX_SUGGESTIONS));
+                    }
+                }
+            }
+        });
+    }
+
+    private static Contact add(SuggestIndex index, long id, String name, String phone) {
+        Contact contact = new Contact(name, phone, "").withId(id);
+        index.contactAdded(contact);
+        return contact;
+    }
+}